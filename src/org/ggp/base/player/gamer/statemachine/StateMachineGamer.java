@@ -2,6 +2,7 @@ package org.ggp.base.player.gamer.statemachine;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.ggp.base.player.gamer.Gamer;
 import org.ggp.base.player.gamer.exception.AbortingException;
@@ -111,6 +112,7 @@ public abstract class StateMachineGamer extends Gamer
         role = null;
         currentState = null;
         stateMachine = null;
+        pendingStateMachine.set(null);
         setMatch(null);
         setRoleName(null);
     }
@@ -149,6 +151,19 @@ public abstract class StateMachineGamer extends Gamer
         }
     }
 
+    /**
+     * Asks for stateMachine to be switched to newStateMachine, as with
+     * switchStateMachine, the next time that the gamer is asked to select a
+     * move. Unlike switchStateMachine, this may be called from any thread:
+     * for instance, from a thread that builds a faster state machine in the
+     * background while the match goes on.
+     *
+     * @param newStateMachine the new state machine
+     */
+    protected final void switchStateMachineLater(StateMachine newStateMachine) {
+        pendingStateMachine.set(newStateMachine);
+    }
+
     // =====================================================================
     // Finally, methods which are overridden with proper state-machine-based
 	// semantics. These basically wrap a state-machine-based view of the world
@@ -166,6 +181,7 @@ public abstract class StateMachineGamer extends Gamer
 	{
 		try
 		{
+			pendingStateMachine.set(null);
 			stateMachine = getInitialStateMachine();
 			stateMachine.initialize(getMatch().getGame().getRules());
 			currentState = stateMachine.getInitialState();
@@ -207,6 +223,12 @@ public abstract class StateMachineGamer extends Gamer
 				getMatch().appendState(currentState.getContents());
 			}
 
+			StateMachine newStateMachine = pendingStateMachine.getAndSet(null);
+			if (newStateMachine != null)
+			{
+				switchStateMachine(newStateMachine);
+			}
+
 			return stateMachineSelectMove(timeout).getContents();
 		}
 		catch (Exception e)
@@ -260,4 +282,5 @@ public abstract class StateMachineGamer extends Gamer
     private Role role;
     private MachineState currentState;
     private StateMachine stateMachine;
+    private final AtomicReference<StateMachine> pendingStateMachine = new AtomicReference<StateMachine>();
 }
\ No newline at end of file
@@ -55,7 +55,7 @@ public class MCLThreadVerwalter extends Thread {
 			for(int k = 0; k < numberOfThreads; k++)
 			{
 				int index = ((j-1)*numberOfThreads+k)%scores.length;
-				MCL_thread t = new MCL_thread( scores[index], mymachine,mymachine.getNextState(state, ownMoves.get(index)), player);
+				MCL_thread t = new MCL_thread( scores[index], forkMachine(),mymachine.getNextState(state, ownMoves.get(index)), player);
 				t.start();
 				threads.add(t);
 			}
@@ -88,6 +88,15 @@ public class MCLThreadVerwalter extends Thread {
 	}
 
 
+	// Jeder Thread bekommt seine eigene StateMachine, wenn moeglich
+	private StateMachine forkMachine(){
+		try {
+			return mymachine.fork();
+		} catch (UnsupportedOperationException e) {
+			return mymachine;
+		}
+	}
+
 	void stopMinions(){
 		for(int i=0; i < threads.size(); i++){
 			threads.get(i).stopThread();
@@ -1,5 +1,8 @@
 package org.ggp.base.player.gamer.statemachine.hu;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
@@ -15,6 +18,9 @@ public class MCL_thread extends Thread
 	MutableDouble i;
 	MachineState state;
 	boolean run = true;
+	Random random = new Random();
+	int[] goals;
+	int roleIndex;
 
   MCL_thread(MutableDouble i, StateMachine mymachine, MachineState state, Tromboter player){
     super();
@@ -24,6 +30,8 @@ public class MCL_thread extends Thread
     this.mymachine = mymachine;
     this.i = i;
     this.state = state;
+    this.goals = new int[mymachine.getRoles().size()];
+    this.roleIndex = mymachine.getRoleIndices().get(player.getRole());
   }
 
   @Override public void run()
@@ -54,8 +62,9 @@ public class MCL_thread extends Thread
 
   private int monteZott() throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
   {
-    MachineState finalState = mymachine.performDepthCharge(state, new int[1]);
-    return mymachine.getGoal(finalState, player.getRole());
+    Arrays.fill(goals, 0);
+    mymachine.performDepthCharges(state, 1, random, goals);
+    return goals[roleIndex];
   }
 
   void stopThread(){
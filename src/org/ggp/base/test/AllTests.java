@@ -8,9 +8,11 @@ import org.junit.runners.Suite;
 	GameParsingTests.class,
 	GdlCleanerTests.class,
 	NoTabsInRulesheetsTest.class,
+	PropNetStateMachineTests.class,
 	ProverStateMachineTests.class,
 	SimpleSentenceFormTest.class,
-	StaticValidationTests.class
+	StaticValidationTests.class,
+	TtlCacheTests.class
                      })
 public class AllTests {
 
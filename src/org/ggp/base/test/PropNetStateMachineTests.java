@@ -0,0 +1,640 @@
+package org.ggp.base.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.observer.Event;
+import org.ggp.base.util.observer.Observer;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.architecture.FlatPropNetCache;
+import org.ggp.base.util.propnet.architecture.LatchAnalysis;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+import org.ggp.base.util.propnet.factory.event.PropNetProgressEvent;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
+import org.ggp.base.util.statemachine.JournaledMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.SymmetryGroup;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.cache.ConcurrentCachedStateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.BatchEvaluator;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FactorStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.GoalEvaluator;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetBuilderThread;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.event.PropNetReadyEvent;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the propnet state machine against the prover state machine by
+ * playing the same random matches on both and comparing every state.
+ */
+public class PropNetStateMachineTests extends Assert {
+
+    @Test
+    public void testPropNetOnTicTacToe() throws Exception {
+        compareWithProver("ticTacToe");
+    }
+
+    @Test
+    public void testPropNetOnConnectFour() throws Exception {
+        compareWithProver("connectFour");
+    }
+
+    @Test
+    public void testCompiledPropNetMatchesProver() throws Exception {
+        compareWithProver("ticTacToe", new CompiledPropNetStateMachine());
+        compareWithProver("connectFour", new CompiledPropNetStateMachine());
+        compareWithProver("test_case_3d", new CompiledPropNetStateMachine());
+    }
+
+    @Test
+    public void testCompiledPropNetSplitsWideGates() throws Exception {
+        // The terminal condition is an OR, and the goals an AND and an OR,
+        // over many more inputs than fit in one compiled method.
+        StringBuilder allPicked = new StringBuilder("(<= allPicked");
+        List<Gdl> rules = new ArrayList<Gdl>();
+        for (int n = 1; n <= 1500; n++) {
+            rules.add(GdlFactory.create("(num " + n + ")"));
+            if (n % 2 == 0) {
+                rules.add(GdlFactory.create("(even " + n + ")"));
+            }
+            allPicked.append(" (true (picked ").append(n).append("))");
+        }
+        rules.add(GdlFactory.create(allPicked.append(")").toString()));
+        for (String gdl : new String[] {
+                "(role robot)",
+                "(<= (legal robot (pick ?n)) (num ?n))",
+                "(<= (next (picked ?n)) (does robot (pick ?n)))",
+                "(<= terminal (true (picked ?n)))",
+                "(<= evenPicked (true (picked ?n)) (even ?n))",
+                "(<= (goal robot 100) allPicked)",
+                "(<= (goal robot 50) evenPicked (not allPicked))",
+                "(<= (goal robot 0) (not evenPicked))"}) {
+            rules.add(GdlFactory.create(gdl));
+        }
+        compareWithProver(rules, new CompiledPropNetStateMachine());
+    }
+
+    @Test
+    public void testSymmetriesOfBoards() throws Exception {
+        StateMachine ticTacToe = new SamplePropNetStateMachine();
+        ticTacToe.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        // The symmetries are found on first use, once for a machine and its forks.
+        StateMachine fork = ticTacToe.fork();
+        SymmetryGroup symmetries = ticTacToe.getSymmetries();
+        assertEquals(8, symmetries.size());
+        assertSame(symmetries, fork.getSymmetries());
+
+        // Each opening move in a corner leads to the same canonical state.
+        MachineState initial = ticTacToe.getInitialState();
+        Set<MachineState> corners = new HashSet<MachineState>();
+        for (Move move : ticTacToe.getLegalMoves(initial, ticTacToe.getRoles().get(0))) {
+            String name = move.toString();
+            if (name.matches(".*mark [13] [13].*")) {
+                MachineState next = ticTacToe.getNextState(initial, Arrays.asList(move, ticTacToe.getLegalMoves(initial, ticTacToe.getRoles().get(1)).get(0)));
+                corners.add(symmetries.canonicalize(next));
+            }
+        }
+        assertEquals(1, corners.size());
+
+        StateMachine connectFour = new SamplePropNetStateMachine();
+        connectFour.initialize(new TestGameRepository().getGame("connectFour").getRules());
+        assertEquals(2, connectFour.getSymmetries().size());
+    }
+
+    @Test
+    public void testCacheMergingSymmetricStatesMatchesProver() throws Exception {
+        compareWithProver("ticTacToe", new CachedStateMachine(new SamplePropNetStateMachine(), 0, true));
+    }
+
+    @Test
+    public void testPropNetInitialStateIgnoresNextRules() throws Exception {
+        compareWithProver("simpleMutex");
+        compareWithProver("test_case_3d");
+    }
+
+    @Test
+    public void testPropNetDepthChargesMatchDefaultImplementation() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        // CachedStateMachine does not override performDepthCharges, so this
+        // runs the generic loop on top of the same propnet machine.
+        StateMachine generic = new CachedStateMachine(propNet.fork());
+        generic.initialize(rules);
+
+        int[] expectedGoals = new int[2];
+        int[] actualGoals = new int[2];
+        int expectedDepth = generic.performDepthCharges(generic.getInitialState(), 100, new Random(42), expectedGoals);
+        int actualDepth = propNet.performDepthCharges(propNet.getInitialState(), 100, new Random(42), actualGoals);
+        assertEquals(expectedDepth, actualDepth);
+        assertArrayEquals(expectedGoals, actualGoals);
+        assertTrue(actualDepth >= 500);
+    }
+
+    @Test
+    public void testDepthChargesLeaveTheWholePropNetUpToDate() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        SamplePropNetStateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        GoalEvaluator goals = propNet.getGoalEvaluator();
+
+        Random random = new Random(0);
+        MachineState state = propNet.getInitialState();
+        while (!propNet.isTerminal(state)) {
+            propNet.performDepthCharges(state, 3, random, new int[2]);
+            // Tic-Tac-Toe only defines goals in terminal states.
+            assertEquals(goalsOrNull(prover, state), goalsOrNull(propNet, state));
+            assertEquals(prover.isTerminal(state), propNet.isTerminal(state));
+            for (Role role : prover.getRoles()) {
+                assertEquals(new HashSet<Move>(prover.getLegalMoves(state, role)), new HashSet<Move>(propNet.getLegalMoves(state, role)));
+            }
+            state = propNet.getRandomNextState(state);
+        }
+        assertEquals(prover.getGoals(state), goals.getGoals(state));
+        try {
+            goals.getGoal(state, new Role(GdlPool.getConstant("nobody")));
+            fail("Should throw an exception for a role that isn't in the game");
+        } catch (GoalDefinitionException e) {
+            // Expected
+        }
+    }
+
+    private static List<Integer> goalsOrNull(StateMachine machine, MachineState state) {
+        try {
+            return machine.getGoals(state);
+        } catch (GoalDefinitionException e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void testBatchEvaluatorMatchesProver() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        SamplePropNetStateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        BatchEvaluator batch = propNet.getBatchEvaluator();
+
+        Random random = new Random(0);
+        List<MachineState> terminalStates = new ArrayList<MachineState>();
+        for (int i = 0; i < 40; i++) {
+            MachineState state = propNet.getInitialState();
+            while (!propNet.isTerminal(state)) {
+                state = propNet.getRandomNextState(state);
+            }
+            terminalStates.add(state);
+        }
+        int[][] goals = new int[BatchEvaluator.LANES][2];
+        batch.getGoals(terminalStates, goals);
+        for (int i = 0; i < terminalStates.size(); i++) {
+            assertEquals(prover.getGoals(terminalStates.get(i)), Arrays.asList(goals[i][0], goals[i][1]));
+        }
+
+        // Every game of Tic-Tac-Toe lasts 5 to 9 moves and hands out 100
+        // points in total. 150 charges take two full batches and a partial one.
+        int[] totalGoals = new int[2];
+        int depth = batch.performDepthCharges(propNet.getInitialState(), 150, random, totalGoals);
+        assertEquals(150 * 100, totalGoals[0] + totalGoals[1]);
+        assertTrue(depth >= 150 * 5 && depth <= 150 * 9);
+    }
+
+    @Test
+    public void testJournaledStatesApplyAndUndo() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        checkJournaledWalk(propNet);
+        checkJournaledWalk(prover);
+    }
+
+    @Test
+    public void testBoundedCachesCanBeDrivenByJournaledStates() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        // The caches are much smaller than a match, so they evict states
+        // that were cached while a journaled state was passing through them.
+        StateMachine[] caches = new StateMachine[] {
+                new CachedStateMachine(new ProverStateMachine(), 4),
+                new CachedStateMachine(new SamplePropNetStateMachine(), 4),
+                new ConcurrentCachedStateMachine(new SamplePropNetStateMachine(), 4)};
+        StateMachine[] references = new StateMachine[] {prover, propNet, propNet};
+
+        // A cache around a machine that is already initialized works as is.
+        StateMachine wrapped = new CachedStateMachine(prover.fork(), 4);
+        assertEquals(prover.getRoles(), wrapped.getRoles());
+        assertEquals(prover.getInitialState(), wrapped.getInitialState());
+        for (int i = 0; i < caches.length; i++) {
+            caches[i].initialize(rules);
+            for (int seed = 0; seed < 5; seed++) {
+                checkJournaledWalk(caches[i], references[i], seed);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentCachePassesNullResultsThrough() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        MachineState state = propNet.getInitialState();
+        Role role = propNet.getRoles().get(0);
+        List<Move> jointMove = propNet.getLegalJointMoves(state).get(0);
+
+        // With no backing machine, the failsafe machine answers null.
+        ConcurrentCachedStateMachine cache = new ConcurrentCachedStateMachine(new FailsafeStateMachine(null), 4, 1);
+        assertNull(cache.getLegalMoves(state, role));
+        assertNull(cache.getNextState(state, jointMove));
+        assertFalse(cache.isTerminal(state));
+
+        // Walking past the capacity evicts states, and answers stay right.
+        // The backing machine is already initialized, so the cache isn't.
+        cache = new ConcurrentCachedStateMachine(propNet.fork(), 4, 1);
+        assertEquals(propNet.getRoles(), cache.getRoles());
+        assertEquals(propNet.getInitialState(), cache.getInitialState());
+        for (int i = 0; i < 3; i++) {
+            MachineState current = propNet.getInitialState();
+            while (!propNet.isTerminal(current)) {
+                assertEquals(propNet.getLegalMoves(current, role), cache.getLegalMoves(current, role));
+                List<Move> move = propNet.getLegalJointMoves(current).get(i % 2);
+                assertEquals(propNet.getNextState(current, move), cache.getNextState(current, move));
+                current = propNet.getNextState(current, move);
+            }
+            assertTrue(cache.size() <= 4);
+        }
+    }
+
+    private void checkJournaledWalk(StateMachine machine) throws Exception {
+        checkJournaledWalk(machine, machine, 0);
+    }
+
+    /** Walks a random match with a journaled state, checking every step against the reference. */
+    private void checkJournaledWalk(StateMachine machine, StateMachine reference, int seed) throws Exception {
+        Random random = new Random(seed);
+        MachineState initial = machine.getInitialState();
+        JournaledMachineState journaled = machine.getJournaledState(initial);
+        List<MachineState> path = new ArrayList<MachineState>();
+        path.add(initial);
+        while (!machine.isTerminal(journaled)) {
+            assertFalse(reference.isTerminal(path.get(path.size() - 1)));
+            List<List<Move>> jointMoves = machine.getLegalJointMoves(journaled);
+            assertEquals(reference.getLegalJointMoves(path.get(path.size() - 1)), jointMoves);
+            List<Move> jointMove = jointMoves.get(random.nextInt(jointMoves.size()));
+            MachineState expected = reference.getNextState(path.get(path.size() - 1), jointMove);
+            machine.applyMoves(journaled, jointMove);
+            assertEquals(expected, journaled.snapshot());
+            assertEquals(expected.hashCode(), journaled.hashCode());
+            path.add(expected);
+        }
+        while (journaled.getDepth() > 0) {
+            machine.undoMoves(journaled);
+            path.remove(path.size() - 1);
+            assertEquals(path.get(path.size() - 1), journaled.snapshot());
+            assertEquals(path.get(path.size() - 1).hashCode(), journaled.hashCode());
+        }
+        assertEquals(initial, journaled.snapshot());
+    }
+
+    @Test
+    public void testForkedPropNetsRunConcurrently() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+        final StateMachine propNet = new SamplePropNetStateMachine();
+        propNet.initialize(rules);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final StateMachine fork = propNet.fork();
+            final long seed = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int match = 0; match < 50; match++) {
+                            MachineState state = fork.getInitialState();
+                            while (!fork.isTerminal(state)) {
+                                List<List<Move>> jointMoves = fork.getLegalJointMoves(state);
+                                state = fork.getNextState(state, jointMoves.get(random.nextInt(jointMoves.size())));
+                            }
+                            fork.getGoals(state);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), failures);
+        assertEquals(propNet.getInitialState(), propNet.fork().getInitialState());
+    }
+
+    @Test
+    public void testParallelPropNetFactoryMatchesSerial() throws Exception {
+        for (String gameKey : new String[] {"connectFour", "test_factoring", "ticTacToe"}) {
+            List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+            PropNet serial = OptimizingPropNetFactory.create(rules);
+            List<String> expected = describeStructure(serial);
+            // Repeat the parallel builds, so that a race has several chances to show.
+            for (int run = 0; run < 3; run++) {
+                for (int threads : new int[] {2, 4}) {
+                    PropNet parallel = OptimizingPropNetFactory.create(rules, false, threads);
+                    assertEquals(serial.getComponents().size(), parallel.getComponents().size());
+                    assertEquals(serial.getNumLinks(), parallel.getNumLinks());
+                    assertEquals(serial.getNumAnds(), parallel.getNumAnds());
+                    assertEquals(serial.getNumOrs(), parallel.getNumOrs());
+                    assertEquals(serial.getNumNots(), parallel.getNumNots());
+                    assertEquals(serial.getBasePropositions().keySet(), parallel.getBasePropositions().keySet());
+                    assertEquals(serial.getInputPropositions().keySet(), parallel.getInputPropositions().keySet());
+                    assertEquals(gameKey, expected, describeStructure(parallel));
+                }
+            }
+        }
+    }
+
+    /**
+     * Describes each proposition by its name and the gates that feed it, back
+     * to the propositions they read, and returns the descriptions sorted.
+     * Propnets with the same structure have the same descriptions.
+     */
+    private static List<String> describeStructure(PropNet propNet) {
+        Map<Component, String> gates = new HashMap<Component, String>();
+        List<String> descriptions = new ArrayList<String>();
+        for (Proposition proposition : propNet.getPropositions()) {
+            descriptions.add(proposition.getName() + " <= " + describeInputs(proposition, gates));
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+
+    private static String describe(Component component, Map<Component, String> gates) {
+        if (component instanceof Proposition) {
+            return ((Proposition) component).getName().toString();
+        }
+        String description = gates.get(component);
+        if (description == null) {
+            description = component.getClass().getSimpleName() + describeInputs(component, gates);
+            gates.put(component, description);
+        }
+        return description;
+    }
+
+    private static List<String> describeInputs(Component component, Map<Component, String> gates) {
+        List<String> inputs = new ArrayList<String>();
+        for (Component input : component.getInputs()) {
+            inputs.add(describe(input, gates));
+        }
+        Collections.sort(inputs);
+        return inputs;
+    }
+
+    @Test
+    public void testPropNetOptimizerReportsEachPass() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNet propNet = OptimizingPropNetFactory.create(rules);
+        int initialSize = propNet.getSize();
+        PropNetOptimizer optimizer = PropNetOptimizer.createDefault();
+        List<PropNetOptimizer.PassResult> results = optimizer.optimize(propNet);
+        assertEquals(optimizer.getPasses().size(), results.size());
+        int size = initialSize;
+        for (PropNetOptimizer.PassResult result : results) {
+            assertEquals(size, result.getComponentsBefore());
+            assertTrue(result.getComponentsAfter() <= result.getComponentsBefore());
+            size = result.getComponentsAfter();
+        }
+        assertEquals(propNet.getSize(), size);
+        assertTrue(size < initialSize);
+    }
+
+    @Test
+    public void testLatchAnalysisFindsFilledCells() throws Exception {
+        SamplePropNetStateMachine theMachine = new SamplePropNetStateMachine();
+        theMachine.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        LatchAnalysis latches = theMachine.getLatchAnalysis();
+        assertEquals(18, latches.getPositiveLatches().size());
+        for (GdlSentence latch : latches.getPositiveLatches()) {
+            assertFalse(latch.toString().endsWith("b ) )"));
+        }
+        assertEquals(9, latches.getNegativeLatches().size());
+        for (GdlSentence latch : latches.getNegativeLatches()) {
+            assertTrue(latch.toString().endsWith("b ) )"));
+        }
+        assertTrue(latches.getAlwaysTrueBases().isEmpty());
+        assertTrue(latches.getAlwaysFalseBases().isEmpty());
+    }
+
+    @Test
+    public void testFactorStateMachinesPlayIndependentCounters() throws Exception {
+        SamplePropNetStateMachine theMachine = new SamplePropNetStateMachine();
+        theMachine.initialize(new TestGameRepository().getGame("test_factoring").getRules());
+        assertTrue(theMachine.getFactorAnalysis().isFactorable());
+        List<FactorStateMachine> factors = theMachine.getFactorStateMachines();
+        assertEquals(2, factors.size());
+
+        Role player = theMachine.getRoles().get(0);
+        MachineState state = theMachine.getInitialState();
+        while (!theMachine.isTerminal(state)) {
+            List<Move> moves = theMachine.getRandomJointMove(state);
+            MachineState next = theMachine.getNextState(state, moves);
+            for (FactorStateMachine factor : factors) {
+                MachineState factorState = factor.project(state);
+                if (factor.getLegalMoves(factorState, player).contains(moves.get(0))) {
+                    assertEquals(factor.project(next), factor.getNextState(factorState, moves));
+                } else {
+                    assertEquals(factorState, factor.project(next));
+                }
+            }
+            state = next;
+        }
+        for (FactorStateMachine factor : factors) {
+            assertEquals(2, factor.getLegalMoves(factor.getInitialState(), player).size());
+            assertEquals(3, factor.getFactor().getBases().size());
+        }
+    }
+
+    @Test
+    public void testPropNetCacheRoundTrip() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+        File directory = File.createTempFile("propnetcache", "");
+        directory.delete();
+        try {
+            FlatPropNetCache cache = new FlatPropNetCache(directory);
+            StateMachine built = new SamplePropNetStateMachine(cache);
+            built.initialize(rules);
+            assertEquals(1, directory.listFiles().length);
+            StateMachine loaded = new SamplePropNetStateMachine(cache);
+            loaded.initialize(rules);
+
+            assertEquals(built.getRoles(), loaded.getRoles());
+            assertEquals(built.getInitialState(), loaded.getInitialState());
+            int[] expectedGoals = new int[2];
+            int[] actualGoals = new int[2];
+            int expectedDepth = built.performDepthCharges(built.getInitialState(), 20, new Random(7), expectedGoals);
+            int actualDepth = loaded.performDepthCharges(loaded.getInitialState(), 20, new Random(7), actualGoals);
+            assertEquals(expectedDepth, actualDepth);
+            assertArrayEquals(expectedGoals, actualGoals);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testPropNetCacheRejectsCorruptEntries() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        File directory = File.createTempFile("propnetcache", "");
+        directory.delete();
+        try {
+            FlatPropNetCache cache = new FlatPropNetCache(directory);
+            FlatPropNet net = new FlatPropNet(OptimizingPropNetFactory.create(rules));
+            cache.store(rules, "pipeline 1", net);
+            assertNotNull(cache.load(rules, "pipeline 1"));
+            assertNull(cache.load(rules, "pipeline 2"));
+
+            // Claim a huge constant table, right after the magic number and version.
+            RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+            try {
+                file.seek(8);
+                file.writeInt(Integer.MAX_VALUE);
+            } finally {
+                file.close();
+            }
+            assertNull(cache.load(rules, "pipeline 1"));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testPropNetBuilderFallsBackToProver() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetBuilderThread builder = new PropNetBuilderThread(rules, 2);
+        final List<Event> events = new ArrayList<Event>();
+        builder.addObserver(new Observer() {
+            @Override
+            public void observe(Event event) {
+                events.add(event);
+            }
+        });
+        StateMachine fallback = builder.getStateMachine(0);
+        assertTrue(fallback instanceof ProverStateMachine);
+
+        builder.start();
+        StateMachine propNet = builder.getStateMachine(System.currentTimeMillis() + 60000);
+        builder.join();
+        assertTrue(propNet instanceof SamplePropNetStateMachine);
+        assertEquals(fallback.getInitialState(), propNet.getInitialState());
+        assertTrue(events.get(events.size() - 1) instanceof PropNetReadyEvent);
+        PropNetProgressEvent progress = (PropNetProgressEvent) events.get(events.size() - 2);
+        assertEquals(progress.getFormCount(), progress.getFormsAdded());
+    }
+
+    private void checkBatchedNextStates(StateMachine machine, MachineState state) throws Exception {
+        List<List<Move>> jointMoves = machine.getLegalJointMoves(state);
+        List<MachineState> states = new ArrayList<MachineState>();
+        List<MachineState> expected = new ArrayList<MachineState>();
+        for (List<Move> jointMove : jointMoves) {
+            states.add(state);
+            expected.add(machine.getNextState(state, jointMove));
+        }
+        assertEquals(expected, machine.getNextStates(states, jointMoves));
+        // Every state appears twice in a row, and the first state again at the end.
+        MachineState[] batch = new MachineState[expected.size() * 2 + 1];
+        for (int i = 0; i < expected.size(); i++) {
+            batch[2 * i] = expected.get(i);
+            batch[2 * i + 1] = expected.get(i);
+        }
+        batch[batch.length - 1] = expected.get(0);
+        boolean[] terminal = machine.isTerminal(batch);
+        for (int i = 0; i < batch.length; i++) {
+            assertEquals(machine.isTerminal(batch[i]), terminal[i]);
+        }
+    }
+
+    private void compareWithProver(String gameKey) throws Exception {
+        compareWithProver(gameKey, new SamplePropNetStateMachine());
+    }
+
+    private void compareWithProver(String gameKey, StateMachine propNet) throws Exception {
+        compareWithProver(new TestGameRepository().getGame(gameKey).getRules(), propNet);
+    }
+
+    private void compareWithProver(List<Gdl> rules, StateMachine propNet) throws Exception {
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        propNet.initialize(rules);
+        assertEquals(prover.getRoles(), propNet.getRoles());
+
+        Random random = new Random(0);
+        for (int match = 0; match < 10; match++) {
+            MachineState expected = prover.getInitialState();
+            MachineState actual = propNet.getInitialState();
+            while (true) {
+                assertEquals(expected, actual);
+                assertEquals(actual, expected);
+                assertEquals(expected.hashCode(), actual.hashCode());
+                assertEquals(prover.isTerminal(expected), propNet.isTerminal(actual));
+                if (prover.isTerminal(expected)) {
+                    assertEquals(prover.getGoals(expected), propNet.getGoals(actual));
+                    break;
+                }
+                if (match == 0) {
+                    checkBatchedNextStates(prover, expected);
+                    checkBatchedNextStates(propNet, actual);
+                }
+                List<Move> jointMove = new ArrayList<Move>();
+                for (Role role : prover.getRoles()) {
+                    List<Move> moves = prover.getLegalMoves(expected, role);
+                    assertEquals(new HashSet<Move>(moves), new HashSet<Move>(propNet.getLegalMoves(actual, role)));
+                    jointMove.add(moves.get(random.nextInt(moves.size())));
+                }
+                expected = prover.getNextState(expected, jointMove);
+                actual = propNet.getNextState(actual, jointMove);
+            }
+        }
+    }
+}
@@ -3,16 +3,37 @@ package org.ggp.base.test;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
 import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.aima.cache.ProverCache;
+import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
+import org.ggp.base.util.prover.aima.substitution.Substitution;
+import org.ggp.base.util.prover.aima.unifier.Unifier;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 import org.junit.Assert;
 import org.junit.Test;
@@ -157,6 +178,193 @@ public class ProverStateMachineTests extends Assert {
         assertEquals(Collections.singletonList(100), sm.getGoals(state));
     }
 
+    @Test
+    public void testProverAnswersDoNotDependOnEarlierQueries() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(desc);
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        MachineState start = sm.getInitialState();
+        MachineState afterX = sm.getNextState(start, Arrays.asList(move("mark 2 2"), noop));
+        MachineState afterO = sm.getNextState(afterX, Arrays.asList(noop, move("mark 1 1")));
+
+        // Going back and forth between states, and between queries with and
+        // without moves, must give the same answers as a fresh prover.
+        for (MachineState state : Arrays.asList(start, afterX, start, afterO, afterX, afterO)) {
+            ProverStateMachine fresh = new ProverStateMachine();
+            fresh.initialize(desc);
+            for (Role role : Arrays.asList(xRole, oRole)) {
+                assertEquals(new HashSet<Move>(fresh.getLegalMoves(state, role)), new HashSet<Move>(sm.getLegalMoves(state, role)));
+            }
+            List<Move> joint = sm.getLegalJointMoves(state).get(0);
+            assertEquals(fresh.getNextState(state, joint), sm.getNextState(state, joint));
+            assertEquals(fresh.isTerminal(state), sm.isTerminal(state));
+        }
+    }
+
+    @Test
+    public void testKnowledgeBaseFetchesOnlyRulesThatMightUnify() throws Exception {
+        GdlConstant succ = GdlPool.getConstant("succ");
+        GdlVariable x = GdlPool.getVariable("?x");
+        GdlVariable y = GdlPool.getVariable("?y");
+        Set<Gdl> description = new HashSet<Gdl>();
+        for (int i = 0; i < 20; i++) {
+            description.add(GdlPool.getRelation(succ, new GdlTerm[] {GdlPool.getConstant("" + i), GdlPool.getConstant("" + (i + 1))}));
+        }
+        GdlRule loop = GdlPool.getRule(GdlPool.getRelation(succ, new GdlTerm[] {x, x}), new GdlLiteral[] {GdlPool.getRelation(GdlPool.getConstant("fixed"), new GdlTerm[] {x})});
+        description.add(loop);
+        KnowledgeBase knowledgeBase = new KnowledgeBase(description);
+
+        assertEquals(21, knowledgeBase.fetch(GdlPool.getRelation(succ, new GdlTerm[] {x, y})).size());
+        List<GdlRule> fromFive = knowledgeBase.fetch(GdlPool.getRelation(succ, new GdlTerm[] {GdlPool.getConstant("5"), y}));
+        assertEquals(2, fromFive.size());
+        assertTrue(fromFive.contains(loop));
+        List<GdlRule> fiveToSix = knowledgeBase.fetch(GdlPool.getRelation(succ, new GdlTerm[] {GdlPool.getConstant("5"), GdlPool.getConstant("6")}));
+        assertEquals(2, fiveToSix.size());
+        List<GdlRule> fiveToSeven = knowledgeBase.fetch(GdlPool.getRelation(succ, new GdlTerm[] {GdlPool.getConstant("5"), GdlPool.getConstant("7")}));
+        assertEquals(Collections.singletonList(loop), fiveToSeven);
+    }
+
+    @Test
+    public void testProverCanBeQueriedConcurrently() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        ProverStateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        final int walks = 8;
+        final List<List<String>> expected = new ArrayList<List<String>>();
+        for (int seed = 0; seed < walks; seed++) {
+            expected.add(walk(reference, seed));
+        }
+
+        // Every thread takes the walks in a different order, on forks that
+        // share one prover, so queries on different states interleave.
+        sm.initialize(desc);
+        final CyclicBarrier start = new CyclicBarrier(walks);
+        ExecutorService executor = Executors.newFixedThreadPool(walks);
+        try {
+            List<Future<List<List<String>>>> results = new ArrayList<Future<List<List<String>>>>();
+            for (int t = 0; t < walks; t++) {
+                final int first = t;
+                final StateMachine fork = sm.fork();
+                results.add(executor.submit(new Callable<List<List<String>>>() {
+                    @Override
+                    public List<List<String>> call() throws Exception {
+                        start.await();
+                        List<List<String>> traces = new ArrayList<List<String>>();
+                        for (int i = 0; i < walks; i++) {
+                            traces.add(walk(fork, (first + i) % walks));
+                        }
+                        return traces;
+                    }
+                }));
+            }
+            for (int t = 0; t < walks; t++) {
+                List<List<String>> traces = results.get(t).get();
+                for (int i = 0; i < walks; i++) {
+                    assertEquals(expected.get((t + i) % walks), traces.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Plays a random game and records every state, with its legal moves and goals. */
+    private static List<String> walk(StateMachine machine, int seed) throws Exception {
+        Random random = new Random(seed);
+        List<String> trace = new ArrayList<String>();
+        MachineState state = machine.getInitialState();
+        while (!machine.isTerminal(state)) {
+            trace.add(describe(state));
+            List<Move> joint = new ArrayList<Move>();
+            for (Role role : machine.getRoles()) {
+                List<Move> moves = new ArrayList<Move>(machine.getLegalMoves(state, role));
+                Collections.sort(moves, new Comparator<Move>() {
+                    @Override
+                    public int compare(Move a, Move b) {
+                        return a.toString().compareTo(b.toString());
+                    }
+                });
+                trace.add(moves.toString());
+                joint.add(moves.get(random.nextInt(moves.size())));
+            }
+            state = machine.getNextState(state, joint);
+        }
+        trace.add(describe(state));
+        trace.add(machine.getGoals(state).toString());
+        return trace;
+    }
+
+    private static String describe(MachineState state) {
+        Set<String> sentences = new TreeSet<String>();
+        for (GdlSentence sentence : state.getContents()) {
+            sentences.add(sentence.toString());
+        }
+        return sentences.toString();
+    }
+
+    @Test
+    public void testTabledProverFindsAllAnswersOfRecursiveRules() throws Exception {
+        List<Gdl> desc = new ArrayList<Gdl>();
+        for (String gdl : new String[] {
+                "(edge a b)", "(edge b c)", "(edge c a)", "(edge c d)",
+                "(<= (path ?x ?y) (edge ?x ?y))",
+                "(<= (path ?x ?y) (path ?x ?z) (path ?z ?y))",
+                "(<= (stuck ?x) (edge ?y ?x) (not (path ?x ?x)))"}) {
+            desc.add(GdlFactory.create(gdl));
+        }
+        AimaProver prover = new AimaProver(desc, true);
+        Set<GdlSentence> context = new HashSet<GdlSentence>();
+
+        Set<GdlSentence> fromA = prover.askAll((GdlSentence) GdlFactory.create("(path a ?y)"), context);
+        assertEquals(4, fromA.size());
+        assertTrue(fromA.contains(GdlFactory.create("(path a a)")));
+        assertEquals(12, prover.askAll((GdlSentence) GdlFactory.create("(path ?x ?y)"), context).size());
+        assertEquals(Collections.singleton(GdlFactory.create("(stuck d)")), prover.askAll((GdlSentence) GdlFactory.create("(stuck ?x)"), context));
+    }
+
+    @Test
+    public void testProverCacheReadsThroughToSharedCache() throws Exception {
+        GdlSentence sentence = (GdlSentence) GdlFactory.create("(cell ?x b)");
+        assertTrue(new ProverCache().get(sentence).isEmpty());
+
+        ProverCache shared = new ProverCache();
+        ProverCache query = new ProverCache(shared);
+        assertTrue(query.get(sentence).isEmpty());
+        query.putAnswers(sentence, Collections.singleton((GdlSentence) GdlFactory.create("(cell 1 b)")), true);
+        assertEquals(1, new ProverCache(shared).get(sentence).size());
+        assertTrue(new ProverCache(shared).get((GdlSentence) GdlFactory.create("(cell ?x x)")).isEmpty());
+    }
+
+    @Test
+    public void testSubstitutionUndoesBindingsToAMark() throws Exception {
+        Substitution theta = new Substitution();
+        for (int i = 0; i < 5; i++) {
+            theta.put(GdlPool.getVariable("?v" + i), GdlPool.getConstant("c" + i));
+        }
+        Substitution before = theta.copy();
+        int mark = theta.mark();
+
+        // Enough new bindings to grow the table, and one that replaces an old one.
+        for (int i = 5; i < 40; i++) {
+            theta.put(GdlPool.getVariable("?v" + i), GdlPool.getConstant("c" + i));
+        }
+        theta.put(GdlPool.getVariable("?v0"), GdlPool.getConstant("other"));
+        assertTrue(Unifier.unify((GdlSentence) GdlFactory.create("(f ?x b)"), (GdlSentence) GdlFactory.create("(f a ?y)"), theta));
+        assertEquals(GdlPool.getConstant("a"), theta.get(GdlPool.getVariable("?x")));
+        Substitution bound = theta.copy();
+        assertFalse(Unifier.unify((GdlSentence) GdlFactory.create("(f ?z ?z)"), (GdlSentence) GdlFactory.create("(f a b)"), theta));
+        assertEquals(bound, theta);
+
+        theta.undo(mark);
+        assertEquals(before, theta);
+        assertEquals(before.hashCode(), theta.hashCode());
+        assertEquals(GdlPool.getConstant("c0"), theta.get(GdlPool.getVariable("?v0")));
+        assertFalse(theta.contains(GdlPool.getVariable("?v5")));
+        assertFalse(theta.contains(GdlPool.getVariable("?x")));
+    }
+
     protected Move move(String description) {
         String[] parts = description.split(" ");
         GdlConstant head = GdlPool.getConstant(parts[0]);
@@ -79,6 +79,10 @@ public class StaticValidationTests {
     public void testCleanNotDistinctValidation() throws Exception {
         validate("test_clean_not_distinct");
     }
+    @Test
+    public void testFactoringValidation() throws Exception {
+        validate("test_factoring");
+    }
     @Test(expected=ValidatorException.class)
     public void testFunctionAritiesDiffer() throws Exception {
     	validate("test_invalid_function_arities_differ");
@@ -0,0 +1,51 @@
+package org.ggp.base.test;
+
+import org.ggp.base.util.statemachine.cache.TtlCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TtlCacheTests extends Assert {
+
+    @Test
+    public void testBoundedCacheEvictsUnreferencedEntries() {
+        TtlCache<Integer, String> cache = new TtlCache<Integer, String>(1, 3);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        // Touch 1 and 3, so that 2 is the only entry the clock hand may take.
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        cache.put(4, "d");
+        assertEquals(3, cache.size());
+        assertFalse(cache.containsKey(2));
+        assertTrue(cache.containsKey(1));
+        assertTrue(cache.containsKey(3));
+        assertTrue(cache.containsKey(4));
+        assertEquals(1, cache.getEvictionCount());
+
+        for (int i = 5; i < 100; i++) {
+            cache.put(i, "x");
+            assertTrue(cache.size() <= 3);
+        }
+        assertNull(cache.get(1));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testPruneAndRemoveFreeSlots() {
+        TtlCache<Integer, String> cache = new TtlCache<Integer, String>(0, 2);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        assertEquals("a", cache.remove(1));
+        assertNull(cache.remove(1));
+        cache.put(3, "c");
+        assertEquals(0, cache.getEvictionCount());
+        cache.prune();
+        assertTrue(cache.isEmpty());
+        cache.put(4, "d");
+        cache.put(5, "e");
+        assertEquals(2, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+}
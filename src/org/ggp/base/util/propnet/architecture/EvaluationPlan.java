@@ -0,0 +1,172 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An EvaluationPlan is the part of a FlatPropNet that a set of queries
+ * depends on: the components upstream of some root propositions. Evaluators
+ * can use a plan to skip the rest of the network, for instance to leave the
+ * goal propositions alone during the steps of a rollout, and only evaluate
+ * them once it ends.
+ *
+ * A plan holds the non-source components of the cone in topological order,
+ * for evaluating it from scratch, and the outputs of every component
+ * restricted to the cone, in the same compressed sparse row form as the
+ * FlatPropNet, for propagating changes within it.
+ */
+public final class EvaluationPlan
+{
+	private final FlatPropNet net;
+	private final boolean[] members;
+	private final int[] componentIds;
+	private final int[] outputOffsets;
+	private final int[] outputIndices;
+
+	/** Creates the plan for the components upstream of the given root components. */
+	public EvaluationPlan(FlatPropNet net, int[] rootIds)
+	{
+		this.net = net;
+		int n = net.size();
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputIndices = net.getInputIndices();
+		members = new boolean[n];
+		int[] stack = new int[n];
+		int top = 0;
+		for (int id : rootIds) {
+			if (id >= 0 && !members[id]) {
+				members[id] = true;
+				stack[top++] = id;
+			}
+		}
+		while (top > 0) {
+			int id = stack[--top];
+			for (int k = inputOffsets[id]; k < inputOffsets[id + 1]; k++) {
+				int input = inputIndices[k];
+				if (!members[input]) {
+					members[input] = true;
+					stack[top++] = input;
+				}
+			}
+		}
+
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id = 0; id < n; id++) {
+			if (members[id] && !net.isSource(id)) {
+				ids.add(id);
+			}
+		}
+		componentIds = new int[ids.size()];
+		for (int i = 0; i < componentIds.length; i++) {
+			componentIds[i] = ids.get(i);
+		}
+
+		int[] allOutputOffsets = net.getOutputOffsets();
+		int[] allOutputIndices = net.getOutputIndices();
+		outputOffsets = new int[n + 1];
+		for (int id = 0; id < n; id++) {
+			int count = 0;
+			for (int k = allOutputOffsets[id]; k < allOutputOffsets[id + 1]; k++) {
+				if (members[allOutputIndices[k]]) {
+					count++;
+				}
+			}
+			outputOffsets[id + 1] = outputOffsets[id] + count;
+		}
+		outputIndices = new int[outputOffsets[n]];
+		int next = 0;
+		for (int id = 0; id < n; id++) {
+			for (int k = allOutputOffsets[id]; k < allOutputOffsets[id + 1]; k++) {
+				if (members[allOutputIndices[k]]) {
+					outputIndices[next++] = allOutputIndices[k];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the plan for the steps of a rollout: the legal propositions,
+	 * the transitions and the terminal proposition.
+	 */
+	public static EvaluationPlan forRollouts(FlatPropNet net)
+	{
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int[] roleLegalIds : net.getLegalIds()) {
+			for (int id : roleLegalIds) {
+				roots.add(id);
+			}
+		}
+		for (int id : net.getBaseTransitionIds()) {
+			roots.add(id);
+		}
+		roots.add(net.getTerminalId());
+		return new EvaluationPlan(net, toArray(roots));
+	}
+
+	/** Returns the plan for the goal propositions. */
+	public static EvaluationPlan forGoals(FlatPropNet net)
+	{
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int[] roleGoalIds : net.getGoalIds()) {
+			for (int id : roleGoalIds) {
+				roots.add(id);
+			}
+		}
+		return new EvaluationPlan(net, toArray(roots));
+	}
+
+	private static int[] toArray(List<Integer> values)
+	{
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	/** Returns the propnet this is a plan for. */
+	public FlatPropNet getNet()
+	{
+		return net;
+	}
+
+	/** Returns whether the given component is in the plan. */
+	public boolean contains(int id)
+	{
+		return members[id];
+	}
+
+	/** Returns the non-source components of the plan, in topological order. The array must not be modified. */
+	public int[] getComponentIds()
+	{
+		return componentIds;
+	}
+
+	/**
+	 * Returns the non-source components of this plan that aren't in the
+	 * other plan, in topological order. These are what needs evaluating on
+	 * top of the other plan to answer this plan's queries.
+	 */
+	public int[] getComponentIdsNotIn(EvaluationPlan other)
+	{
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id : componentIds) {
+			if (!other.contains(id)) {
+				ids.add(id);
+			}
+		}
+		return toArray(ids);
+	}
+
+	/** Returns the offsets of the outputs of each component within the plan. The array must not be modified. */
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	/** Returns the outputs of each component within the plan. The array must not be modified. */
+	public int[] getOutputIndices()
+	{
+		return outputIndices;
+	}
+}
@@ -0,0 +1,267 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * FactorAnalysis splits the base and input propositions of a FlatPropNet
+ * into factors: independent subgames, like the boards of a multi-board
+ * game, that can be searched separately.
+ *
+ * Two propositions are in the same factor if one of them is in the cone
+ * of the transition into a base proposition of the other, or in the cone of
+ * the legal proposition of an input proposition of the other. The goal and
+ * terminal propositions are deliberately left out, since they are what
+ * combines the factors. So the next value of a base proposition only
+ * depends on its own factor, and so does whether a move that affects a
+ * factor is legal.
+ *
+ * Input propositions that don't affect any base proposition, like a noop,
+ * aren't in any factor. Neither are moves without an input proposition, nor
+ * inert base propositions, which nothing reads and nothing changes, like the
+ * constant base propositions folded away by the PropNetOptimizer.
+ */
+public final class FactorAnalysis
+{
+	private static final GdlConstant DOES = GdlPool.getConstant("does");
+
+	private final FlatPropNet net;
+	private final List<Factor> factors;
+	/** The factor of each base and input proposition, indexed by component id. */
+	private final Factor[] factorsById;
+
+	// Union-find over component ids, and scratch space for walking cones;
+	// only used while the factors are worked out.
+	private final int[] parents;
+	private final int[] stack;
+	private final int[] visited;
+	private int round;
+
+	public FactorAnalysis(FlatPropNet net)
+	{
+		this.net = net;
+		int n = net.size();
+		parents = new int[n];
+		for (int i = 0; i < n; i++) {
+			parents[i] = i;
+		}
+		stack = new int[n];
+		visited = new int[n];
+
+		int[] baseIds = net.getBaseIds();
+		int[] transitionIds = net.getBaseTransitionIds();
+		int[] outputOffsets = net.getOutputOffsets();
+		boolean[] inert = new boolean[baseIds.length];
+		for (int i = 0; i < baseIds.length; i++) {
+			boolean driven = uniteWithCone(baseIds[i], transitionIds[i]);
+			inert[i] = !driven && outputOffsets[baseIds[i]] == outputOffsets[baseIds[i] + 1];
+		}
+		GdlSentence[] names = net.getNames();
+		Map<GdlSentence, Integer> inputIds = new HashMap<GdlSentence, Integer>();
+		for (int id : net.getInputIds()) {
+			inputIds.put(names[id], id);
+		}
+		for (int[] roleLegalIds : net.getLegalIds()) {
+			for (int legalId : roleLegalIds) {
+				Integer inputId = inputIds.get(GdlPool.getRelation(DOES, names[legalId].getBody()));
+				if (inputId != null) {
+					uniteWithCone(inputId, legalId);
+				}
+			}
+		}
+
+		// Each factor is named by its first base proposition, so the factors
+		// come out in bit order.
+		Map<Integer, List<Integer>> bitsByRoot = new HashMap<Integer, List<Integer>>();
+		List<Integer> roots = new ArrayList<Integer>();
+		for (int i = 0; i < baseIds.length; i++) {
+			if (inert[i]) {
+				continue;
+			}
+			int root = find(baseIds[i]);
+			List<Integer> bits = bitsByRoot.get(root);
+			if (bits == null) {
+				bits = new ArrayList<Integer>();
+				bitsByRoot.put(root, bits);
+				roots.add(root);
+			}
+			bits.add(i);
+		}
+		Map<Integer, List<Integer>> inputsByRoot = new HashMap<Integer, List<Integer>>();
+		for (int id : net.getInputIds()) {
+			int root = find(id);
+			if (bitsByRoot.containsKey(root)) {
+				List<Integer> inputs = inputsByRoot.get(root);
+				if (inputs == null) {
+					inputs = new ArrayList<Integer>();
+					inputsByRoot.put(root, inputs);
+				}
+				inputs.add(id);
+			}
+		}
+		List<Factor> factors = new ArrayList<Factor>(roots.size());
+		for (int root : roots) {
+			List<Integer> inputs = inputsByRoot.get(root);
+			factors.add(new Factor(factors.size(), toArray(bitsByRoot.get(root)),
+					toArray(inputs == null ? Collections.<Integer>emptyList() : inputs)));
+		}
+		this.factors = Collections.unmodifiableList(factors);
+		factorsById = new Factor[n];
+		for (Factor factor : factors) {
+			for (int bit : factor.baseBits) {
+				factorsById[baseIds[bit]] = factor;
+			}
+			for (int id : factor.inputIds) {
+				factorsById[id] = factor;
+			}
+		}
+	}
+
+	/**
+	 * Puts the given component in the same factor as every base and input
+	 * proposition in the cone of the other, and returns whether there were any.
+	 */
+	private boolean uniteWithCone(int id, int coneId)
+	{
+		byte[] types = net.getTypes();
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputIndices = net.getInputIndices();
+		round++;
+		boolean found = false;
+		int top = 0;
+		stack[top++] = coneId;
+		visited[coneId] = round;
+		while (top > 0) {
+			int c = stack[--top];
+			if (types[c] == FlatPropNet.BASE || types[c] == FlatPropNet.INPUT) {
+				union(id, c);
+				found = true;
+			}
+			for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+				int input = inputIndices[k];
+				if (visited[input] != round) {
+					visited[input] = round;
+					stack[top++] = input;
+				}
+			}
+		}
+		return found;
+	}
+
+	private int find(int id)
+	{
+		while (parents[id] != id) {
+			parents[id] = parents[parents[id]];
+			id = parents[id];
+		}
+		return id;
+	}
+
+	private void union(int a, int b)
+	{
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA != rootB) {
+			parents[rootB] = rootA;
+		}
+	}
+
+	private static int[] toArray(List<Integer> values)
+	{
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	/** Returns the factors, in the order of their first base propositions. */
+	public List<Factor> getFactors()
+	{
+		return factors;
+	}
+
+	/** Returns whether the game splits into more than one factor. */
+	public boolean isFactorable()
+	{
+		return factors.size() > 1;
+	}
+
+	/**
+	 * Returns the factor that the base or input proposition with the given
+	 * component id is in, or null if it isn't in one.
+	 */
+	public Factor getFactor(int id)
+	{
+		return factorsById[id];
+	}
+
+	/** One factor: a set of base propositions, and the input propositions that affect them. */
+	public final class Factor
+	{
+		private final int index;
+		private final int[] baseBits;
+		private final int[] inputIds;
+
+		private Factor(int index, int[] baseBits, int[] inputIds)
+		{
+			this.index = index;
+			this.baseBits = baseBits;
+			this.inputIds = inputIds;
+		}
+
+		/** Returns the position of this factor in the list of factors. */
+		public int getIndex()
+		{
+			return index;
+		}
+
+		/** Returns the bits of the base propositions of this factor, in increasing order. */
+		public int[] getBaseBits()
+		{
+			return Arrays.copyOf(baseBits, baseBits.length);
+		}
+
+		/** Returns the component ids of the input propositions of this factor. */
+		public int[] getInputIds()
+		{
+			return Arrays.copyOf(inputIds, inputIds.length);
+		}
+
+		/** Returns the names of the base propositions of this factor. */
+		public Set<GdlSentence> getBases()
+		{
+			Set<GdlSentence> bases = new HashSet<GdlSentence>();
+			for (int bit : baseBits) {
+				bases.add(net.getNames()[net.getBaseIds()[bit]]);
+			}
+			return Collections.unmodifiableSet(bases);
+		}
+
+		/** Returns the names of the input propositions of this factor. */
+		public Set<GdlSentence> getInputs()
+		{
+			Set<GdlSentence> inputs = new HashSet<GdlSentence>();
+			for (int id : inputIds) {
+				inputs.add(net.getNames()[id]);
+			}
+			return Collections.unmodifiableSet(inputs);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Factor " + index + " (" + baseBits.length + " bases, " + inputIds.length + " inputs)";
+		}
+	}
+}
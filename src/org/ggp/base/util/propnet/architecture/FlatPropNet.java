@@ -0,0 +1,417 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * The FlatPropNet class is a frozen, array-based copy of a PropNet, meant
+ * to back fast evaluators.
+ *
+ * Every component is given an integer id, following a topological ordering
+ * of the network in which the edges from transitions into base propositions
+ * are cut. The type of each component is kept in a byte array, and its
+ * inputs and outputs are kept in compressed sparse row form: the inputs of
+ * component i are inputIndices[inputOffsets[i]] up to (but not including)
+ * inputIndices[inputOffsets[i + 1]], and likewise for the outputs.
+ *
+ * Base propositions have no inputs in the flattened network. Instead, the
+ * transition that feeds each base proposition is recorded alongside it, so
+ * that evaluators can read the next state without treating the loop back
+ * into the bases as an edge.
+ *
+ * The base propositions are numbered in order of their names, which gives
+ * the bit order of states, and the legal and goal propositions of each role
+ * are likewise sorted by name.
+ *
+ * The PropNet object graph is left as it is, so factories and renderToFile
+ * can keep using it. A FlatPropNet can also be stored on disk and read back
+ * without the object graph; see FlatPropNetCache.
+ */
+public final class FlatPropNet
+{
+	/** A base proposition: its value comes from the state. */
+	public static final byte BASE = 0;
+	/** An input proposition: its value comes from the moves. */
+	public static final byte INPUT = 1;
+	/** A constant that is always true. */
+	public static final byte TRUE = 2;
+	/** A constant that is always false. */
+	public static final byte FALSE = 3;
+	/** Any other proposition without inputs, such as INIT. */
+	public static final byte FREE = 4;
+	/** A proposition that is true if any of its inputs is. */
+	public static final byte PROPOSITION = 5;
+	/** A transition: its value is the value of its input. */
+	public static final byte TRANSITION = 6;
+	public static final byte AND = 7;
+	public static final byte OR = 8;
+	public static final byte NOT = 9;
+
+	private final List<Role> roles;
+	private final byte[] types;
+	private final GdlSentence[] names;
+	private final int[] inputOffsets;
+	private final int[] inputIndices;
+	private final int[] outputOffsets;
+	private final int[] outputIndices;
+
+	private final int[] baseIds;
+	private final int[] baseTransitionIds;
+	private final int[] baseInitIds;
+	private final int[] inputIds;
+	private final int[][] legalIds;
+	private final int[][] goalIds;
+	private final int initId;
+	private final int terminalId;
+
+	/** The components of the PropNet this was built from, or null if it was not built from one. */
+	private final Component[] components;
+
+	/**
+	 * Flattens the given PropNet.
+	 *
+	 * @throws IllegalStateException if the network contains a cycle that does
+	 * not pass through a transition.
+	 */
+	public FlatPropNet(PropNet propNet)
+	{
+		this.roles = propNet.getRoles();
+		this.components = sortTopologically(propNet.getComponents());
+		int n = components.length;
+
+		Map<Component, Integer> ids = new IdentityHashMap<Component, Integer>();
+		for (int i = 0; i < n; i++) {
+			ids.put(components[i], i);
+		}
+
+		types = new byte[n];
+		names = new GdlSentence[n];
+		Set<Proposition> inputPropositions = Collections.newSetFromMap(new IdentityHashMap<Proposition, Boolean>());
+		inputPropositions.addAll(propNet.getInputPropositions().values());
+		for (int i = 0; i < n; i++) {
+			Component c = components[i];
+			if (c instanceof Proposition) {
+				names[i] = ((Proposition) c).getName();
+			}
+			types[i] = typeOf(c, inputPropositions);
+		}
+
+		inputOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			inputOffsets[i + 1] = inputOffsets[i] + (types[i] <= FREE ? 0 : components[i].getInputs().size());
+		}
+		inputIndices = new int[inputOffsets[n]];
+		int[] outputCounts = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (types[i] <= FREE) {
+				continue;
+			}
+			int k = inputOffsets[i];
+			for (Component input : components[i].getInputs()) {
+				int inputId = ids.get(input);
+				inputIndices[k++] = inputId;
+				outputCounts[inputId]++;
+			}
+		}
+		outputOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			outputOffsets[i + 1] = outputOffsets[i] + outputCounts[i];
+		}
+		outputIndices = new int[outputOffsets[n]];
+		int[] nextOutput = new int[n];
+		System.arraycopy(outputOffsets, 0, nextOutput, 0, n);
+		for (int i = 0; i < n; i++) {
+			for (int k = inputOffsets[i]; k < inputOffsets[i + 1]; k++) {
+				outputIndices[nextOutput[inputIndices[k]]++] = i;
+			}
+		}
+
+		Map<List<GdlTerm>, Proposition> initPropositions = new HashMap<List<GdlTerm>, Proposition>();
+		for (Proposition p : propNet.getPropositions()) {
+			if (p.getName().getName() == GdlPool.INIT && p.getName().arity() == 1) {
+				initPropositions.put(p.getName().getBody(), p);
+			}
+		}
+		List<Proposition> bases = sortedPropositions(propNet.getBasePropositions().values());
+		baseIds = new int[bases.size()];
+		baseTransitionIds = new int[bases.size()];
+		baseInitIds = new int[bases.size()];
+		for (int i = 0; i < bases.size(); i++) {
+			Proposition base = bases.get(i);
+			baseIds[i] = ids.get(base);
+			baseTransitionIds[i] = ids.get(base.getSingleInput());
+			Proposition init = initPropositions.get(base.getName().getBody());
+			baseInitIds[i] = (init == null) ? -1 : ids.get(init);
+		}
+
+		inputIds = toIds(sortedPropositions(propNet.getInputPropositions().values()), ids);
+		legalIds = new int[roles.size()][];
+		goalIds = new int[roles.size()][];
+		for (int r = 0; r < roles.size(); r++) {
+			legalIds[r] = toIds(sortedPropositions(propNet.getLegalPropositions().get(roles.get(r))), ids);
+			goalIds[r] = toIds(sortedPropositions(propNet.getGoalPropositions().get(roles.get(r))), ids);
+		}
+
+		Proposition init = propNet.getInitProposition();
+		initId = (init == null) ? -1 : ids.get(init);
+		Proposition terminal = propNet.getTerminalProposition();
+		terminalId = (terminal == null) ? -1 : ids.get(terminal);
+	}
+
+	/**
+	 * Creates a FlatPropNet from its arrays, as read back by FlatPropNetCache.
+	 * There are no components to go with it.
+	 */
+	FlatPropNet(List<Role> roles, byte[] types, GdlSentence[] names,
+			int[] inputOffsets, int[] inputIndices, int[] outputOffsets, int[] outputIndices,
+			int[] baseIds, int[] baseTransitionIds, int[] baseInitIds, int[] inputIds,
+			int[][] legalIds, int[][] goalIds, int initId, int terminalId)
+	{
+		this.roles = roles;
+		this.types = types;
+		this.names = names;
+		this.inputOffsets = inputOffsets;
+		this.inputIndices = inputIndices;
+		this.outputOffsets = outputOffsets;
+		this.outputIndices = outputIndices;
+		this.baseIds = baseIds;
+		this.baseTransitionIds = baseTransitionIds;
+		this.baseInitIds = baseInitIds;
+		this.inputIds = inputIds;
+		this.legalIds = legalIds;
+		this.goalIds = goalIds;
+		this.initId = initId;
+		this.terminalId = terminalId;
+		this.components = null;
+	}
+
+	private static byte typeOf(Component c, Set<Proposition> inputPropositions)
+	{
+		if (c instanceof Constant) {
+			return c.getValue() ? TRUE : FALSE;
+		} else if (c instanceof And) {
+			return AND;
+		} else if (c instanceof Or) {
+			return OR;
+		} else if (c instanceof Not) {
+			return NOT;
+		} else if (c instanceof Transition) {
+			return TRANSITION;
+		}
+		Set<Component> inputs = c.getInputs();
+		if (inputs.size() == 1 && inputs.iterator().next() instanceof Transition) {
+			return BASE;
+		} else if (inputPropositions.contains(c)) {
+			return INPUT;
+		} else if (inputs.isEmpty()) {
+			return FREE;
+		}
+		return PROPOSITION;
+	}
+
+	/**
+	 * Orders the components with Kahn's algorithm, ignoring the edges from
+	 * transitions into base propositions. Those edges are where the network
+	 * loops back on itself.
+	 */
+	private static Component[] sortTopologically(Set<Component> componentSet)
+	{
+		List<Component> all = new ArrayList<Component>(componentSet);
+		Map<Component, Integer> remainingInputs = new IdentityHashMap<Component, Integer>();
+		LinkedList<Component> ready = new LinkedList<Component>();
+		for (Component c : all) {
+			int inputCount = isBase(c) ? 0 : c.getInputs().size();
+			remainingInputs.put(c, inputCount);
+			if (inputCount == 0) {
+				ready.add(c);
+			}
+		}
+		List<Component> sorted = new ArrayList<Component>(all.size());
+		while (!ready.isEmpty()) {
+			Component c = ready.removeFirst();
+			sorted.add(c);
+			for (Component output : c.getOutputs()) {
+				if (isBase(output)) {
+					continue;
+				}
+				int remaining = remainingInputs.get(output) - 1;
+				remainingInputs.put(output, remaining);
+				if (remaining == 0) {
+					ready.add(output);
+				}
+			}
+		}
+		if (sorted.size() != all.size()) {
+			throw new IllegalStateException("The propnet contains a cycle that does not pass through a transition.");
+		}
+		return sorted.toArray(new Component[sorted.size()]);
+	}
+
+	private static boolean isBase(Component c)
+	{
+		if (!(c instanceof Proposition)) {
+			return false;
+		}
+		Set<Component> inputs = c.getInputs();
+		return inputs.size() == 1 && inputs.iterator().next() instanceof Transition;
+	}
+
+	private static final Comparator<Proposition> PROPOSITION_ORDER = new Comparator<Proposition>() {
+		@Override
+		public int compare(Proposition a, Proposition b) {
+			return a.getName().toString().compareTo(b.getName().toString());
+		}
+	};
+
+	private static List<Proposition> sortedPropositions(Collection<Proposition> propositions)
+	{
+		if (propositions == null) {
+			return Collections.emptyList();
+		}
+		List<Proposition> sorted = new ArrayList<Proposition>(propositions);
+		Collections.sort(sorted, PROPOSITION_ORDER);
+		return sorted;
+	}
+
+	private static int[] toIds(List<Proposition> propositions, Map<Component, Integer> ids)
+	{
+		int[] result = new int[propositions.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ids.get(propositions.get(i));
+		}
+		return result;
+	}
+
+	/** Returns the number of components. */
+	public int size()
+	{
+		return types.length;
+	}
+
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	/** Returns the type tag of each component. The array must not be modified. */
+	public byte[] getTypes()
+	{
+		return types;
+	}
+
+	/** Returns whether the value of a component is set directly rather than computed from its inputs. */
+	public boolean isSource(int id)
+	{
+		return types[id] <= FREE;
+	}
+
+	/** Returns the name of each proposition, with null for the other components. The array must not be modified. */
+	public GdlSentence[] getNames()
+	{
+		return names;
+	}
+
+	/** Returns the offsets of each component's inputs in getInputIndices(), plus a final end offset. */
+	public int[] getInputOffsets()
+	{
+		return inputOffsets;
+	}
+
+	public int[] getInputIndices()
+	{
+		return inputIndices;
+	}
+
+	/** Returns the offsets of each component's outputs in getOutputIndices(), plus a final end offset. */
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	public int[] getOutputIndices()
+	{
+		return outputIndices;
+	}
+
+	/** Returns the number of inputs of the given component. */
+	public int getInputCount(int id)
+	{
+		return inputOffsets[id + 1] - inputOffsets[id];
+	}
+
+	/** Returns the ids of the base propositions, in bit order. */
+	public int[] getBaseIds()
+	{
+		return baseIds;
+	}
+
+	/** Returns the id of the transition feeding each base proposition, in bit order. */
+	public int[] getBaseTransitionIds()
+	{
+		return baseTransitionIds;
+	}
+
+	/** Returns the id of the (init ?x) proposition of each base proposition, or -1, in bit order. */
+	public int[] getBaseInitIds()
+	{
+		return baseInitIds;
+	}
+
+	/** Returns the ids of the input propositions, sorted by name. */
+	public int[] getInputIds()
+	{
+		return inputIds;
+	}
+
+	/** Returns the ids of the legal propositions of each role, sorted by name. */
+	public int[][] getLegalIds()
+	{
+		return legalIds;
+	}
+
+	/** Returns the ids of the goal propositions of each role, sorted by name. */
+	public int[][] getGoalIds()
+	{
+		return goalIds;
+	}
+
+	/** Returns the id of the INIT proposition, or -1. */
+	public int getInitId()
+	{
+		return initId;
+	}
+
+	/** Returns the id of the terminal proposition, or -1. */
+	public int getTerminalId()
+	{
+		return terminalId;
+	}
+
+	/**
+	 * Returns the components of the PropNet this was built from, indexed by
+	 * id, or null if it was not built from a PropNet.
+	 */
+	public Component[] getComponents()
+	{
+		return components;
+	}
+}
@@ -0,0 +1,360 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * FlatPropNetCache keeps the FlatPropNets built for games on disk, so that
+ * a game that has been played before doesn't need its propnet built again.
+ *
+ * Entries are keyed by a hash of the game's rules that doesn't depend on
+ * the order of the rules, and of a string identifying the pipeline that
+ * built the propnet, so that changes to the factory or the optimizer
+ * passes don't serve stale propnets. Entries are stored in a compact
+ * binary format: a table of the constants used in the proposition names,
+ * followed by the arrays of the FlatPropNet. Entries are memory-mapped
+ * when they are read back. The object graph of the original PropNet is
+ * not stored, so a FlatPropNet loaded from the cache has no components.
+ *
+ * Unreadable entries are treated as missing, and entries are written to a
+ * temporary file first, so several players can share a cache directory.
+ * Every count read from an entry is checked against the size of the entry
+ * before anything is allocated for it, so a corrupt entry can't exhaust the
+ * heap.
+ */
+public final class FlatPropNetCache
+{
+	private static final int MAGIC = 0x4747504E; // "GGPN"
+	private static final int VERSION = 1;
+
+	// Tags for the names of components.
+	private static final byte NO_NAME = 0;
+	private static final byte PROPOSITION = 1;
+	private static final byte RELATION = 2;
+
+	private final File directory;
+
+	/** Creates a cache in the .ggp-propnetcache directory of the user's home directory. */
+	public FlatPropNetCache()
+	{
+		this(new File(System.getProperty("user.home"), ".ggp-propnetcache"));
+	}
+
+	/** Creates a cache in the given directory, which is created if needed. */
+	public FlatPropNetCache(File directory)
+	{
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	/**
+	 * Computes the key of the given rules, built by the given pipeline: the
+	 * SHA1 hash of the pipeline, followed by the textual forms of the rules,
+	 * in sorted order.
+	 */
+	public static String getKey(List<Gdl> rules, String pipeline)
+	{
+		List<String> ruleStrings = new ArrayList<String>(rules.size());
+		for (Gdl rule : rules) {
+			ruleStrings.add(rule.toString());
+		}
+		Collections.sort(ruleStrings);
+		StringBuilder canonicalRules = new StringBuilder();
+		canonicalRules.append(pipeline).append('\n');
+		for (String ruleString : ruleStrings) {
+			canonicalRules.append(ruleString).append('\n');
+		}
+		return BaseHashing.computeSHA1Hash(canonicalRules.toString());
+	}
+
+	private File getFile(List<Gdl> rules, String pipeline)
+	{
+		return new File(directory, getKey(rules, pipeline) + ".propnet");
+	}
+
+	/**
+	 * Returns the FlatPropNet stored for the given rules by the given
+	 * pipeline, or null if there is none or it can't be read.
+	 */
+	public FlatPropNet load(List<Gdl> rules, String pipeline)
+	{
+		File file = getFile(rules, pipeline);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// A truncated or outdated entry is just a cache miss.
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the given FlatPropNet for the given rules. The pipeline is a
+	 * string that changes whenever the propnets built for the same rules
+	 * may change.
+	 */
+	public void store(List<Gdl> rules, String pipeline, FlatPropNet net)
+	{
+		File file = getFile(rules, pipeline);
+		try {
+			File temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+			boolean written = false;
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+				try {
+					write(net, out);
+				} finally {
+					out.close();
+				}
+				written = true;
+			} finally {
+				if (!written) {
+					// Don't leave partial entries in a shared directory.
+					temporaryFile.delete();
+				}
+			}
+			if (!temporaryFile.renameTo(file)) {
+				// Somebody else got there first, or the platform won't replace files.
+				temporaryFile.delete();
+			}
+		} catch (IOException e) {
+			GamerLogger.logStackTrace("StateMachine", e);
+		}
+	}
+
+	static void write(FlatPropNet net, DataOutputStream out) throws IOException
+	{
+		GdlSentence[] names = net.getNames();
+		List<GdlConstant> constants = new ArrayList<GdlConstant>();
+		Map<GdlConstant, Integer> constantIds = new HashMap<GdlConstant, Integer>();
+		for (Role role : net.getRoles()) {
+			addConstant(role.getName(), constants, constantIds);
+		}
+		for (GdlSentence name : names) {
+			if (name != null) {
+				addConstant(name.getName(), constants, constantIds);
+				for (GdlTerm term : name.getBody()) {
+					addConstants(term, constants, constantIds);
+				}
+			}
+		}
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(constants.size());
+		for (GdlConstant constant : constants) {
+			byte[] bytes = constant.getValue().getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.writeInt(net.getRoles().size());
+		for (Role role : net.getRoles()) {
+			out.writeInt(constantIds.get(role.getName()));
+		}
+
+		out.writeInt(net.size());
+		out.write(net.getTypes());
+		for (GdlSentence name : names) {
+			if (name == null) {
+				out.writeByte(NO_NAME);
+			} else if (name instanceof GdlProposition) {
+				out.writeByte(PROPOSITION);
+				out.writeInt(constantIds.get(name.getName()));
+			} else {
+				out.writeByte(RELATION);
+				out.writeInt(constantIds.get(name.getName()));
+				out.writeInt(name.arity());
+				for (GdlTerm term : name.getBody()) {
+					writeTerm(term, constantIds, out);
+				}
+			}
+		}
+
+		writeInts(net.getInputOffsets(), out);
+		writeInts(net.getInputIndices(), out);
+		writeInts(net.getOutputOffsets(), out);
+		writeInts(net.getOutputIndices(), out);
+		writeInts(net.getBaseIds(), out);
+		writeInts(net.getBaseTransitionIds(), out);
+		writeInts(net.getBaseInitIds(), out);
+		writeInts(net.getInputIds(), out);
+		for (int r = 0; r < net.getRoles().size(); r++) {
+			writeInts(net.getLegalIds()[r], out);
+			writeInts(net.getGoalIds()[r], out);
+		}
+		out.writeInt(net.getInitId());
+		out.writeInt(net.getTerminalId());
+	}
+
+	private static void addConstant(GdlConstant constant, List<GdlConstant> constants, Map<GdlConstant, Integer> constantIds)
+	{
+		if (!constantIds.containsKey(constant)) {
+			constantIds.put(constant, constants.size());
+			constants.add(constant);
+		}
+	}
+
+	private static void addConstants(GdlTerm term, List<GdlConstant> constants, Map<GdlConstant, Integer> constantIds)
+	{
+		if (term instanceof GdlConstant) {
+			addConstant((GdlConstant) term, constants, constantIds);
+		} else if (term instanceof GdlFunction) {
+			GdlFunction function = (GdlFunction) term;
+			addConstant(function.getName(), constants, constantIds);
+			for (GdlTerm argument : function.getBody()) {
+				addConstants(argument, constants, constantIds);
+			}
+		} else {
+			throw new IllegalArgumentException("Proposition names must be ground, but found " + term);
+		}
+	}
+
+	/**
+	 * Constants are written as their index in the constant table, and
+	 * functions as the complement of the index of their name, followed by
+	 * their arity and arguments.
+	 */
+	private static void writeTerm(GdlTerm term, Map<GdlConstant, Integer> constantIds, DataOutputStream out) throws IOException
+	{
+		if (term instanceof GdlConstant) {
+			out.writeInt(constantIds.get(term));
+		} else {
+			GdlFunction function = (GdlFunction) term;
+			out.writeInt(~constantIds.get(function.getName()));
+			out.writeInt(function.arity());
+			for (GdlTerm argument : function.getBody()) {
+				writeTerm(argument, constantIds, out);
+			}
+		}
+	}
+
+	private static void writeInts(int[] values, DataOutputStream out) throws IOException
+	{
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	static FlatPropNet read(ByteBuffer in) throws IOException
+	{
+		if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+			throw new IOException("Not a propnet cache entry, or from another version");
+		}
+		GdlConstant[] constants = new GdlConstant[readCount(in, 4)];
+		for (int i = 0; i < constants.length; i++) {
+			byte[] bytes = new byte[readCount(in, 1)];
+			in.get(bytes);
+			constants[i] = GdlPool.getConstant(new String(bytes, "UTF-8"));
+		}
+		List<Role> roles = new ArrayList<Role>();
+		int roleCount = readCount(in, 4);
+		for (int r = 0; r < roleCount; r++) {
+			roles.add(new Role(constants[in.getInt()]));
+		}
+
+		// Each component has a type and a name tag.
+		int n = readCount(in, 2);
+		byte[] types = new byte[n];
+		in.get(types);
+		GdlSentence[] names = new GdlSentence[n];
+		for (int i = 0; i < n; i++) {
+			byte tag = in.get();
+			if (tag == PROPOSITION) {
+				names[i] = GdlPool.getProposition(constants[in.getInt()]);
+			} else if (tag == RELATION) {
+				GdlConstant name = constants[in.getInt()];
+				GdlTerm[] body = new GdlTerm[readCount(in, 4)];
+				for (int j = 0; j < body.length; j++) {
+					body[j] = readTerm(constants, in);
+				}
+				names[i] = GdlPool.getRelation(name, body);
+			}
+		}
+
+		int[] inputOffsets = readInts(in);
+		int[] inputIndices = readInts(in);
+		int[] outputOffsets = readInts(in);
+		int[] outputIndices = readInts(in);
+		int[] baseIds = readInts(in);
+		int[] baseTransitionIds = readInts(in);
+		int[] baseInitIds = readInts(in);
+		int[] inputIds = readInts(in);
+		int[][] legalIds = new int[roleCount][];
+		int[][] goalIds = new int[roleCount][];
+		for (int r = 0; r < roleCount; r++) {
+			legalIds[r] = readInts(in);
+			goalIds[r] = readInts(in);
+		}
+		int initId = in.getInt();
+		int terminalId = in.getInt();
+		return new FlatPropNet(roles, types, names, inputOffsets, inputIndices, outputOffsets, outputIndices,
+				baseIds, baseTransitionIds, baseInitIds, inputIds, legalIds, goalIds, initId, terminalId);
+	}
+
+	private static GdlTerm readTerm(GdlConstant[] constants, ByteBuffer in) throws IOException
+	{
+		int code = in.getInt();
+		if (code >= 0) {
+			return constants[code];
+		}
+		GdlConstant name = constants[~code];
+		GdlTerm[] body = new GdlTerm[readCount(in, 4)];
+		for (int j = 0; j < body.length; j++) {
+			body[j] = readTerm(constants, in);
+		}
+		return GdlPool.getFunction(name, body);
+	}
+
+	private static int[] readInts(ByteBuffer in) throws IOException
+	{
+		int[] values = new int[readCount(in, 4)];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + 4 * values.length);
+		return values;
+	}
+
+	/**
+	 * Reads the number of elements that follow, each taking at least the
+	 * given number of bytes, and checks that the rest of the entry can
+	 * hold that many.
+	 */
+	private static int readCount(ByteBuffer in, int minElementSize) throws IOException
+	{
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / minElementSize) {
+			throw new IOException("Corrupt propnet cache entry: " + count + " elements in " + in.remaining() + " bytes");
+		}
+		return count;
+	}
+}
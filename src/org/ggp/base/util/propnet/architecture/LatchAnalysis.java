@@ -0,0 +1,255 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * LatchAnalysis finds the base propositions of a FlatPropNet whose values
+ * are locked in:
+ *
+ * - A positive latch stays true once it is true, like a filled cell in
+ *   Connect Four.
+ * - A negative latch stays false once it is false.
+ * - A constant base proposition has the same value in every reachable
+ *   state, like a static adjacency fact: it is a positive latch that is
+ *   initially true, or a negative latch that is initially false.
+ *
+ * Latches are found by evaluating the transition into each base proposition
+ * with three-valued logic, with the base proposition itself fixed and every
+ * other base and input proposition unknown. If the transition comes out
+ * true (or false) regardless, the base proposition is a positive (or
+ * negative) latch. Constant base propositions found this way are then fixed
+ * in turn, which may reveal more of them.
+ *
+ * Constant base propositions can be folded out of the propnet entirely,
+ * and latches are a pruning signal for gamers: once a positive latch that
+ * decides a goal is set, searching further doesn't change that goal.
+ */
+public final class LatchAnalysis
+{
+	private static final byte FALSE = 0;
+	private static final byte TRUE = 1;
+	private static final byte UNKNOWN = 2;
+
+	private final FlatPropNet net;
+	private final boolean[] positiveLatches;
+	private final boolean[] negativeLatches;
+	/** The value of each base proposition in every reachable state, or UNKNOWN. */
+	private final byte[] constantValues;
+	/** The bit of each base proposition, indexed by component id. */
+	private final int[] bits;
+
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputIndices;
+
+	// The current evaluation: which base proposition is fixed to which
+	// value, the value of INIT, and the values of the components evaluated
+	// so far, which are valid where visited matches the current round.
+	private int fixedId;
+	private byte fixedValue;
+	private byte initValue;
+	private final byte[] memo;
+	private final int[] visited;
+	private int round;
+
+	public LatchAnalysis(FlatPropNet net)
+	{
+		this.net = net;
+		this.types = net.getTypes();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputIndices = net.getInputIndices();
+		int[] baseIds = net.getBaseIds();
+		positiveLatches = new boolean[baseIds.length];
+		negativeLatches = new boolean[baseIds.length];
+		constantValues = new byte[baseIds.length];
+		Arrays.fill(constantValues, UNKNOWN);
+		bits = new int[net.size()];
+		for (int i = 0; i < baseIds.length; i++) {
+			bits[baseIds[i]] = i;
+		}
+		memo = new byte[net.size()];
+		visited = new int[net.size()];
+
+		byte[] initialValues = new byte[baseIds.length];
+		int[] baseInitIds = net.getBaseInitIds();
+		for (int i = 0; i < baseIds.length; i++) {
+			initialValues[i] = (baseInitIds[i] < 0) ? FALSE : evaluate(baseInitIds[i], -1, UNKNOWN, true);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < baseIds.length; i++) {
+				if (constantValues[i] != UNKNOWN) {
+					continue;
+				}
+				int transitionId = net.getBaseTransitionIds()[i];
+				positiveLatches[i] = evaluate(transitionId, baseIds[i], TRUE, false) == TRUE;
+				negativeLatches[i] = evaluate(transitionId, baseIds[i], FALSE, false) == FALSE;
+				if ((positiveLatches[i] && initialValues[i] == TRUE) || (negativeLatches[i] && initialValues[i] == FALSE)) {
+					constantValues[i] = initialValues[i];
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the given component, with the given base proposition fixed
+	 * to the given value, the constant base propositions found so far fixed
+	 * to their values, and the INIT proposition fixed to whether this is the
+	 * initial state.
+	 */
+	private byte evaluate(int id, int fixedId, byte fixedValue, boolean initial)
+	{
+		this.fixedId = fixedId;
+		this.fixedValue = fixedValue;
+		this.initValue = initial ? TRUE : FALSE;
+		round++;
+		return evaluate(id);
+	}
+
+	private byte evaluate(int id)
+	{
+		if (visited[id] == round) {
+			return memo[id];
+		}
+		byte value;
+		int start = inputOffsets[id];
+		int end = inputOffsets[id + 1];
+		if (id == fixedId) {
+			value = fixedValue;
+		} else if (id == net.getInitId()) {
+			value = initValue;
+		} else {
+			switch (types[id]) {
+			case FlatPropNet.TRUE:
+				value = TRUE;
+				break;
+			case FlatPropNet.FALSE:
+				value = FALSE;
+				break;
+			case FlatPropNet.BASE:
+				value = (initValue == TRUE) ? UNKNOWN : constantValues[bits[id]];
+				break;
+			case FlatPropNet.INPUT:
+				value = UNKNOWN;
+				break;
+			case FlatPropNet.FREE:
+				value = FALSE;
+				break;
+			case FlatPropNet.AND:
+				value = TRUE;
+				for (int i = start; i < end && value != FALSE; i++) {
+					byte input = evaluate(inputIndices[i]);
+					if (input != TRUE) {
+						value = input;
+					}
+				}
+				break;
+			case FlatPropNet.OR:
+			case FlatPropNet.PROPOSITION:
+			case FlatPropNet.TRANSITION:
+				value = FALSE;
+				for (int i = start; i < end && value != TRUE; i++) {
+					byte input = evaluate(inputIndices[i]);
+					if (input != FALSE) {
+						value = input;
+					}
+				}
+				break;
+			case FlatPropNet.NOT:
+				value = negate(evaluate(inputIndices[start]));
+				break;
+			default:
+				throw new IllegalStateException("Unknown component type " + types[id]);
+			}
+		}
+		visited[id] = round;
+		memo[id] = value;
+		return value;
+	}
+
+	private static byte negate(byte value)
+	{
+		return (value == UNKNOWN) ? UNKNOWN : (byte) (1 - value);
+	}
+
+	/** Returns whether the base proposition with the given bit stays true once it is true. */
+	public boolean isPositiveLatch(int bit)
+	{
+		return positiveLatches[bit];
+	}
+
+	/** Returns whether the base proposition with the given bit stays false once it is false. */
+	public boolean isNegativeLatch(int bit)
+	{
+		return negativeLatches[bit];
+	}
+
+	/** Returns whether the base proposition with the given bit has the same value in every reachable state. */
+	public boolean isConstant(int bit)
+	{
+		return constantValues[bit] != UNKNOWN;
+	}
+
+	/** Returns the value of a constant base proposition. */
+	public boolean getConstantValue(int bit)
+	{
+		if (constantValues[bit] == UNKNOWN) {
+			throw new IllegalArgumentException("Base proposition " + bit + " is not constant");
+		}
+		return constantValues[bit] == TRUE;
+	}
+
+	/** Returns the names of the positive latches. */
+	public Set<GdlSentence> getPositiveLatches()
+	{
+		return getNames(positiveLatches);
+	}
+
+	/** Returns the names of the negative latches. */
+	public Set<GdlSentence> getNegativeLatches()
+	{
+		return getNames(negativeLatches);
+	}
+
+	/** Returns the names of the base propositions that are true in every reachable state. */
+	public Set<GdlSentence> getAlwaysTrueBases()
+	{
+		return getConstantNames(TRUE);
+	}
+
+	/** Returns the names of the base propositions that are false in every reachable state. */
+	public Set<GdlSentence> getAlwaysFalseBases()
+	{
+		return getConstantNames(FALSE);
+	}
+
+	private Set<GdlSentence> getNames(boolean[] flags)
+	{
+		Set<GdlSentence> names = new HashSet<GdlSentence>();
+		for (int i = 0; i < flags.length; i++) {
+			if (flags[i]) {
+				names.add(net.getNames()[net.getBaseIds()[i]]);
+			}
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	private Set<GdlSentence> getConstantNames(byte value)
+	{
+		Set<GdlSentence> names = new HashSet<GdlSentence>();
+		for (int i = 0; i < constantValues.length; i++) {
+			if (constantValues[i] == value) {
+				names.add(net.getNames()[net.getBaseIds()[i]]);
+			}
+		}
+		return Collections.unmodifiableSet(names);
+	}
+}
@@ -0,0 +1,569 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * SymmetryAnalysis finds the symmetries of a FlatPropNet: the permutations
+ * of its components that map the network onto itself, like the rotations
+ * and reflections of a Tic-Tac-Toe board. Such a permutation maps each base
+ * proposition to one whose transition it maps to the transition of the
+ * original, each legal proposition to one for the same role whose input
+ * proposition it maps to the input proposition of the original, and every
+ * goal and terminal proposition to itself. So it maps states to states
+ * with the same goals, legal moves to legal moves and next states to next
+ * states, and search only needs to look at one of each set of symmetric
+ * states.
+ *
+ * The symmetries are found as automorphisms of the network graph, the way
+ * graph automorphism tools like nauty do it: components are colored by
+ * their type and role, the colors are refined by the colors of the inputs
+ * and outputs of each component until nothing changes, and the components
+ * that are still ambiguous are then fixed one at a time and refined again,
+ * until each color picks out a single component and the colors define a
+ * permutation. Every permutation found that way is checked against the
+ * network before it is accepted, so the symmetries are exact, but the
+ * search gives up after a fixed amount of work, in which case only some of
+ * them may be found, and isComplete() returns false.
+ *
+ * Roles are never swapped, even in games whose roles are symmetric, since
+ * that would change the meaning of goals.
+ */
+public final class SymmetryAnalysis
+{
+	/** The most symmetries kept, including the identity; canonicalizing a state tries all of them. */
+	public static final int MAX_SYMMETRIES = 128;
+
+	/** How many component visits and sort steps the search may spend on refinement before it gives up. */
+	private static final long WORK_LIMIT = 50000000L;
+
+	private static final GdlConstant DOES = GdlPool.getConstant("does");
+
+	// Tags for the initial colors and for the edges between components that
+	// belong together without being wired together.
+	private static final long INDIVIDUALIZED = 1;
+	private static final long LEGAL = 2;
+	private static final long INPUT = 3;
+	private static final long GOAL = 4;
+	private static final long TERMINAL = 5;
+	private static final long TRANSITION_OF = 6;
+	private static final long BASE_OF = 7;
+	private static final long MOVE_OF = 8;
+	private static final long LEGAL_OF = 9;
+
+	private final FlatPropNet net;
+	private final int n;
+	private final int[] inputOffsets;
+	private final int[] inputIndices;
+	private final int[] outputOffsets;
+	private final int[] outputIndices;
+	/** The component each component belongs with, if any, and the tag of that link. */
+	private final int[] partners;
+	private final long[] partnerTags;
+	private final long[] initialColors;
+
+	private long work;
+	private final long[] scratch;
+
+	private final List<int[]> generators;
+	private final List<int[]> symmetries;
+
+	public SymmetryAnalysis(FlatPropNet net)
+	{
+		this.net = net;
+		this.n = net.size();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputIndices = net.getInputIndices();
+		this.outputOffsets = net.getOutputOffsets();
+		this.outputIndices = net.getOutputIndices();
+		this.scratch = new long[n];
+
+		partners = new int[n];
+		partnerTags = new long[n];
+		Arrays.fill(partners, -1);
+		initialColors = new long[n];
+		byte[] types = net.getTypes();
+		for (int id = 0; id < n; id++) {
+			initialColors[id] = mix(types[id]);
+		}
+		int[] baseIds = net.getBaseIds();
+		int[] transitionIds = net.getBaseTransitionIds();
+		for (int i = 0; i < baseIds.length; i++) {
+			link(baseIds[i], transitionIds[i], TRANSITION_OF, BASE_OF);
+		}
+		GdlSentence[] names = net.getNames();
+		List<Role> roles = net.getRoles();
+		Map<GdlSentence, Integer> inputIds = new HashMap<GdlSentence, Integer>();
+		for (int id : net.getInputIds()) {
+			inputIds.put(names[id], id);
+			Role role = new Role((GdlConstant) names[id].get(0));
+			initialColors[id] = combine(initialColors[id], combine(INPUT, roles.indexOf(role)));
+		}
+		for (int r = 0; r < roles.size(); r++) {
+			for (int id : net.getLegalIds()[r]) {
+				initialColors[id] = combine(initialColors[id], combine(LEGAL, r));
+				Integer inputId = inputIds.get(GdlPool.getRelation(DOES, names[id].getBody()));
+				if (inputId != null) {
+					link(id, inputId, MOVE_OF, LEGAL_OF);
+				}
+			}
+			for (int id : net.getGoalIds()[r]) {
+				initialColors[id] = combine(initialColors[id], combine(combine(GOAL, r), names[id].get(1).hashCode()));
+			}
+		}
+		if (net.getTerminalId() >= 0) {
+			initialColors[net.getTerminalId()] = combine(initialColors[net.getTerminalId()], TERMINAL);
+		}
+
+		generators = Collections.unmodifiableList(findGenerators());
+		symmetries = Collections.unmodifiableList(close(generators));
+		if (!isComplete()) {
+			GamerLogger.log("StateMachine", "Symmetry search of " + n + " components gave up after " + work
+					+ " steps; keeping the " + symmetries.size() + " symmetries found.");
+		}
+	}
+
+	private void link(int a, int b, long tagOfA, long tagOfB)
+	{
+		partners[a] = b;
+		partnerTags[a] = tagOfA;
+		partners[b] = a;
+		partnerTags[b] = tagOfB;
+	}
+
+	/**
+	 * Returns the automorphisms the symmetries were generated from, as maps
+	 * from component ids to component ids. Some of them may only shuffle
+	 * internal components.
+	 */
+	public List<int[]> getGenerators()
+	{
+		return generators;
+	}
+
+	/**
+	 * Returns the symmetries of the propnet other than the identity, as maps
+	 * from component ids to component ids. If there are more than
+	 * MAX_SYMMETRIES, this is a subgroup of them.
+	 */
+	public List<int[]> getSymmetries()
+	{
+		return symmetries;
+	}
+
+	/**
+	 * Returns whether the search finished within its work limit. If not, the
+	 * symmetries are a subgroup of the ones that exist, possibly only the
+	 * identity.
+	 */
+	public boolean isComplete()
+	{
+		return work <= WORK_LIMIT;
+	}
+
+	/** Returns whether the propnet has any symmetries besides the identity. */
+	public boolean hasSymmetries()
+	{
+		return !symmetries.isEmpty();
+	}
+
+	/** Returns the permutation of the state bits that the given symmetry makes. */
+	public int[] getBasePermutation(int[] symmetry)
+	{
+		int[] baseIds = net.getBaseIds();
+		int[] bits = new int[n];
+		for (int i = 0; i < baseIds.length; i++) {
+			bits[baseIds[i]] = i;
+		}
+		int[] permutation = new int[baseIds.length];
+		for (int i = 0; i < baseIds.length; i++) {
+			permutation[i] = bits[symmetry[baseIds[i]]];
+		}
+		return permutation;
+	}
+
+	/**
+	 * Returns the permutation of the legal propositions of the given role
+	 * that the given symmetry makes, as indices into FlatPropNet.getLegalIds().
+	 */
+	public int[] getLegalPermutation(int[] symmetry, int roleIndex)
+	{
+		int[] legalIds = net.getLegalIds()[roleIndex];
+		Map<Integer, Integer> indices = new HashMap<Integer, Integer>();
+		for (int i = 0; i < legalIds.length; i++) {
+			indices.put(legalIds[i], i);
+		}
+		int[] permutation = new int[legalIds.length];
+		for (int i = 0; i < legalIds.length; i++) {
+			permutation[i] = indices.get(symmetry[legalIds[i]]);
+		}
+		return permutation;
+	}
+
+	/**
+	 * Finds a set of generators of the automorphism group. The colors are
+	 * refined along a path that always fixes the first ambiguous component
+	 * of the smallest ambiguous color; then, from the deepest level of the
+	 * path up, the search looks for an automorphism mapping the component
+	 * fixed at that level to each other component of its color, skipping
+	 * the ones that the automorphisms found so far already map it to.
+	 */
+	private List<int[]> findGenerators()
+	{
+		List<int[]> found = new ArrayList<int[]>();
+		List<long[]> path = new ArrayList<long[]>();
+		List<Integer> fixed = new ArrayList<Integer>();
+		long[] colors = initialColors.clone();
+		if (!refine(colors, null)) {
+			return found;
+		}
+		while (true) {
+			path.add(colors);
+			int v = pickComponent(colors);
+			if (v < 0) {
+				break;
+			}
+			fixed.add(v);
+			colors = individualize(colors, v);
+			if (!refine(colors, null)) {
+				return found;
+			}
+		}
+
+		int[] orbits = new int[n];
+		for (int i = 0; i < n; i++) {
+			orbits[i] = i;
+		}
+		for (int level = fixed.size() - 1; level >= 0; level--) {
+			long[] levelColors = path.get(level);
+			int v = fixed.get(level);
+			for (int w = 0; w < n; w++) {
+				if (w == v || levelColors[w] != levelColors[v] || find(orbits, w) == find(orbits, v)) {
+					continue;
+				}
+				long[] a = individualize(levelColors, v);
+				long[] b = individualize(levelColors, w);
+				int[] automorphism = refine(a, b) ? search(a, b) : null;
+				if (work > WORK_LIMIT) {
+					return found;
+				}
+				if (automorphism != null) {
+					found.add(automorphism);
+					for (int i = 0; i < n; i++) {
+						union(orbits, i, automorphism[i]);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Looks for an automorphism that maps each component colored in the
+	 * first coloring to the component of the same color in the second.
+	 */
+	private int[] search(long[] a, long[] b)
+	{
+		if (work > WORK_LIMIT) {
+			return null;
+		}
+		int v = pickComponent(a);
+		if (v < 0) {
+			return checkLeaf(a, b);
+		}
+		for (int w = 0; w < n; w++) {
+			if (b[w] != a[v]) {
+				continue;
+			}
+			long[] nextA = individualize(a, v);
+			long[] nextB = individualize(b, w);
+			if (refine(nextA, nextB)) {
+				int[] automorphism = search(nextA, nextB);
+				if (automorphism != null) {
+					return automorphism;
+				}
+			}
+			if (work > WORK_LIMIT) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the permutation defined by two colorings in which every color
+	 * picks out a single component, if it is an automorphism, or null.
+	 */
+	private int[] checkLeaf(long[] a, long[] b)
+	{
+		work += n + inputIndices.length;
+		Map<Long, Integer> byColor = new HashMap<Long, Integer>();
+		for (int id = 0; id < n; id++) {
+			byColor.put(b[id], id);
+		}
+		int[] map = new int[n];
+		for (int id = 0; id < n; id++) {
+			Integer image = byColor.get(a[id]);
+			if (image == null) {
+				return null;
+			}
+			map[id] = image;
+		}
+		for (int id = 0; id < n; id++) {
+			int image = map[id];
+			if (initialColors[id] != initialColors[image]
+					|| inputOffsets[id + 1] - inputOffsets[id] != inputOffsets[image + 1] - inputOffsets[image]
+					|| (partners[id] < 0 ? partners[image] >= 0 : partners[image] != map[partners[id]] || partnerTags[id] != partnerTags[image])) {
+				return null;
+			}
+			int[] inputs = Arrays.copyOfRange(inputIndices, inputOffsets[image], inputOffsets[image + 1]);
+			int[] mappedInputs = new int[inputs.length];
+			for (int k = 0; k < mappedInputs.length; k++) {
+				mappedInputs[k] = map[inputIndices[inputOffsets[id] + k]];
+			}
+			Arrays.sort(inputs);
+			Arrays.sort(mappedInputs);
+			if (!Arrays.equals(inputs, mappedInputs)) {
+				return null;
+			}
+		}
+		return map;
+	}
+
+	/** Returns the first component of the smallest color shared by several components, or -1 if there is none. */
+	private int pickComponent(long[] colors)
+	{
+		long[] sorted = sort(colors);
+		long bestColor = 0;
+		int bestSize = Integer.MAX_VALUE;
+		for (int i = 0; i < n; ) {
+			int j = i;
+			while (j < n && sorted[j] == sorted[i]) {
+				j++;
+			}
+			if (j - i > 1 && j - i < bestSize) {
+				bestSize = j - i;
+				bestColor = sorted[i];
+			}
+			i = j;
+		}
+		if (bestSize == Integer.MAX_VALUE) {
+			return -1;
+		}
+		for (int id = 0; id < n; id++) {
+			if (colors[id] == bestColor) {
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	private static long[] individualize(long[] colors, int id)
+	{
+		long[] result = colors.clone();
+		result[id] = combine(result[id], INDIVIDUALIZED);
+		return result;
+	}
+
+	/**
+	 * Refines the given colorings in lockstep, until the number of colors
+	 * stops growing. Returns false if the second coloring stops having the
+	 * same colors as the first, so that no automorphism can map one onto
+	 * the other, or if the search runs out of work.
+	 */
+	private boolean refine(long[] a, long[] b)
+	{
+		int classes = countClasses(a);
+		while (true) {
+			step(a);
+			if (b != null) {
+				step(b);
+				if (!sameColors(a, b)) {
+					return false;
+				}
+			}
+			if (work > WORK_LIMIT) {
+				return false;
+			}
+			int newClasses = countClasses(a);
+			if (newClasses == classes) {
+				return true;
+			}
+			classes = newClasses;
+		}
+	}
+
+	/**
+	 * Recolors each component by its color and the multisets of the colors
+	 * of its inputs and outputs. Multisets are hashed as sums, so the order
+	 * of the inputs and outputs doesn't matter.
+	 */
+	private void step(long[] colors)
+	{
+		long[] next = scratch;
+		for (int id = 0; id < n; id++) {
+			long inputSum = 0;
+			for (int k = inputOffsets[id]; k < inputOffsets[id + 1]; k++) {
+				inputSum += mix(colors[inputIndices[k]]);
+			}
+			long outputSum = 0;
+			for (int k = outputOffsets[id]; k < outputOffsets[id + 1]; k++) {
+				outputSum += mix(colors[outputIndices[k]] ^ 0x5555555555555555L);
+			}
+			long color = combine(combine(colors[id], inputSum), outputSum);
+			if (partners[id] >= 0) {
+				color = combine(color, combine(partnerTags[id], colors[partners[id]]));
+			}
+			next[id] = color;
+		}
+		System.arraycopy(next, 0, colors, 0, n);
+		work += n + inputIndices.length + outputIndices.length;
+	}
+
+	private int countClasses(long[] colors)
+	{
+		long[] sorted = sort(colors);
+		int classes = (n == 0) ? 0 : 1;
+		for (int i = 1; i < n; i++) {
+			if (sorted[i] != sorted[i - 1]) {
+				classes++;
+			}
+		}
+		return classes;
+	}
+
+	private boolean sameColors(long[] a, long[] b)
+	{
+		return Arrays.equals(sort(a), sort(b));
+	}
+
+	/** Returns a sorted copy of the given coloring, counting the n log n steps of the sort as work. */
+	private long[] sort(long[] colors)
+	{
+		long[] sorted = colors.clone();
+		Arrays.sort(sorted);
+		work += (long) n * (64 - Long.numberOfLeadingZeros(n));
+		return sorted;
+	}
+
+	/**
+	 * Returns the group generated by the given generators, less the identity.
+	 * Symmetries are told apart by what they do to the base and legal
+	 * propositions that matter; many propnets have automorphisms that only
+	 * shuffle interchangeable internal components, and those are dropped. If the
+	 * group is larger than MAX_SYMMETRIES, generators are dropped until it
+	 * isn't.
+	 */
+	private List<int[]> close(List<int[]> generators)
+	{
+		// Base propositions that nothing reads, like the constant ones the
+		// PropNetOptimizer folds away, can be swapped freely too.
+		List<Integer> visible = new ArrayList<Integer>();
+		for (int id : net.getBaseIds()) {
+			if (outputOffsets[id] < outputOffsets[id + 1]) {
+				visible.add(id);
+			}
+		}
+		for (int[] roleLegalIds : net.getLegalIds()) {
+			for (int id : roleLegalIds) {
+				visible.add(id);
+			}
+		}
+		List<int[]> kept = new ArrayList<int[]>();
+		List<int[]> group = close(kept, visible);
+		for (int[] generator : generators) {
+			kept.add(generator);
+			List<int[]> larger = close(kept, visible);
+			if (larger == null || larger.size() == group.size()) {
+				kept.remove(kept.size() - 1);
+			} else {
+				group = larger;
+			}
+		}
+		return group.subList(1, group.size());
+	}
+
+	/**
+	 * Returns the group generated by the given generators, starting with the
+	 * identity, or null if it has more than MAX_SYMMETRIES elements.
+	 */
+	private List<int[]> close(List<int[]> generators, List<Integer> visible)
+	{
+		int[] identity = new int[n];
+		for (int i = 0; i < n; i++) {
+			identity[i] = i;
+		}
+		List<int[]> group = new ArrayList<int[]>();
+		Set<List<Integer>> seen = new HashSet<List<Integer>>();
+		group.add(identity);
+		seen.add(restrict(identity, visible));
+		for (int i = 0; i < group.size(); i++) {
+			for (int[] generator : generators) {
+				int[] product = new int[n];
+				for (int id = 0; id < n; id++) {
+					product[id] = generator[group.get(i)[id]];
+				}
+				if (seen.add(restrict(product, visible))) {
+					if (group.size() == MAX_SYMMETRIES) {
+						return null;
+					}
+					group.add(product);
+				}
+			}
+		}
+		return group;
+	}
+
+	private static List<Integer> restrict(int[] map, List<Integer> ids)
+	{
+		List<Integer> images = new ArrayList<Integer>(ids.size());
+		for (int id : ids) {
+			images.add(map[id]);
+		}
+		return images;
+	}
+
+	private static int find(int[] parents, int id)
+	{
+		while (parents[id] != id) {
+			parents[id] = parents[parents[id]];
+			id = parents[id];
+		}
+		return id;
+	}
+
+	private static void union(int[] parents, int a, int b)
+	{
+		int rootA = find(parents, a);
+		int rootB = find(parents, b);
+		if (rootA != rootB) {
+			parents[rootB] = rootA;
+		}
+	}
+
+	private static long combine(long a, long b)
+	{
+		return mix(a * 0x100000001B3L + b);
+	}
+
+	/** The SplitMix64 finalizer. */
+	private static long mix(long x)
+	{
+		x += 0x9E3779B97F4A7C15L;
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
+	}
+}
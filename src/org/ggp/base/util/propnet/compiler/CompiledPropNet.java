@@ -0,0 +1,47 @@
+package org.ggp.base.util.propnet.compiler;
+
+/**
+ * CompiledPropNet is the base class of the classes that PropNetCompiler
+ * generates from a FlatPropNet. Each query is a straight-line evaluation
+ * of the part of the network it needs, reading and writing bitsets:
+ *
+ * - States are bitsets over the base propositions, in the bit order of the
+ *   FlatPropNet, like the words of a BitSetMachineState.
+ * - Inputs are bitsets over the input propositions, in the order of
+ *   FlatPropNet.getInputIds().
+ * - Legal and goal results are bitsets over the legal and goal propositions
+ *   of all the roles, one role after the other, in the order of
+ *   FlatPropNet.getLegalIds() and FlatPropNet.getGoalIds().
+ *
+ * Instances keep scratch space for the evaluation, so they are not
+ * thread-safe. Use newInstance() to get one for another thread.
+ */
+public abstract class CompiledPropNet
+{
+	/** Computes the initial state. */
+	public abstract void computeInitialState(long[] state);
+
+	/** Computes the next state, given a state and the inputs of a joint move. */
+	public abstract void computeNextState(long[] state, long[] inputs, long[] next);
+
+	/** Computes which legal propositions are true in the given state. */
+	public abstract void computeLegals(long[] state, long[] legals);
+
+	/** Computes which goal propositions are true in the given state. */
+	public abstract void computeGoals(long[] state, long[] goals);
+
+	/** Returns whether the terminal proposition is true in the given state. */
+	public abstract boolean isTerminal(long[] state);
+
+	/** Returns a new instance of the same compiled propnet, with its own scratch space. */
+	public CompiledPropNet newInstance()
+	{
+		try {
+			return getClass().newInstance();
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
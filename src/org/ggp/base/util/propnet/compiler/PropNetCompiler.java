@@ -0,0 +1,519 @@
+package org.ggp.base.util.propnet.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+
+/**
+ * PropNetCompiler turns a FlatPropNet into a CompiledPropNet: it writes out
+ * a Java class that evaluates each query of the state machine as
+ * straight-line boolean logic over the state bitset, compiles it in memory
+ * with the system Java compiler, and loads it. The JIT can then inline and
+ * register-allocate the whole network, instead of interpreting it gate by
+ * gate.
+ *
+ * Each query only evaluates the components it depends on. The statements
+ * of a query are split over several methods, since the JIT won't compile
+ * methods larger than 8000 bytes of bytecode; values used across methods
+ * are passed through a scratch array. Gates with very many inputs, such as
+ * a goal or terminal condition over thousands of cases, are split too:
+ * their inputs are combined a slice at a time into the scratch array, so
+ * no single statement outgrows a method.
+ *
+ * This needs a JDK at runtime, since a JRE has no system Java compiler.
+ */
+public final class PropNetCompiler
+{
+	private static final String PACKAGE = PropNetCompiler.class.getPackage().getName();
+	private static final AtomicInteger classCount = new AtomicInteger();
+
+	/** A conservative estimate of the bytecode that fits in a method the JIT will compile. */
+	private static final int METHOD_BUDGET = 6000;
+	/** The most inputs of a gate that are combined in one statement. */
+	private static final int SLICE_INPUTS = 256;
+	/** The bytecode of setting one bit of the output, or of reading one input from the scratch array. */
+	private static final int SET_BIT_BYTECODE = 20;
+	private static final int INPUT_BYTECODE = 10;
+
+	// The queries differ in where the base and input propositions and INIT come from.
+	private static final int NEXT = 0;
+	private static final int STATE = 1;
+	private static final int INITIAL = 2;
+
+	private final FlatPropNet net;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputIndices;
+	/** The bit of each base and input proposition, indexed by component id. */
+	private final int[] bits;
+	private final StringBuilder source;
+	/** The number of methods the last query was split into. */
+	private int chunkCount;
+
+	/**
+	 * A statement of a query: the whole of a component, or, for a gate with
+	 * too many inputs to fit in one statement, a slice of its inputs.
+	 */
+	private static final class Statement
+	{
+		final int id;
+		/** The inputs of the component that this statement combines, as positions in inputIndices. */
+		final int start;
+		final int end;
+		/** Whether the component is split into slices, which accumulate its value in the scratch array. */
+		final boolean sliced;
+		final int chunk;
+
+		Statement(int id, int start, int end, boolean sliced, int chunk)
+		{
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.sliced = sliced;
+			this.chunk = chunk;
+		}
+	}
+
+	private PropNetCompiler(FlatPropNet net)
+	{
+		this.net = net;
+		this.types = net.getTypes();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputIndices = net.getInputIndices();
+		this.bits = new int[net.size()];
+		int[] baseIds = net.getBaseIds();
+		for (int i = 0; i < baseIds.length; i++) {
+			bits[baseIds[i]] = i;
+		}
+		int[] inputIds = net.getInputIds();
+		for (int i = 0; i < inputIds.length; i++) {
+			bits[inputIds[i]] = i;
+		}
+		this.source = new StringBuilder();
+	}
+
+	/** Compiles the given propnet. */
+	public static CompiledPropNet compile(FlatPropNet net)
+	{
+		String className = "GeneratedPropNet" + classCount.incrementAndGet();
+		String source = generateSource(net, className);
+		try {
+			return loadClass(className, source).asSubclass(CompiledPropNet.class).newInstance();
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns the source of the class that compile() would generate for the given propnet. */
+	public static String generateSource(FlatPropNet net, String className)
+	{
+		return new PropNetCompiler(net).generate(className);
+	}
+
+	private String generate(String className)
+	{
+		List<Integer> terminal = new ArrayList<Integer>();
+		if (net.getTerminalId() >= 0) {
+			terminal.add(net.getTerminalId());
+		}
+		List<Integer> legals = new ArrayList<Integer>();
+		for (int[] roleLegalIds : net.getLegalIds()) {
+			for (int id : roleLegalIds) {
+				legals.add(id);
+			}
+		}
+		List<Integer> goals = new ArrayList<Integer>();
+		for (int[] roleGoalIds : net.getGoalIds()) {
+			for (int id : roleGoalIds) {
+				goals.add(id);
+			}
+		}
+		List<Integer> nexts = new ArrayList<Integer>();
+		for (int id : net.getBaseTransitionIds()) {
+			nexts.add(id);
+		}
+		List<Integer> inits = new ArrayList<Integer>();
+		for (int id : net.getBaseInitIds()) {
+			inits.add(id);
+		}
+
+		source.append("package ").append(PACKAGE).append(";\n\n");
+		source.append("public final class ").append(className).append(" extends CompiledPropNet {\n");
+		source.append("\tprivate final boolean[] v = new boolean[").append(net.size()).append("];\n");
+		source.append("\tprivate final long[] t = new long[1];\n\n");
+
+		generateQuery("initial", inits, INITIAL);
+		source.append("\tpublic void computeInitialState(long[] s) {\n");
+		source.append("\t\tjava.util.Arrays.fill(s, 0L);\n");
+		callChunks("initial", "s, null, s");
+		source.append("\t}\n\n");
+
+		generateQuery("next", nexts, NEXT);
+		source.append("\tpublic void computeNextState(long[] s, long[] in, long[] out) {\n");
+		source.append("\t\tjava.util.Arrays.fill(out, 0L);\n");
+		callChunks("next", "s, in, out");
+		source.append("\t}\n\n");
+
+		generateQuery("legal", legals, STATE);
+		source.append("\tpublic void computeLegals(long[] s, long[] out) {\n");
+		source.append("\t\tjava.util.Arrays.fill(out, 0L);\n");
+		callChunks("legal", "s, null, out");
+		source.append("\t}\n\n");
+
+		generateQuery("goal", goals, STATE);
+		source.append("\tpublic void computeGoals(long[] s, long[] out) {\n");
+		source.append("\t\tjava.util.Arrays.fill(out, 0L);\n");
+		callChunks("goal", "s, null, out");
+		source.append("\t}\n\n");
+
+		generateQuery("terminal", terminal, STATE);
+		source.append("\tpublic boolean isTerminal(long[] s) {\n");
+		source.append("\t\tt[0] = 0L;\n");
+		callChunks("terminal", "s, null, t");
+		source.append("\t\treturn t[0] != 0L;\n");
+		source.append("\t}\n");
+
+		source.append("}\n");
+		return source.toString();
+	}
+
+	private void callChunks(String name, String arguments)
+	{
+		for (int i = 0; i < chunkCount; i++) {
+			source.append("\t\t").append(name).append(i).append('(').append(arguments).append(");\n");
+		}
+	}
+
+	/**
+	 * Generates the methods name0, name1, ... that set bit j of out if the
+	 * component outputs[j] is true, for each j. Entries of -1 are skipped.
+	 */
+	private void generateQuery(String name, List<Integer> outputs, int mode)
+	{
+		int n = net.size();
+		int[] reps = new int[n];
+		for (int id = 0; id < n; id++) {
+			reps[id] = getRepresentative(id);
+		}
+
+		// Find the components the outputs depend on.
+		boolean[] needed = new boolean[n];
+		int[] stack = new int[n];
+		int top = 0;
+		for (int id : outputs) {
+			if (id >= 0 && !needed[id]) {
+				needed[id] = true;
+				stack[top++] = id;
+			}
+		}
+		while (top > 0) {
+			int id = stack[--top];
+			if (getLiteral(id, mode) != null) {
+				continue;
+			}
+			for (int k = inputOffsets[id]; k < inputOffsets[id + 1]; k++) {
+				int input = inputIndices[k];
+				if (!needed[input]) {
+					needed[input] = true;
+					stack[top++] = input;
+				}
+			}
+		}
+
+		// Components are numbered topologically, so evaluating the needed
+		// ones in id order works. Only representatives that aren't literals
+		// get a statement.
+		Map<Integer, List<Integer>> outputsByRep = new HashMap<Integer, List<Integer>>();
+		List<Integer> literalOutputs = new ArrayList<Integer>();
+		for (int j = 0; j < outputs.size(); j++) {
+			int id = outputs.get(j);
+			if (id < 0) {
+				continue;
+			}
+			if (getLiteral(reps[id], mode) != null) {
+				if (getLiteral(reps[id], mode).equals("true")) {
+					literalOutputs.add(j);
+				}
+				continue;
+			}
+			List<Integer> repOutputs = outputsByRep.get(reps[id]);
+			if (repOutputs == null) {
+				repOutputs = new ArrayList<Integer>();
+				outputsByRep.put(reps[id], repOutputs);
+			}
+			repOutputs.add(j);
+		}
+
+		// chunks[id] is the method in which the value of the component is
+		// known, which is the method of its last slice if it is sliced.
+		int[] chunks = new int[n];
+		Arrays.fill(chunks, -1);
+		boolean[] stored = new boolean[n];
+		List<Statement> statements = new ArrayList<Statement>();
+		int chunk = 0;
+		int budget = METHOD_BUDGET;
+		for (int id = 0; id < n; id++) {
+			if (!needed[id] || reps[id] != id || getLiteral(id, mode) != null) {
+				continue;
+			}
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			boolean sliced = isJunction(id) && end - start > SLICE_INPUTS;
+			int from = start;
+			do {
+				int to = sliced ? Math.min(end, from + SLICE_INPUTS) : end;
+				int cost = sliced ? 32 + INPUT_BYTECODE * (to - from) : estimateBytecode(id);
+				if (to == end && outputsByRep.containsKey(id)) {
+					cost += SET_BIT_BYTECODE * outputsByRep.get(id).size();
+				}
+				if (cost > budget && budget < METHOD_BUDGET) {
+					chunk++;
+					budget = METHOD_BUDGET;
+				}
+				budget -= cost;
+				statements.add(new Statement(id, from, to, sliced, chunk));
+				for (int k = from; k < to; k++) {
+					int input = reps[inputIndices[k]];
+					if (chunks[input] >= 0 && chunks[input] != chunk) {
+						stored[input] = true;
+					}
+				}
+				from = to;
+			} while (from < end);
+			chunks[id] = chunk;
+		}
+		// The outputs that are always true come last, since the initial
+		// state is computed in place.
+		int[] literalChunks = new int[literalOutputs.size()];
+		for (int i = 0; i < literalChunks.length; i++) {
+			if (SET_BIT_BYTECODE > budget) {
+				chunk++;
+				budget = METHOD_BUDGET;
+			}
+			budget -= SET_BIT_BYTECODE;
+			literalChunks[i] = chunk;
+		}
+		chunkCount = chunk + 1;
+
+		int next = 0;
+		int nextLiteral = 0;
+		for (int c = 0; c < chunkCount; c++) {
+			source.append("\tprivate void ").append(name).append(c).append("(long[] s, long[] in, long[] out) {\n");
+			while (next < statements.size() && statements.get(next).chunk == c) {
+				Statement statement = statements.get(next++);
+				int id = statement.id;
+				if (!statement.sliced) {
+					source.append("\t\tboolean c").append(id).append(" = ");
+					appendExpression(id, mode, reps, chunks, c);
+					source.append(";\n");
+					if (stored[id]) {
+						source.append("\t\tv[").append(id).append("] = c").append(id).append(";\n");
+					}
+				} else {
+					String operator = (types[id] == FlatPropNet.AND) ? " & " : " | ";
+					source.append("\t\tv[").append(id).append("] = ");
+					if (statement.start > inputOffsets[id]) {
+						source.append("v[").append(id).append(']').append(operator);
+					}
+					appendJunction(statement.start, statement.end, operator, null, mode, reps, chunks, c);
+					source.append(";\n");
+					if (statement.end == inputOffsets[id + 1]) {
+						source.append("\t\tboolean c").append(id).append(" = v[").append(id).append("];\n");
+					}
+				}
+				List<Integer> repOutputs = outputsByRep.get(id);
+				if (repOutputs != null && statement.end == inputOffsets[id + 1]) {
+					for (int j : repOutputs) {
+						source.append("\t\tif (c").append(id).append(") ");
+						appendSetBit(j);
+					}
+				}
+			}
+			while (nextLiteral < literalChunks.length && literalChunks[nextLiteral] == c) {
+				appendSetBit(literalOutputs.get(nextLiteral++));
+			}
+			source.append("\t}\n\n");
+		}
+	}
+
+	/**
+	 * Estimates the bytecode of the statement for the given component,
+	 * counting each input as a read of the scratch array, and including a
+	 * store into it, in case a later method uses the value. Gates are joined
+	 * with the non-short-circuit operators, so evaluating them doesn't
+	 * branch; only setting the bits of the outputs does.
+	 */
+	private int estimateBytecode(int id)
+	{
+		if (types[id] == FlatPropNet.BASE || types[id] == FlatPropNet.INPUT) {
+			return 32;
+		}
+		return 24 + INPUT_BYTECODE * (inputOffsets[id + 1] - inputOffsets[id]);
+	}
+
+	/** Returns whether the component combines its inputs with AND or OR. */
+	private boolean isJunction(int id)
+	{
+		return types[id] != FlatPropNet.BASE && types[id] != FlatPropNet.INPUT && types[id] != FlatPropNet.NOT;
+	}
+
+	/** Follows propositions and transitions with a single input back to the component they copy. */
+	private int getRepresentative(int id)
+	{
+		while ((types[id] == FlatPropNet.PROPOSITION || types[id] == FlatPropNet.TRANSITION)
+				&& inputOffsets[id + 1] - inputOffsets[id] == 1) {
+			id = inputIndices[inputOffsets[id]];
+		}
+		return id;
+	}
+
+	/** Returns "true" or "false" if the value of the given component is fixed in this query, or null. */
+	private String getLiteral(int id, int mode)
+	{
+		switch (types[id]) {
+		case FlatPropNet.TRUE:
+			return "true";
+		case FlatPropNet.FALSE:
+			return "false";
+		case FlatPropNet.FREE:
+			return (id == net.getInitId() && mode == INITIAL) ? "true" : "false";
+		case FlatPropNet.BASE:
+			return (mode == INITIAL) ? "false" : null;
+		case FlatPropNet.INPUT:
+			return (mode == NEXT) ? null : "false";
+		default:
+			return null;
+		}
+	}
+
+	private void appendExpression(int id, int mode, int[] reps, int[] chunks, int chunk)
+	{
+		int bit = bits[id];
+		switch (types[id]) {
+		case FlatPropNet.BASE:
+			source.append("(s[").append(bit >>> 6).append("] & 0x").append(Long.toHexString(1L << bit)).append("L) != 0L");
+			return;
+		case FlatPropNet.INPUT:
+			source.append("(in[").append(bit >>> 6).append("] & 0x").append(Long.toHexString(1L << bit)).append("L) != 0L");
+			return;
+		case FlatPropNet.NOT:
+			source.append('!');
+			appendReference(inputIndices[inputOffsets[id]], mode, reps, chunks, chunk);
+			return;
+		case FlatPropNet.AND:
+			appendJunction(inputOffsets[id], inputOffsets[id + 1], " & ", "true", mode, reps, chunks, chunk);
+			return;
+		default:
+			appendJunction(inputOffsets[id], inputOffsets[id + 1], " | ", "false", mode, reps, chunks, chunk);
+		}
+	}
+
+	/** Joins the inputs at the given positions of inputIndices with the operator, or appends empty if there are none. */
+	private void appendJunction(int start, int end, String operator, String empty, int mode, int[] reps, int[] chunks, int chunk)
+	{
+		if (start == end) {
+			source.append(empty);
+			return;
+		}
+		for (int k = start; k < end; k++) {
+			if (k > start) {
+				source.append(operator);
+			}
+			appendReference(inputIndices[k], mode, reps, chunks, chunk);
+		}
+	}
+
+	private void appendReference(int id, int mode, int[] reps, int[] chunks, int chunk)
+	{
+		int rep = reps[id];
+		String literal = getLiteral(rep, mode);
+		if (literal != null) {
+			source.append(literal);
+		} else if (chunks[rep] == chunk) {
+			source.append('c').append(rep);
+		} else {
+			source.append("v[").append(rep).append(']');
+		}
+	}
+
+	private void appendSetBit(int j)
+	{
+		source.append("out[").append(j >>> 6).append("] |= 0x").append(Long.toHexString(1L << j)).append("L;\n");
+	}
+
+	private static Class<?> loadClass(String className, String source)
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new IllegalStateException("Compiling propnets needs the system Java compiler, which only comes with a JDK");
+		}
+		final Map<String, ByteArrayOutputStream> classBytes = new HashMap<String, ByteArrayOutputStream>();
+		StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(null, null, null);
+		JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardFileManager) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, final String name, Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						classBytes.put(name, out);
+						return out;
+					}
+				};
+			}
+		};
+		final String fullName = PACKAGE + "." + className;
+		final String sourceCode = source;
+		JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + fullName.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return sourceCode;
+			}
+		};
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none", "-nowarn");
+		boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(sourceFile)).call();
+		if (!success) {
+			throw new IllegalStateException("Could not compile the propnet: " + diagnostics.getDiagnostics());
+		}
+
+		ClassLoader loader = new ClassLoader(CompiledPropNet.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				ByteArrayOutputStream bytes = classBytes.get(name);
+				if (bytes == null) {
+					throw new ClassNotFoundException(name);
+				}
+				byte[] b = bytes.toByteArray();
+				return defineClass(name, b, 0, b.length);
+			}
+		};
+		try {
+			return loader.loadClass(fullName);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -13,6 +13,10 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
 import org.ggp.base.util.gdl.GdlUtils;
@@ -47,6 +51,7 @@ import org.ggp.base.util.gdl.transforms.DeORer;
 import org.ggp.base.util.gdl.transforms.GdlCleaner;
 import org.ggp.base.util.gdl.transforms.Relationizer;
 import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.observer.Observer;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.And;
@@ -55,6 +60,7 @@ import org.ggp.base.util.propnet.architecture.components.Not;
 import org.ggp.base.util.propnet.architecture.components.Or;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.propnet.factory.event.PropNetProgressEvent;
 import org.ggp.base.util.statemachine.Role;
 
 import com.google.common.collect.Multimap;
@@ -92,6 +98,13 @@ import com.google.common.collect.Multimap;
  *
  */
 public class OptimizingPropNetFactory {
+	/**
+	 * The version of the propnets this factory builds. Increase it when a
+	 * change to the factory changes the propnets it builds, so that cached
+	 * ones are rebuilt.
+	 */
+	public static final int VERSION = 1;
+
 	static final private GdlConstant LEGAL = GdlPool.getConstant("legal");
 	static final private GdlConstant NEXT = GdlPool.getConstant("next");
 	static final private GdlConstant TRUE = GdlPool.getConstant("true");
@@ -116,6 +129,35 @@ public class OptimizingPropNetFactory {
 	}
 
 	public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+		return create(description, verbose, 1);
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description, using up to
+	 * numThreads threads to instantiate the sentence forms.
+	 *
+	 * Sentence forms that do not depend on one another are instantiated in
+	 * parallel, but the components are always connected in the same order as
+	 * with a single thread, so the resulting PropNet is the same as the one
+	 * the single-threaded build gives.
+	 *
+	 * @throws InterruptedException if the thread is interrupted during
+	 * PropNet creation.
+	 */
+	public static PropNet create(List<Gdl> description, boolean verbose, int numThreads) throws InterruptedException {
+		return create(description, verbose, numThreads, null);
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description, as above,
+	 * and tells the given observer (if not null) about the progress of the
+	 * build with a PropNetProgressEvent after each sentence form is added.
+	 * The observer is called on the thread that is building the PropNet.
+	 *
+	 * @throws InterruptedException if the thread is interrupted during
+	 * PropNet creation.
+	 */
+	public static PropNet create(List<Gdl> description, boolean verbose, int numThreads, Observer observer) throws InterruptedException {
 		System.out.println("Building propnet...");
 
 		long startTime = System.currentTimeMillis();
@@ -173,51 +215,67 @@ public class OptimizingPropNetFactory {
 		Constant falseComponent = new Constant(false);
 		Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
 		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-		for(SentenceForm form : topologicalOrdering) {
-			ConcurrencyUtils.checkForInterruption();
+		List<List<SentenceForm>> runs = getIndependentRuns(topologicalOrdering, dependencyGraph, usingBase, usingInput, numThreads);
+		ForkJoinPool pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+		int formsAdded = 0;
+		try {
+			for(List<SentenceForm> run : runs) {
+				ConcurrencyUtils.checkForInterruption();
 
-			if(verbose) {
-				System.out.print("Adding sentence form " + form);
-				System.out.flush();
-			}
-			if(constantChecker.isConstantForm(form)) {
-				if(verbose)
-					System.out.println(" (constant)");
-				//Only add it if it's important
-				if(form.getName().equals(LEGAL)
-						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
-					//Add it
-					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-						Proposition trueProp = new Proposition(trueSentence);
-						trueProp.addInput(trueComponent);
-						trueComponent.addOutput(trueProp);
-						components.put(trueSentence, trueComponent);
+				//Instantiate the non-constant forms of the run, in parallel if we can.
+				//Nothing shared is modified until they are wired up below.
+				Map<SentenceForm, SentenceFormInstantiation> instantiations = instantiateSentenceForms(run, pool, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues);
+
+				//Wire them up in the order of the topological ordering
+				for(SentenceForm form : run) {
+					ConcurrencyUtils.checkForInterruption();
+
+					if(verbose) {
+						System.out.print("Adding sentence form " + form);
+						System.out.flush();
 					}
-				}
+					if(constantChecker.isConstantForm(form)) {
+						if(verbose)
+							System.out.println(" (constant)");
+						//Only add it if it's important
+						if(form.getName().equals(LEGAL)
+								|| form.getName().equals(GOAL)
+								|| form.getName().equals(INIT)) {
+							//Add it
+							for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+								Proposition trueProp = new Proposition(trueSentence);
+								trueProp.addInput(trueComponent);
+								trueComponent.addOutput(trueProp);
+								components.put(trueSentence, trueComponent);
+							}
+						}
 
-				if(verbose)
-					System.out.println("Checking whether " + form + " is a functional constant...");
-				addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+						if(verbose)
+							System.out.println("Checking whether " + form + " is a functional constant...");
+						addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+						addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+						reportProgress(observer, ++formsAdded, topologicalOrdering.size());
 
-				continue;
+						continue;
+					}
+					if(verbose)
+						System.out.println();
+					SentenceFormInstantiation instantiation = instantiations.get(form);
+					addSentenceForm(instantiation, components, negations, trueComponent, falseComponent);
+					//TODO: Pass these over groups of multiple sentence forms
+					if(verbose && !instantiation.temporaryComponents.isEmpty())
+						System.out.println("Processing temporary components...");
+					processTemporaryComponents(instantiation.temporaryComponents, instantiation.temporaryNegations, components, negations, trueComponent, falseComponent);
+					addFormToCompletedValues(form, completedSentenceFormValues, components);
+					reportProgress(observer, ++formsAdded, topologicalOrdering.size());
+					//if(verbose)
+						//TODO: Add this, but with the correct total number of components (not just Propositions)
+						//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+				}
 			}
-			if(verbose)
-				System.out.println();
-			//TODO: Adjust "recursive forms" appropriately
-			//Add a temporary sentence form thingy? ...
-			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-			//TODO: Pass these over groups of multiple sentence forms
-			if(verbose && !temporaryComponents.isEmpty())
-				System.out.println("Processing temporary components...");
-			processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-			addFormToCompletedValues(form, completedSentenceFormValues, components);
-			//if(verbose)
-				//TODO: Add this, but with the correct total number of components (not just Propositions)
-				//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+		} finally {
+			if(pool != null)
+				pool.shutdownNow();
 		}
 		//Connect "next" to "true"
 		if(verbose)
@@ -252,6 +310,12 @@ public class OptimizingPropNetFactory {
 	}
 
 
+	private static void reportProgress(Observer observer, int formsAdded, int formCount) {
+		if(observer != null)
+			observer.observe(new PropNetProgressEvent(formsAdded, formCount));
+	}
+
+
 	private static void removeUselessBasePropositions(
 			Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations, Constant trueComponent,
 			Constant falseComponent) throws InterruptedException {
@@ -391,7 +455,7 @@ public class OptimizingPropNetFactory {
         }
 	}
 
-	private static void optimizeAwayTrueAndFalse(PropNet pn, Component trueComponent, Component falseComponent) {
+	static void optimizeAwayTrueAndFalse(PropNet pn, Component trueComponent, Component falseComponent) {
 	    while(hasNonessentialChildren(trueComponent) || hasNonessentialChildren(falseComponent)) {
 	        optimizeAwayTrue(null, null, pn, trueComponent, falseComponent);
 	        optimizeAwayFalse(null, null, pn, trueComponent, falseComponent);
@@ -816,13 +880,158 @@ public class OptimizingPropNetFactory {
 		return ordering;
 	}
 
-	private static void addSentenceForm(SentenceForm form, SentenceDomainModel model,
+	/**
+	 * Splits the topological ordering into consecutive runs of sentence forms
+	 * that do not depend on one another, so that the forms in each run can be
+	 * instantiated at the same time. With a single thread, every form gets a
+	 * run of its own.
+	 */
+	private static List<List<SentenceForm>> getIndependentRuns(
+			List<SentenceForm> topologicalOrdering,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph,
+			boolean usingBase, boolean usingInput, int numThreads) {
+		List<List<SentenceForm>> runs = new ArrayList<List<SentenceForm>>();
+		List<SentenceForm> run = new ArrayList<SentenceForm>();
+		Set<SentenceForm> formsInRun = new HashSet<SentenceForm>();
+		for(SentenceForm form : topologicalOrdering) {
+			boolean independent = numThreads > 1;
+			for(SentenceForm dependency : dependencyGraph.get(form)) {
+				if(!dependency.equals(form) && formsInRun.contains(dependency)) {
+					independent = false;
+					break;
+				}
+			}
+			//The ordering also puts base before true/next/init and input before does/legal
+			if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT))
+					&& formsInRun.contains(form.withName(BASE))) {
+				independent = false;
+			}
+			if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL))
+					&& formsInRun.contains(form.withName(INPUT))) {
+				independent = false;
+			}
+			if(!independent && !run.isEmpty()) {
+				runs.add(run);
+				run = new ArrayList<SentenceForm>();
+				formsInRun.clear();
+			}
+			run.add(form);
+			formsInRun.add(form);
+		}
+		if(!run.isEmpty())
+			runs.add(run);
+		return runs;
+	}
+
+	/**
+	 * Instantiates the non-constant sentence forms in the run. If there is
+	 * a pool and more than one such form, they are instantiated in parallel.
+	 */
+	private static Map<SentenceForm, SentenceFormInstantiation> instantiateSentenceForms(
+			List<SentenceForm> run, ForkJoinPool pool, final SentenceDomainModel model,
+			final Map<GdlSentence, Component> components,
+			final Map<GdlSentence, Component> negations,
+			final Constant trueComponent, final Constant falseComponent,
+			final boolean usingBase, final boolean usingInput,
+			final Map<SentenceForm, FunctionInfo> functionInfoMap, final ConstantChecker constantChecker,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+		List<SentenceForm> forms = new ArrayList<SentenceForm>();
+		for(SentenceForm form : run) {
+			if(!constantChecker.isConstantForm(form))
+				forms.add(form);
+		}
+
+		Map<SentenceForm, SentenceFormInstantiation> instantiations = new HashMap<SentenceForm, SentenceFormInstantiation>();
+		if(pool == null || forms.size() < 2) {
+			for(SentenceForm form : forms) {
+				instantiations.put(form, instantiateSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), functionInfoMap, constantChecker, completedSentenceFormValues));
+			}
+			return instantiations;
+		}
+
+		List<Future<SentenceFormInstantiation>> futures = new ArrayList<Future<SentenceFormInstantiation>>(forms.size());
+		for(final SentenceForm form : forms) {
+			futures.add(pool.submit(new Callable<SentenceFormInstantiation>() {
+				@Override
+				public SentenceFormInstantiation call() throws InterruptedException {
+					return instantiateSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), functionInfoMap, constantChecker, completedSentenceFormValues);
+				}
+			}));
+		}
+		try {
+			for(int i = 0; i < forms.size(); i++) {
+				instantiations.put(forms.get(i), futures.get(i).get());
+			}
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			for(Future<SentenceFormInstantiation> future : futures)
+				future.cancel(true);
+		}
+		return instantiations;
+	}
+
+	/**
+	 * The ground rules of a sentence form, as found by instantiateSentenceForm.
+	 * Components that belong to the form alone (temporary components for
+	 * recursion) are created along with it; everything that touches the
+	 * shared components is left for addSentenceForm.
+	 */
+	private static class SentenceFormInstantiation {
+		final Set<GdlSentence> alwaysTrueSentences;
+		//Sentences that just get a proposition of their own
+		final List<GdlSentence> floatingSentences = new ArrayList<GdlSentence>();
+		final List<GroundRule> groundRules = new ArrayList<GroundRule>();
+		final Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+		final Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+
+		SentenceFormInstantiation(Set<GdlSentence> alwaysTrueSentences) {
+			this.alwaysTrueSentences = alwaysTrueSentences;
+		}
+	}
+
+	/**
+	 * One assignment of a rule. The conjuncts are the components to "and"
+	 * together, except for negations that still need a "not" gate, which are
+	 * listed separately with the components they negate. If the head can't
+	 * be true for this assignment, the rule is only kept for its negations,
+	 * whose "not" gates get made either way.
+	 */
+	private static class GroundRule {
+		final GdlSentence head;
+		final List<Component> conjuncts;
+		final List<GdlSentence> negatedSentences;
+		final List<Component> negatedComponents;
+		final boolean connect;
+
+		GroundRule(GdlSentence head, List<Component> conjuncts, List<GdlSentence> negatedSentences,
+				List<Component> negatedComponents, boolean connect) {
+			this.head = head;
+			this.conjuncts = conjuncts;
+			this.negatedSentences = negatedSentences;
+			this.negatedComponents = negatedComponents;
+			this.connect = connect;
+		}
+	}
+
+	/**
+	 * Enumerates the ground rules of the sentence form. This only reads the
+	 * shared components and negations (as left by the forms this one depends
+	 * on), so several independent forms can be instantiated at once.
+	 */
+	private static SentenceFormInstantiation instantiateSentenceForm(SentenceForm form, SentenceDomainModel model,
 			Map<GdlSentence, Component> components,
 			Map<GdlSentence, Component> negations,
 			Constant trueComponent, Constant falseComponent,
 			boolean usingBase, boolean usingInput,
 			Set<SentenceForm> recursionForms,
-			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
 			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
 			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
 		//This is the meat of it (along with the entire Assignments class).
@@ -834,23 +1043,15 @@ public class OptimizingPropNetFactory {
 
 		Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
 		Set<GdlRule> rules = model.getRules(form);
+		SentenceFormInstantiation instantiation = new SentenceFormInstantiation(alwaysTrueSentences);
 
+		//The always-true sentences get assigned as true when this is wired up,
+		//but recursive rules need to see them now
+		Map<GdlSentence, Component> ownComponents = new HashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> ownNegations = new HashMap<GdlSentence, Component>();
 		for(GdlSentence alwaysTrueSentence : alwaysTrueSentences) {
-			//We add the sentence as a constant
-			if(alwaysTrueSentence.getName().equals(LEGAL)
-					|| alwaysTrueSentence.getName().equals(NEXT)
-					|| alwaysTrueSentence.getName().equals(GOAL)) {
-				Proposition prop = new Proposition(alwaysTrueSentence);
-				//Attach to true
-				trueComponent.addOutput(prop);
-				prop.addInput(trueComponent);
-				//Still want the same components;
-				//we just don't want this to be anonymized
-			}
-			//Assign as true
-			components.put(alwaysTrueSentence, trueComponent);
-			negations.put(alwaysTrueSentence, falseComponent);
-			continue;
+			ownComponents.put(alwaysTrueSentence, trueComponent);
+			ownNegations.put(alwaysTrueSentence, falseComponent);
 		}
 
 		//For does/true, make nodes based on input/base, if available
@@ -859,22 +1060,21 @@ public class OptimizingPropNetFactory {
 			SentenceForm inputForm = form.withName(INPUT);
 			for (GdlSentence inputSentence : constantChecker.getTrueSentences(inputForm)) {
 				GdlSentence doesSentence = GdlPool.getRelation(DOES, inputSentence.getBody());
-				Proposition prop = new Proposition(doesSentence);
-				components.put(doesSentence, prop);
+				instantiation.floatingSentences.add(doesSentence);
 			}
-			return;
+			return instantiation;
 		}
 		if(usingBase && form.getName().equals(TRUE)) {
 			SentenceForm baseForm = form.withName(BASE);
 			for (GdlSentence baseSentence : constantChecker.getTrueSentences(baseForm)) {
 				GdlSentence trueSentence = GdlPool.getRelation(TRUE, baseSentence.getBody());
-				Proposition prop = new Proposition(trueSentence);
-				components.put(trueSentence, prop);
+				instantiation.floatingSentences.add(trueSentence);
 			}
-			return;
+			return instantiation;
 		}
 
-		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
+		Map<GdlSentence, Component> temporaryComponents = instantiation.temporaryComponents;
+		Map<GdlSentence, Component> temporaryNegations = instantiation.temporaryNegations;
 		for(GdlRule rule : rules) {
 			Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
 
@@ -896,6 +1096,8 @@ public class OptimizingPropNetFactory {
 
 				//Now we go through the conjuncts as before, but we wait to hook them up.
 				List<Component> componentsToConnect = new ArrayList<Component>(rule.arity());
+				List<GdlSentence> negatedSentences = new ArrayList<GdlSentence>(0);
+				List<Component> negatedComponents = new ArrayList<Component>(0);
 				for(GdlLiteral literal : rule.getBody()) {
 					if(literal instanceof GdlSentence) {
 						//Get the sentence post-substitutions
@@ -912,7 +1114,7 @@ public class OptimizingPropNetFactory {
 							continue;
 						}
 
-						Component conj = components.get(transformed);
+						Component conj = lookUp(transformed, ownComponents, components);
 						//If conj is null and this is a sentence form we're still handling,
 						//hook up to a temporary sentence form
 						if(conj == null) {
@@ -952,7 +1154,7 @@ public class OptimizingPropNetFactory {
 							continue;
 						}
 
-						Component conj = negations.get(transformed);
+						Component conj = lookUp(transformed, ownNegations, negations);
 						if(isThisConstant(conj, falseComponent)) {
 							//We need to change one of the variables inside
 							List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
@@ -966,7 +1168,7 @@ public class OptimizingPropNetFactory {
 						}
 						//Check for the recursive case:
 						if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
-							Component positive = components.get(transformed);
+							Component positive = lookUp(transformed, ownComponents, components);
 							if(positive == null) {
 								positive = temporaryComponents.get(transformed);
 							}
@@ -987,7 +1189,7 @@ public class OptimizingPropNetFactory {
 							conj = not;
 						}
 						if(conj == null) {
-							Component positive = components.get(transformed);
+							Component positive = lookUp(transformed, ownComponents, components);
 							//No, because then that will be attached to "negations", which could be bad
 
 							if(positive == null) {
@@ -998,20 +1200,10 @@ public class OptimizingPropNetFactory {
 								continue; //to the next conjunct
 							}
 
-							//Check if we're sharing a component with another sentence with a negation
-							//(i.e. look for "nots" in our outputs and use those instead)
-							Not existingNotOutput = getNotOutput(positive);
-							if(existingNotOutput != null) {
-								componentsToConnect.add(existingNotOutput);
-								negations.put(transformed, existingNotOutput);
-								continue; //to the next conjunct
-							}
-
-							Not not = new Not();
-							not.addInput(positive);
-							positive.addOutput(not);
-							negations.put(transformed, not);
-							conj = not;
+							//The "not" gets made (or shared) when this is wired up
+							negatedSentences.add(transformed);
+							negatedComponents.add(positive);
+							continue; //to the next conjunct
 						}
 						componentsToConnect.add(conj);
 					} else if(literal instanceof GdlDistinct) {
@@ -1020,21 +1212,95 @@ public class OptimizingPropNetFactory {
 						throw new RuntimeException("Unwanted GdlLiteral type");
 					}
 				}
-				if(!componentsToConnect.contains(null)) {
-					//Connect all the components
-					Proposition andComponent = new Proposition(TEMP);
-
-					andify(componentsToConnect, andComponent, trueComponent);
-					if(!isThisConstant(andComponent, falseComponent)) {
-						if(!inputsToOr.containsKey(sentence))
-							inputsToOr.put(sentence, new HashSet<Component>());
-						inputsToOr.get(sentence).add(andComponent);
-						//We'll want to make sure at least one of the non-constant
-						//components is changing
-						if(preventDuplicatesFromConstants) {
-							asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
-						}
+				boolean connect = !componentsToConnect.contains(null);
+				if(connect || !negatedSentences.isEmpty()) {
+					instantiation.groundRules.add(new GroundRule(sentence, componentsToConnect, negatedSentences, negatedComponents, connect));
+				}
+				//None of the conjuncts is false, so the rule will be connected;
+				//we'll want to make sure at least one of the non-constant
+				//components is changing
+				if(connect && preventDuplicatesFromConstants) {
+					asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
+				}
+			}
+		}
+
+		//True/does sentences will have none of these rules, but
+		//still need to exist/"float"
+		//We'll do this if we haven't used base/input as a basis
+		if(form.getName().equals(TRUE)
+				|| form.getName().equals(DOES)) {
+			for(GdlSentence sentence : model.getDomain(form)) {
+				ConcurrencyUtils.checkForInterruption();
+
+				instantiation.floatingSentences.add(sentence);
+			}
+		}
+		return instantiation;
+	}
+
+	private static Component lookUp(GdlSentence sentence, Map<GdlSentence, Component> own, Map<GdlSentence, Component> shared) {
+		Component component = own.get(sentence);
+		return (component != null) ? component : shared.get(sentence);
+	}
+
+	/**
+	 * Adds the components of an instantiated sentence form to the propnet.
+	 * This is done one form at a time, in topological order.
+	 */
+	private static void addSentenceForm(SentenceFormInstantiation instantiation,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent) throws InterruptedException {
+		for(GdlSentence alwaysTrueSentence : instantiation.alwaysTrueSentences) {
+			//We add the sentence as a constant
+			if(alwaysTrueSentence.getName().equals(LEGAL)
+					|| alwaysTrueSentence.getName().equals(NEXT)
+					|| alwaysTrueSentence.getName().equals(GOAL)) {
+				Proposition prop = new Proposition(alwaysTrueSentence);
+				//Attach to true
+				trueComponent.addOutput(prop);
+				prop.addInput(trueComponent);
+				//Still want the same components;
+				//we just don't want this to be anonymized
+			}
+			//Assign as true
+			components.put(alwaysTrueSentence, trueComponent);
+			negations.put(alwaysTrueSentence, falseComponent);
+			continue;
+		}
+
+		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
+		for(GroundRule groundRule : instantiation.groundRules) {
+			ConcurrencyUtils.checkForInterruption();
+
+			for(int i = 0; i < groundRule.negatedSentences.size(); i++) {
+				GdlSentence transformed = groundRule.negatedSentences.get(i);
+				Component conj = negations.get(transformed);
+				if(conj == null) {
+					Component positive = groundRule.negatedComponents.get(i);
+					//Check if we're sharing a component with another sentence with a negation
+					//(i.e. look for "nots" in our outputs and use those instead)
+					conj = getNotOutput(positive);
+					if(conj == null) {
+						Not not = new Not();
+						not.addInput(positive);
+						positive.addOutput(not);
+						conj = not;
 					}
+					negations.put(transformed, conj);
+				}
+				groundRule.conjuncts.add(conj);
+			}
+			if(groundRule.connect) {
+				//Connect all the components
+				Proposition andComponent = new Proposition(TEMP);
+
+				andify(groundRule.conjuncts, andComponent, trueComponent);
+				if(!isThisConstant(andComponent, falseComponent)) {
+					if(!inputsToOr.containsKey(groundRule.head))
+						inputsToOr.put(groundRule.head, new HashSet<Component>());
+					inputsToOr.get(groundRule.head).add(andComponent);
 				}
 			}
 		}
@@ -1061,19 +1327,10 @@ public class OptimizingPropNetFactory {
 			components.put(sentence, prop);
 		}
 
-		//True/does sentences will have none of these rules, but
-		//still need to exist/"float"
-		//We'll do this if we haven't used base/input as a basis
-		if(form.getName().equals(TRUE)
-				|| form.getName().equals(DOES)) {
-			for(GdlSentence sentence : model.getDomain(form)) {
-				ConcurrencyUtils.checkForInterruption();
-
-				Proposition prop = new Proposition(sentence);
-				components.put(sentence, prop);
-			}
+		for(GdlSentence sentence : instantiation.floatingSentences) {
+			Proposition prop = new Proposition(sentence);
+			components.put(sentence, prop);
 		}
-
 	}
 
 
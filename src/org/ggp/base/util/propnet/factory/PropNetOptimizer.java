@@ -0,0 +1,163 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.concurrency.ConcurrencyUtils;
+import org.ggp.base.util.propnet.architecture.PropNet;
+
+/**
+ * PropNetOptimizer runs a configurable sequence of PropNetPasses over a
+ * propnet, and records how long each pass took and how much it shrank the
+ * propnet, so that passes can be compared and reordered.
+ *
+ * The default pipeline only contains passes that keep every base and input
+ * proposition, so the optimized propnet describes the same states and moves
+ * as the original one.
+ */
+public final class PropNetOptimizer
+{
+	/**
+	 * The version of the passes. Increase it when a change to a pass changes
+	 * the propnets it produces, so that cached ones are rebuilt.
+	 */
+	public static final int VERSION = 1;
+
+	private final List<PropNetPass> passes;
+
+	public PropNetOptimizer(List<PropNetPass> passes)
+	{
+		this.passes = Collections.unmodifiableList(new ArrayList<PropNetPass>(passes));
+	}
+
+	public PropNetOptimizer(PropNetPass... passes)
+	{
+		this(Arrays.asList(passes));
+	}
+
+	/**
+	 * Returns an optimizer with the default pipeline: constants are folded
+	 * away, including through transitions and latches, then identical gates
+	 * are merged and redundant gates removed.
+	 */
+	public static PropNetOptimizer createDefault()
+	{
+		return new PropNetOptimizer(
+				PropNetPasses.propagateConstants(),
+				PropNetPasses.foldConstantTransitions(),
+				PropNetPasses.foldLatchedBases(),
+				PropNetPasses.mergeIdenticalGates(),
+				PropNetPasses.collapseGateChains(),
+				PropNetPasses.removeDoubleNegations(),
+				PropNetPasses.mergeIdenticalGates());
+	}
+
+	public List<PropNetPass> getPasses()
+	{
+		return passes;
+	}
+
+	/**
+	 * Returns a string that changes whenever the propnets this optimizer
+	 * produces may change: the version of the passes and their names, in
+	 * order.
+	 */
+	public String getVersion()
+	{
+		StringBuilder version = new StringBuilder("v" + VERSION);
+		for (PropNetPass pass : passes) {
+			version.append(' ').append(pass.getName());
+		}
+		return version.toString();
+	}
+
+	/** Runs the passes over the propnet, in order. */
+	public List<PassResult> optimize(PropNet pn) throws InterruptedException
+	{
+		return optimize(pn, false);
+	}
+
+	/**
+	 * Runs the passes over the propnet, in order, and returns what each of
+	 * them did. If verbose is set, the results are also printed as the passes
+	 * finish.
+	 */
+	public List<PassResult> optimize(PropNet pn, boolean verbose) throws InterruptedException
+	{
+		List<PassResult> results = new ArrayList<PassResult>(passes.size());
+		for (PropNetPass pass : passes) {
+			ConcurrencyUtils.checkForInterruption();
+			int componentsBefore = pn.getSize();
+			int linksBefore = pn.getNumLinks();
+			long startTime = System.currentTimeMillis();
+			pass.run(pn);
+			long millis = System.currentTimeMillis() - startTime;
+			PassResult result = new PassResult(pass.getName(), millis,
+					componentsBefore, pn.getSize(), linksBefore, pn.getNumLinks());
+			if (verbose)
+				System.out.println(result);
+			results.add(result);
+		}
+		return results;
+	}
+
+	/** The time taken by one pass, and the size of the propnet before and after it. */
+	public static final class PassResult
+	{
+		private final String name;
+		private final long millis;
+		private final int componentsBefore;
+		private final int componentsAfter;
+		private final int linksBefore;
+		private final int linksAfter;
+
+		public PassResult(String name, long millis, int componentsBefore, int componentsAfter, int linksBefore, int linksAfter)
+		{
+			this.name = name;
+			this.millis = millis;
+			this.componentsBefore = componentsBefore;
+			this.componentsAfter = componentsAfter;
+			this.linksBefore = linksBefore;
+			this.linksAfter = linksAfter;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public long getMillis()
+		{
+			return millis;
+		}
+
+		public int getComponentsBefore()
+		{
+			return componentsBefore;
+		}
+
+		public int getComponentsAfter()
+		{
+			return componentsAfter;
+		}
+
+		public int getLinksBefore()
+		{
+			return linksBefore;
+		}
+
+		public int getLinksAfter()
+		{
+			return linksAfter;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + ": " + componentsBefore + " -> " + componentsAfter + " components, "
+					+ linksBefore + " -> " + linksAfter + " links, " + millis + " ms";
+		}
+	}
+}
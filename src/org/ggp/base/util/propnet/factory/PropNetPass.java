@@ -0,0 +1,22 @@
+package org.ggp.base.util.propnet.factory;
+
+import org.ggp.base.util.propnet.architecture.PropNet;
+
+/**
+ * A PropNetPass is one structural optimization of an already-built propnet,
+ * such as folding away constants or merging identical gates. Passes are run
+ * in sequence by a PropNetOptimizer.
+ *
+ * A pass modifies the propnet in place, and must leave it computing the
+ * same values for all of the propositions the state machine reads: the base,
+ * input, legal, goal, init and terminal propositions. Some standard passes
+ * are available from PropNetPasses.
+ */
+public interface PropNetPass
+{
+	/** Returns a short name for the pass, used when reporting on it. */
+	String getName();
+
+	/** Runs the pass over the given propnet. */
+	void run(PropNet pn) throws InterruptedException;
+}
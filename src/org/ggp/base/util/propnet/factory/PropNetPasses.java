@@ -0,0 +1,380 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.concurrency.ConcurrencyUtils;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.architecture.LatchAnalysis;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+/**
+ * PropNetPasses provides the standard PropNetPasses: the post-optimizations
+ * of OptimizingPropNetFactory, wrapped up as passes, and a few cheap
+ * structural optimizations of the gates of a propnet.
+ */
+public final class PropNetPasses
+{
+	private static final GdlConstant INIT = GdlPool.getConstant("init");
+
+	private PropNetPasses() {
+	}
+
+	/**
+	 * Folds the constants of the propnet into the gates they feed, until
+	 * only transitions and propositions the state machine reads are left
+	 * as their outputs.
+	 */
+	public static PropNetPass propagateConstants() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "propagateConstants";
+			}
+
+			@Override
+			public void run(PropNet pn) {
+				PropNetPasses.propagateConstants(pn);
+			}
+		};
+	}
+
+	/**
+	 * Replaces base propositions that can never change with constants.
+	 *
+	 * A base proposition whose transition is fed by a constant is always
+	 * equal to that constant if its initial value is the same, so its outputs
+	 * can be moved to the constant. The base proposition and its transition are
+	 * kept, so that states still contain it. Folding the constants further can
+	 * expose more such base propositions, so this is repeated until nothing
+	 * changes.
+	 */
+	public static PropNetPass foldConstantTransitions() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "foldConstantTransitions";
+			}
+
+			@Override
+			public void run(PropNet pn) throws InterruptedException {
+				while (foldConstantTransitionsOnce(pn)) {
+					ConcurrencyUtils.checkForInterruption();
+					PropNetPasses.propagateConstants(pn);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Replaces base propositions that LatchAnalysis finds to be constant
+	 * with constants. As with foldConstantTransitions, the base propositions
+	 * and their transitions are kept, so that states still contain them.
+	 */
+	public static PropNetPass foldLatchedBases() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "foldLatchedBases";
+			}
+
+			@Override
+			public void run(PropNet pn) throws InterruptedException {
+				while (foldLatchedBasesOnce(pn)) {
+					ConcurrencyUtils.checkForInterruption();
+					PropNetPasses.propagateConstants(pn);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Merges gates of the same type that have the same inputs, so that each
+	 * distinct gate is only computed once. Merging gates can make their
+	 * outputs identical in turn, so this is repeated until nothing changes.
+	 */
+	public static PropNetPass mergeIdenticalGates() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "mergeIdenticalGates";
+			}
+
+			@Override
+			public void run(PropNet pn) throws InterruptedException {
+				while (mergeIdenticalGatesOnce(pn)) {
+					ConcurrencyUtils.checkForInterruption();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Removes and and or gates with a single input, and merges and and or
+	 * gates into a gate of the same type that is their only output.
+	 */
+	public static PropNetPass collapseGateChains() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "collapseGateChains";
+			}
+
+			@Override
+			public void run(PropNet pn) {
+				for (Component c : new ArrayList<Component>(pn.getComponents())) {
+					if (!(c instanceof And || c instanceof Or) || !pn.getComponents().contains(c)) {
+						continue;
+					}
+					if (c.getInputs().size() == 1) {
+						bypass(pn, c, c.getSingleInput());
+					} else if (c.getOutputs().size() == 1 && c.getSingleOutput().getClass() == c.getClass()) {
+						Component parent = c.getSingleOutput();
+						parent.removeInput(c);
+						for (Component input : c.getInputs()) {
+							input.addOutput(parent);
+							parent.addInput(input);
+						}
+						pn.removeComponent(c);
+					}
+				}
+			}
+		};
+	}
+
+	/** Replaces the negation of a negation with the original component. */
+	public static PropNetPass removeDoubleNegations() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "removeDoubleNegations";
+			}
+
+			@Override
+			public void run(PropNet pn) {
+				for (Component c : new ArrayList<Component>(pn.getComponents())) {
+					if (!(c instanceof Not) || !pn.getComponents().contains(c)) {
+						continue;
+					}
+					Component inner = c.getSingleInput();
+					if (inner instanceof Not) {
+						bypass(pn, c, inner.getSingleInput());
+						if (inner.getOutputs().isEmpty()) {
+							pn.removeComponent(inner);
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/** Wraps OptimizingPropNetFactory.removeUnreachableBasesAndInputs. */
+	public static PropNetPass removeUnreachableBasesAndInputs() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "removeUnreachableBasesAndInputs";
+			}
+
+			@Override
+			public void run(PropNet pn) {
+				OptimizingPropNetFactory.removeUnreachableBasesAndInputs(pn);
+			}
+		};
+	}
+
+	/**
+	 * Wraps OptimizingPropNetFactory.lopUselessLeaves. This may remove base
+	 * propositions, which changes the states of the game.
+	 */
+	public static PropNetPass lopUselessLeaves() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "lopUselessLeaves";
+			}
+
+			@Override
+			public void run(PropNet pn) {
+				OptimizingPropNetFactory.lopUselessLeaves(pn);
+			}
+		};
+	}
+
+	/** Wraps OptimizingPropNetFactory.removeAnonymousPropositions. */
+	public static PropNetPass removeAnonymousPropositions() {
+		return new PropNetPass() {
+			@Override
+			public String getName() {
+				return "removeAnonymousPropositions";
+			}
+
+			@Override
+			public void run(PropNet pn) {
+				OptimizingPropNetFactory.removeAnonymousPropositions(pn);
+			}
+		};
+	}
+
+	/**
+	 * Folds the constants of the propnet into the gates they feed. The
+	 * propnet gets a true and a false constant for this if it doesn't have
+	 * them yet; they are removed again if nothing ends up using them.
+	 */
+	public static void propagateConstants(PropNet pn) {
+		Constant trueComponent = null;
+		Constant falseComponent = null;
+		for (Component c : new ArrayList<Component>(pn.getComponents())) {
+			if (c instanceof Constant) {
+				Constant constant = (Constant) c;
+				if (constant.getValue()) {
+					if (trueComponent == null) {
+						trueComponent = constant;
+					} else {
+						bypass(pn, constant, trueComponent);
+					}
+				} else {
+					if (falseComponent == null) {
+						falseComponent = constant;
+					} else {
+						bypass(pn, constant, falseComponent);
+					}
+				}
+			}
+		}
+		boolean addedTrue = (trueComponent == null);
+		boolean addedFalse = (falseComponent == null);
+		if (addedTrue) {
+			trueComponent = new Constant(true);
+			pn.addComponent(trueComponent);
+		}
+		if (addedFalse) {
+			falseComponent = new Constant(false);
+			pn.addComponent(falseComponent);
+		}
+
+		OptimizingPropNetFactory.optimizeAwayTrueAndFalse(pn, trueComponent, falseComponent);
+
+		if (addedTrue && trueComponent.getOutputs().isEmpty()) {
+			pn.removeComponent(trueComponent);
+		}
+		if (addedFalse && falseComponent.getOutputs().isEmpty()) {
+			pn.removeComponent(falseComponent);
+		}
+	}
+
+	private static boolean foldConstantTransitionsOnce(PropNet pn) {
+		Map<List<GdlTerm>, Proposition> initPropositions = new HashMap<List<GdlTerm>, Proposition>();
+		for (Proposition p : pn.getPropositions()) {
+			if (p.getName().getName() == INIT) {
+				initPropositions.put(p.getName().getBody(), p);
+			}
+		}
+
+		boolean changed = false;
+		for (Proposition base : pn.getBasePropositions().values()) {
+			if (base.getOutputs().isEmpty()) {
+				continue;
+			}
+			Component next = base.getSingleInput().getSingleInput();
+			if (!(next instanceof Constant)) {
+				continue;
+			}
+			GdlSentence name = base.getName();
+			Proposition init = initPropositions.get(name.getBody());
+			boolean initiallyTrue = init != null && init.getInputs().size() == 1
+					&& init.getSingleInput() instanceof Constant && init.getSingleInput().getValue();
+			if (next.getValue() == initiallyTrue) {
+				for (Component output : base.getOutputs()) {
+					output.removeInput(base);
+					output.addInput(next);
+					next.addOutput(output);
+				}
+				base.removeAllOutputs();
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean foldLatchedBasesOnce(PropNet pn) {
+		FlatPropNet flat = new FlatPropNet(pn);
+		LatchAnalysis latches = new LatchAnalysis(flat);
+		int[] baseIds = flat.getBaseIds();
+		boolean changed = false;
+		for (int i = 0; i < baseIds.length; i++) {
+			Component base = flat.getComponents()[baseIds[i]];
+			if (latches.isConstant(i) && !base.getOutputs().isEmpty()) {
+				Component constant = getConstant(pn, latches.getConstantValue(i));
+				for (Component output : base.getOutputs()) {
+					output.removeInput(base);
+					output.addInput(constant);
+					constant.addOutput(output);
+				}
+				base.removeAllOutputs();
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/** Returns a constant of the propnet with the given value, adding one if needed. */
+	private static Constant getConstant(PropNet pn, boolean value) {
+		for (Component c : pn.getComponents()) {
+			if (c instanceof Constant && c.getValue() == value) {
+				return (Constant) c;
+			}
+		}
+		Constant constant = new Constant(value);
+		pn.addComponent(constant);
+		return constant;
+	}
+
+	private static boolean mergeIdenticalGatesOnce(PropNet pn) {
+		Map<List<Object>, Component> gatesByInputs = new HashMap<List<Object>, Component>();
+		boolean changed = false;
+		for (Component c : new ArrayList<Component>(pn.getComponents())) {
+			if (!(c instanceof And || c instanceof Or || c instanceof Not) || c.getInputs().isEmpty()) {
+				continue;
+			}
+			List<Object> key = Arrays.<Object>asList(c.getClass(), new HashSet<Component>(c.getInputs()));
+			Component original = gatesByInputs.get(key);
+			if (original == null) {
+				gatesByInputs.put(key, c);
+			} else {
+				bypass(pn, c, original);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Moves the outputs of the given component to the replacement, and
+	 * removes the component from the propnet.
+	 */
+	private static void bypass(PropNet pn, Component c, Component replacement) {
+		for (Component output : c.getOutputs()) {
+			output.removeInput(c);
+			output.addInput(replacement);
+			replacement.addOutput(output);
+		}
+		c.removeAllOutputs();
+		pn.removeComponent(c);
+	}
+}
@@ -0,0 +1,31 @@
+package org.ggp.base.util.propnet.factory.event;
+
+import org.ggp.base.util.observer.Event;
+
+/**
+ * Sent by OptimizingPropNetFactory after it adds each sentence form of the
+ * game to the PropNet it is building.
+ */
+public final class PropNetProgressEvent extends Event
+{
+
+	private final int formsAdded;
+	private final int formCount;
+
+	public PropNetProgressEvent(int formsAdded, int formCount)
+	{
+		this.formsAdded = formsAdded;
+		this.formCount = formCount;
+	}
+
+	public int getFormsAdded()
+	{
+		return formsAdded;
+	}
+
+	public int getFormCount()
+	{
+		return formCount;
+	}
+
+}
@@ -1,12 +1,17 @@
 package org.ggp.base.util.prover.aima;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlDistinct;
 import org.ggp.base.util.gdl.grammar.GdlLiteral;
 import org.ggp.base.util.gdl.grammar.GdlNot;
@@ -16,6 +21,7 @@ import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.cache.ProverCache;
+import org.ggp.base.util.prover.aima.cache.SubgoalTables;
 import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
 import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
 import org.ggp.base.util.prover.aima.substituter.Substituter;
@@ -25,15 +31,188 @@ import org.ggp.base.util.prover.aima.unifier.Unifier;
 import com.google.common.collect.Sets;
 
 
+/**
+ * AimaProver answers queries by backward chaining over the game rules and
+ * the sentences of the query context.
+ *
+ * A state machine asks several queries against the same state (terminal,
+ * then the legal moves and goals of each role, then next), so each thread
+ * keeps the answers it has proven for its last context, and later queries
+ * reuse them. When the context changes, only the answers for relations
+ * that depend on the sentences that were added or removed are dropped; the
+ * rest stay valid, including everything derived from the state alone when
+ * only the does sentences change.
+ *
+ * By default, a subgoal that is already being proven further up the proof
+ * is skipped, which can lose answers of recursive rules, and never ends on
+ * left-recursive ones. In tabled mode, each subgoal instead gets a table
+ * of answers: recursive calls consume the answers found so far, and the
+ * recursive component is evaluated again until its tables stop growing
+ * (see SubgoalTables). Complete tables are cached like any other answers.
+ * Negated subgoals are proven to completion before they are tested, which
+ * is sound for stratified rules, as GDL requires; a negation that recurses
+ * back into a subgoal being proven only sees the answers found so far.
+ *
+ * A query binds its variables into a single substitution as it goes down a
+ * proof, and undoes the bindings on its trail when it backtracks; only the
+ * answers are copied.
+ *
+ * One AimaProver can be queried from any number of threads at once: the
+ * knowledge base of the game is immutable and never locked, and all of the
+ * state that a query builds up is private to its thread.
+ */
 public final class AimaProver extends Prover
 {
 
 	private final KnowledgeBase knowledgeBase;
+	private final boolean tabled;
+	/** The relations whose answers can depend on each relation, including itself. */
+	private final Map<GdlConstant, Set<GdlConstant>> dependents;
+	/**
+	 * The context cache of each thread that has queried this prover. They
+	 * are held by the prover rather than by ThreadLocals, so that pooled
+	 * threads don't keep them alive after the prover is dropped, and they go
+	 * away with their threads.
+	 */
+	private final Map<Thread, ContextCache> contextCaches = Collections.synchronizedMap(new WeakHashMap<Thread, ContextCache>());
+
+	/** The context that a thread asked its last query against, and what was proven in it. */
+	private static final class ContextCache
+	{
+		private Set<GdlSentence> context = new HashSet<GdlSentence>();
+		private KnowledgeBase knowledgeBase = new KnowledgeBase(context);
+		private final ProverCache cache = new ProverCache();
+	}
 
 	public AimaProver(List<Gdl> description)
 	{
+		this(description, false);
+	}
+
+	/** Creates a prover for the game, which uses tabled resolution if asked to. */
+	public AimaProver(List<Gdl> description, boolean tabled)
+	{
+		this.tabled = tabled;
 		description = DistinctAndNotMover.run(description);
 		knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
+		dependents = computeDependents(description);
+	}
+
+	private static Map<GdlConstant, Set<GdlConstant>> computeDependents(List<Gdl> description)
+	{
+		Map<GdlConstant, Set<GdlConstant>> heads = new HashMap<GdlConstant, Set<GdlConstant>>();
+		for (Gdl gdl : description)
+		{
+			if (gdl instanceof GdlRule)
+			{
+				GdlRule rule = (GdlRule) gdl;
+				for (int i = 0; i < rule.arity(); i++)
+				{
+					for (GdlConstant name : getRelationNames(rule.get(i), new HashSet<GdlConstant>()))
+					{
+						if (!heads.containsKey(name))
+						{
+							heads.put(name, new HashSet<GdlConstant>());
+						}
+						heads.get(name).add(rule.getHead().getName());
+					}
+				}
+			}
+		}
+
+		Map<GdlConstant, Set<GdlConstant>> dependents = new HashMap<GdlConstant, Set<GdlConstant>>();
+		for (GdlConstant name : heads.keySet())
+		{
+			Set<GdlConstant> reached = new HashSet<GdlConstant>();
+			LinkedList<GdlConstant> queue = new LinkedList<GdlConstant>();
+			reached.add(name);
+			queue.add(name);
+			while (!queue.isEmpty())
+			{
+				Set<GdlConstant> next = heads.get(queue.removeFirst());
+				if (next != null)
+				{
+					for (GdlConstant head : next)
+					{
+						if (reached.add(head))
+						{
+							queue.add(head);
+						}
+					}
+				}
+			}
+			dependents.put(name, reached);
+		}
+		return dependents;
+	}
+
+	private static Set<GdlConstant> getRelationNames(GdlLiteral literal, Set<GdlConstant> names)
+	{
+		if (literal instanceof GdlSentence)
+		{
+			names.add(((GdlSentence) literal).getName());
+		}
+		else if (literal instanceof GdlNot)
+		{
+			getRelationNames(((GdlNot) literal).getBody(), names);
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			for (int i = 0; i < or.arity(); i++)
+			{
+				getRelationNames(or.get(i), names);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Returns this thread's cache for the given context, after dropping the
+	 * answers that the differences from its last context may have changed.
+	 */
+	private ContextCache getContextCache(Set<GdlSentence> context)
+	{
+		Thread thread = Thread.currentThread();
+		ContextCache entry = contextCaches.get(thread);
+		if (entry == null)
+		{
+			entry = new ContextCache();
+			contextCaches.put(thread, entry);
+		}
+		Set<GdlConstant> changed = new HashSet<GdlConstant>();
+		for (GdlSentence sentence : context)
+		{
+			if (!entry.context.contains(sentence))
+			{
+				changed.add(sentence.getName());
+			}
+		}
+		for (GdlSentence sentence : entry.context)
+		{
+			if (!context.contains(sentence))
+			{
+				changed.add(sentence.getName());
+			}
+		}
+
+		if (!changed.isEmpty())
+		{
+			Set<GdlConstant> affected = new HashSet<GdlConstant>();
+			for (GdlConstant name : changed)
+			{
+				Set<GdlConstant> names = dependents.get(name);
+				if (names != null)
+				{
+					affected.addAll(names);
+				}
+				affected.add(name);
+			}
+			entry.cache.removeAll(affected);
+			entry.context = new HashSet<GdlSentence>(context);
+			entry.knowledgeBase = new KnowledgeBase(entry.context);
+		}
+		return entry;
 	}
 
 	private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
@@ -41,9 +220,10 @@ public final class AimaProver extends Prover
 		LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
 		goals.add(query);
 
+		ContextCache contextCache = getContextCache(context);
 		Set<Substitution> answers = new HashSet<Substitution>();
 		Set<GdlSentence> alreadyAsking = new HashSet<GdlSentence>();
-		ask(goals, new KnowledgeBase(context), new Substitution(), new ProverCache(), new VariableRenamer(), askOne, answers, alreadyAsking);
+		ask(goals, contextCache.knowledgeBase, new Substitution(), new ProverCache(contextCache.cache), new VariableRenamer(), askOne, answers, alreadyAsking);
 
 		Set<GdlSentence> results = new HashSet<GdlSentence>();
 		for (Substitution theta : answers)
@@ -58,11 +238,12 @@ public final class AimaProver extends Prover
 	{
 		if (goals.size() == 0)
 		{
-			results.add(theta);
+			results.add(theta.copy());
 		}
 		else
 		{
 			GdlLiteral literal = goals.removeFirst();
+			int mark = theta.mark();
 			GdlLiteral qPrime = Substituter.substitute(literal, theta);
 
 			if (qPrime instanceof GdlDistinct)
@@ -83,9 +264,17 @@ public final class AimaProver extends Prover
 			else
 			{
 				GdlSentence sentence = (GdlSentence) qPrime;
-				askSentence(sentence, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+				if (tabled)
+				{
+					askSentenceTabled(sentence, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+				}
+				else
+				{
+					askSentence(sentence, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+				}
 			}
 
+			theta.undo(mark);
 			goals.addFirst(literal);
 		}
 	}
@@ -146,38 +335,81 @@ public final class AimaProver extends Prover
 		{
 			//Prevent infinite loops on certain recursive queries.
 			if(alreadyAsking.contains(sentence)) {
+				cache.noteIncomplete();
 				return;
 			}
 			alreadyAsking.add(sentence);
-			List<GdlRule> candidates = new ArrayList<GdlRule>();
-			candidates.addAll(knowledgeBase.fetch(sentence));
-			candidates.addAll(context.fetch(sentence));
-
+			int incomplete = cache.getIncompleteCount();
 			Set<Substitution> sentenceResults = new HashSet<Substitution>();
-			for (GdlRule rule : candidates)
+			proveSentence(sentence, context, theta, cache, renamer, sentenceResults, alreadyAsking);
+
+			cache.put(sentence, sentenceResults, cache.getIncompleteCount() == incomplete);
+			alreadyAsking.remove(sentence);
+		}
+
+		for (Substitution thetaPrime : cache.get(sentence))
+		{
+			int mark = theta.mark();
+			theta.putAll(thetaPrime);
+			ask(goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+			theta.undo(mark);
+			if (askOne && (results.size() > 0))
 			{
-				GdlRule r = renamer.rename(rule);
-				Substitution thetaPrime = Unifier.unify(r.getHead(), sentence);
+				break;
+			}
+		}
+	}
 
-				if (thetaPrime != null)
+	private void askSentenceTabled(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
+	{
+		List<Substitution> answers;
+		if (cache.contains(sentence))
+		{
+			answers = cache.get(sentence);
+		}
+		else
+		{
+			SubgoalTables tables = cache.getSubgoalTables();
+			SubgoalTables.Table table = tables.get(sentence);
+			if ((table != null) && table.isOnStack())
+			{
+				tables.call(table);
+			}
+			else
+			{
+				table = tables.enter(sentence);
+				int answerCount;
+				do
 				{
-					LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>();
-					for (int i = 0; i < r.arity(); i++)
+					answerCount = tables.getAnswerCount();
+					Set<Substitution> sentenceResults = new HashSet<Substitution>();
+					proveSentence(sentence, context, theta, cache, renamer, sentenceResults, alreadyAsking);
+					for (Substitution result : sentenceResults)
 					{
-						sentenceGoals.add(r.get(i));
+						tables.addAnswer(table, Substituter.substitute(sentence, result));
 					}
+				}
+				while (table.isLeader() && table.isRecursive() && (tables.getAnswerCount() != answerCount));
 
-					ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults, alreadyAsking);
+				for (Map.Entry<GdlSentence, Set<GdlSentence>> entry : tables.exit(table).entrySet())
+				{
+					cache.putAnswers(entry.getKey(), entry.getValue(), true);
 				}
 			}
 
-			cache.put(sentence, sentenceResults);
-			alreadyAsking.remove(sentence);
+			answers = new ArrayList<Substitution>();
+			for (GdlSentence answer : table.getAnswers())
+			{
+				answers.add(Unifier.unify(sentence, answer));
+			}
 		}
 
-		for (Substitution thetaPrime : cache.get(sentence))
+		for (Substitution thetaPrime : answers)
 		{
-			ask(goals, context, theta.compose(thetaPrime), cache, renamer, askOne, results, alreadyAsking);
+			int mark = theta.mark();
+			theta.putAll(thetaPrime);
+			ask(goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+			theta.undo(mark);
 			if (askOne && (results.size() > 0))
 			{
 				break;
@@ -185,6 +417,32 @@ public final class AimaProver extends Prover
 		}
 	}
 
+	/** Proves the sentence from each rule whose head unifies with it, and adds the answers to the results. */
+	private void proveSentence(GdlSentence sentence, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
+	{
+		List<GdlRule> candidates = new ArrayList<GdlRule>();
+		candidates.addAll(knowledgeBase.fetch(sentence));
+		candidates.addAll(context.fetch(sentence));
+
+		for (GdlRule rule : candidates)
+		{
+			GdlRule r = renamer.rename(rule);
+			int mark = theta.mark();
+
+			if (Unifier.unify(r.getHead(), sentence, theta))
+			{
+				LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>();
+				for (int i = 0; i < r.arity(); i++)
+				{
+					sentenceGoals.add(r.get(i));
+				}
+
+				ask(sentenceGoals, context, theta, cache, renamer, false, results, alreadyAsking);
+				theta.undo(mark);
+			}
+		}
+	}
+
 	@Override
 	public boolean prove(GdlSentence query, Set<GdlSentence> context)
 	{
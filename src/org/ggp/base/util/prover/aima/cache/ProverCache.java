@@ -3,10 +3,12 @@ package org.ggp.base.util.prover.aima.cache;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
 import org.ggp.base.util.prover.aima.substituter.Substituter;
@@ -14,25 +16,64 @@ import org.ggp.base.util.prover.aima.substitution.Substitution;
 import org.ggp.base.util.prover.aima.unifier.Unifier;
 
 
+/**
+ * ProverCache holds the answers the prover has found for sentences.
+ *
+ * A cache for a single query can be layered over a shared cache that
+ * outlives it. Lookups read through to the shared cache, and answers that
+ * are known to be complete and ground are written to it, so later queries
+ * on the same context can reuse them. Answers found while the loop check
+ * cut a proof short may be missing some results, so those are only kept
+ * for the rest of the query, and so is anything proven from them.
+ *
+ * The cache of a query also holds its answer tables when the prover runs
+ * in tabled mode (see SubgoalTables).
+ */
 public final class ProverCache
 {
 
 	private final Map<GdlSentence, Set<GdlSentence>> contents;
+	private final ProverCache shared;
+	private int incomplete;
+	private SubgoalTables tables;
 
 	public ProverCache()
+	{
+		this(null);
+	}
+
+	/** Creates a cache for a single query, layered over the given shared cache. */
+	public ProverCache(ProverCache shared)
 	{
 		contents = new HashMap<GdlSentence, Set<GdlSentence>>();
+		this.shared = shared;
+		incomplete = 0;
 	}
 
 	public boolean contains(GdlSentence sentence)
 	{
-		return contents.containsKey(new VariableRenamer().rename(sentence));
+		return lookup(new VariableRenamer().rename(sentence)) != null;
 	}
 
 	public List<Substitution> get(GdlSentence sentence)
 	{
+		GdlSentence key = new VariableRenamer().rename(sentence);
+		Set<GdlSentence> answers = contents.get(key);
+		if (answers == null)
+		{
+			answers = lookup(key);
+			if (answers == null)
+			{
+				return new ArrayList<Substitution>();
+			}
+		}
+		else if (shared != null)
+		{
+			incomplete++;
+		}
+
 		Set<Substitution> results = new HashSet<Substitution>();
-		for (GdlSentence answer : contents.get(new VariableRenamer().rename(sentence)))
+		for (GdlSentence answer : answers)
 		{
 			results.add(Unifier.unify(sentence, answer));
 		}
@@ -40,7 +81,27 @@ public final class ProverCache
 		return new ArrayList<Substitution>(results);
 	}
 
+	private Set<GdlSentence> lookup(GdlSentence key)
+	{
+		Set<GdlSentence> results = contents.get(key);
+		if ((results == null) && (shared != null))
+		{
+			results = shared.contents.get(key);
+		}
+		return results;
+	}
+
 	public void put(GdlSentence sentence, Set<Substitution> answers)
+	{
+		put(sentence, answers, false);
+	}
+
+	/**
+	 * Stores the answers for the sentence. If they are complete, and all
+	 * ground, they go to the shared cache; otherwise they are only kept by
+	 * this cache.
+	 */
+	public void put(GdlSentence sentence, Set<Substitution> answers, boolean complete)
 	{
 		Set<GdlSentence> results = new HashSet<GdlSentence>();
 		for (Substitution answer : answers)
@@ -48,7 +109,59 @@ public final class ProverCache
 			results.add(Substituter.substitute(sentence, answer));
 		}
 
-		contents.put(new VariableRenamer().rename(sentence), results);
+		putAnswers(sentence, results, complete);
+	}
+
+	/** Stores answers for the sentence that are instances of it, like put(). */
+	public void putAnswers(GdlSentence sentence, Set<GdlSentence> results, boolean complete)
+	{
+		boolean ground = true;
+		for (GdlSentence result : results)
+		{
+			ground &= result.isGround();
+		}
+
+		ProverCache target = (complete && ground && (shared != null)) ? shared : this;
+		target.contents.put(new VariableRenamer().rename(sentence), results);
+	}
+
+	/** Returns the answer tables of the query, for tabled resolution. */
+	public SubgoalTables getSubgoalTables()
+	{
+		if (tables == null)
+		{
+			tables = new SubgoalTables();
+		}
+		return tables;
+	}
+
+	/** Records that the loop check cut a proof short. */
+	public void noteIncomplete()
+	{
+		incomplete++;
+	}
+
+	/**
+	 * Returns the number of times so far that a proof was cut short, or used
+	 * answers that were not shared. Answers are complete if this count
+	 * didn't change while they were being proven.
+	 */
+	public int getIncompleteCount()
+	{
+		return incomplete;
+	}
+
+	/** Drops the answers for sentences whose relation is one of the given names. */
+	public void removeAll(Set<GdlConstant> names)
+	{
+		Iterator<GdlSentence> keys = contents.keySet().iterator();
+		while (keys.hasNext())
+		{
+			if (names.contains(keys.next().getName()))
+			{
+				keys.remove();
+			}
+		}
 	}
 
 }
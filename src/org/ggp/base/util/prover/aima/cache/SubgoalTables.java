@@ -0,0 +1,169 @@
+package org.ggp.base.util.prover.aima.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
+
+
+/**
+ * SubgoalTables holds the answer tables of tabled resolution for a single
+ * query: the answers found so far for each subgoal that is being proven,
+ * or that belongs to a recursive component that isn't complete yet.
+ * Subgoals are identified up to the names of their variables.
+ *
+ * The subgoals being evaluated form a stack. A call to a subgoal that is
+ * already on the stack is a recursive call: it consumes the answers found
+ * so far, and links the subgoals above it on the stack to it. A subgoal
+ * that nothing links below itself leads a component. It re-evaluates the
+ * component until none of its tables gains an answer, and then every table
+ * of the component is complete.
+ */
+public final class SubgoalTables
+{
+
+	public static final class Table
+	{
+		private final GdlSentence key;
+		private final Set<GdlSentence> answers;
+		/** The position of the table on the stack, or -1 if it isn't on it. */
+		private int depth;
+		/** The lowest position on the stack that this evaluation of the table depends on. */
+		private int link;
+		private boolean recursive;
+
+		private Table(GdlSentence key)
+		{
+			this.key = key;
+			answers = new LinkedHashSet<GdlSentence>();
+			depth = -1;
+		}
+
+		/** Returns the answers found so far. */
+		public List<GdlSentence> getAnswers()
+		{
+			return new ArrayList<GdlSentence>(answers);
+		}
+
+		public boolean isOnStack()
+		{
+			return depth != -1;
+		}
+
+		/** Returns whether the table was called recursively while on the stack. */
+		public boolean isRecursive()
+		{
+			return recursive;
+		}
+
+		/** Returns whether the table leads the component being evaluated. Only valid while on the stack. */
+		public boolean isLeader()
+		{
+			return link == depth;
+		}
+	}
+
+	private final Map<GdlSentence, Table> tables;
+	private final List<Table> stack;
+	/** The tables that have been evaluated but aren't complete, in the order they were last entered. */
+	private final List<Table> incomplete;
+	private int answerCount;
+
+	public SubgoalTables()
+	{
+		tables = new HashMap<GdlSentence, Table>();
+		stack = new ArrayList<Table>();
+		incomplete = new ArrayList<Table>();
+		answerCount = 0;
+	}
+
+	/** Returns the table of the sentence, or null if it has none or its table is complete. */
+	public Table get(GdlSentence sentence)
+	{
+		return tables.get(new VariableRenamer().rename(sentence));
+	}
+
+	/** Pushes the table of the sentence onto the stack, to evaluate it. The answers it already has are kept. */
+	public Table enter(GdlSentence sentence)
+	{
+		GdlSentence key = new VariableRenamer().rename(sentence);
+		Table table = tables.get(key);
+		if (table == null)
+		{
+			table = new Table(key);
+			tables.put(key, table);
+		}
+		else
+		{
+			incomplete.remove(table);
+		}
+		incomplete.add(table);
+
+		table.depth = stack.size();
+		table.link = table.depth;
+		table.recursive = false;
+		stack.add(table);
+		return table;
+	}
+
+	/** Records a call to a table that is on the stack, from the table on top of the stack. */
+	public void call(Table table)
+	{
+		table.recursive = true;
+		Table top = stack.get(stack.size() - 1);
+		top.link = Math.min(top.link, table.depth);
+	}
+
+	/** Adds an answer to the table, and returns whether it was new. */
+	public boolean addAnswer(Table table, GdlSentence answer)
+	{
+		if (table.answers.add(answer))
+		{
+			answerCount++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Returns the number of answers that have been added to any table. */
+	public int getAnswerCount()
+	{
+		return answerCount;
+	}
+
+	/**
+	 * Pops the table, which must be on top of the stack. If it leads its
+	 * component, the component is complete: its tables are dropped and
+	 * returned, keyed by their sentences, so that their answers can be
+	 * cached. Otherwise the table stays incomplete, and its link passes to
+	 * the table below it.
+	 */
+	public Map<GdlSentence, Set<GdlSentence>> exit(Table table)
+	{
+		stack.remove(stack.size() - 1);
+		Map<GdlSentence, Set<GdlSentence>> completed = new HashMap<GdlSentence, Set<GdlSentence>>();
+		if (!table.isLeader())
+		{
+			Table below = stack.get(stack.size() - 1);
+			below.link = Math.min(below.link, table.link);
+		}
+		else
+		{
+			List<Table> component = incomplete.subList(incomplete.lastIndexOf(table), incomplete.size());
+			for (Table member : component)
+			{
+				completed.put(member.key, member.answers);
+				tables.remove(member.key);
+			}
+			component.clear();
+		}
+		table.depth = -1;
+		return completed;
+	}
+
+}
@@ -1,49 +1,269 @@
 package org.ggp.base.util.prover.aima.knowledge;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
 
 
+/**
+ * KnowledgeBase holds rules and facts by the relation of their head, and
+ * fetches the ones whose head might unify with a sentence.
+ *
+ * Relations with many rules, such as large tables of facts, are indexed on
+ * their arguments the way Prolog systems index clauses: the first time a
+ * sentence is fetched with some argument bound, the rules of its relation
+ * are grouped by the constant or function name in that argument of their
+ * head. Fetches then use the index of whichever bound argument leaves the
+ * fewest candidates, and drop the candidates that clash with the other
+ * bound arguments. Candidates are always returned in the order the rules
+ * were given in.
+ *
+ * A KnowledgeBase is immutable once built, and can be read by any number
+ * of threads at once without locking. The indexes are built on demand: two
+ * threads may race to build the same index, but they build equal ones,
+ * and each index is published whole.
+ */
 public final class KnowledgeBase
 {
-	private final Map<GdlConstant, List<GdlRule>> contents;
+	/** Relations with fewer rules than this are scanned rather than indexed. */
+	private static final int MIN_INDEXED_RULES = 8;
+
+	private final Map<GdlConstant, Relation> contents;
 
 	public KnowledgeBase(Set<? extends Gdl> description)
 	{
-		contents = new HashMap<GdlConstant, List<GdlRule>>();
+		Map<GdlConstant, List<GdlRule>> rules = new HashMap<GdlConstant, List<GdlRule>>();
 		for (Gdl gdl : description)
 		{
 			GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
 			GdlConstant key = rule.getHead().getName();
 
-			if (!contents.containsKey(key))
+			if (!rules.containsKey(key))
 			{
-				contents.put(key, new ArrayList<GdlRule>());
+				rules.put(key, new ArrayList<GdlRule>());
 			}
-			contents.get(key).add(rule);
+			rules.get(key).add(rule);
+		}
+
+		contents = new HashMap<GdlConstant, Relation>();
+		for (Map.Entry<GdlConstant, List<GdlRule>> entry : rules.entrySet())
+		{
+			contents.put(entry.getKey(), new Relation(entry.getValue()));
 		}
 	}
 
-	public synchronized List<GdlRule> fetch(GdlSentence sentence)
+	/**
+	 * Returns the rules whose head might unify with the sentence. The list
+	 * must not be modified.
+	 */
+	public List<GdlRule> fetch(GdlSentence sentence)
 	{
-		GdlConstant key = sentence.getName();
+		Relation relation = contents.get(sentence.getName());
+
+		if (relation != null)
+		{
+			return relation.fetch(sentence);
+		}
+		else
+		{
+			return Collections.emptyList();
+		}
+	}
 
-		if (contents.containsKey(key))
+	/**
+	 * Returns the key that the indexes group a term by, or null for a
+	 * variable, which may unify with anything. Functions are keyed by name
+	 * only, since the unifier doesn't compare their arities.
+	 */
+	private static Object getIndexKey(GdlTerm term)
+	{
+		if (term instanceof GdlVariable)
+		{
+			return null;
+		}
+		else if (term instanceof GdlFunction)
 		{
-			return contents.get(key);
+			return new FunctionName(((GdlFunction) term).getName());
 		}
 		else
 		{
-			return new ArrayList<GdlRule>();
+			return term;
+		}
+	}
+
+	/** The index key of a function, kept apart from constants of the same name. */
+	private static final class FunctionName
+	{
+		private final GdlConstant name;
+
+		FunctionName(GdlConstant name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return (o instanceof FunctionName) && ((FunctionName) o).name.equals(name);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return name.hashCode();
+		}
+	}
+
+	/** The rules of one relation, and the indexes built on them so far. */
+	private static final class Relation
+	{
+		private final List<GdlRule> rules;
+		/** The index on each argument position of the heads, or null if it hasn't been needed yet. */
+		private final AtomicReferenceArray<ArgumentIndex> indexes;
+
+		Relation(List<GdlRule> rules)
+		{
+			this.rules = Collections.unmodifiableList(new ArrayList<GdlRule>(rules));
+			int arity = 0;
+			for (GdlRule rule : rules)
+			{
+				arity = Math.max(arity, rule.getHead().arity());
+			}
+			this.indexes = new AtomicReferenceArray<ArgumentIndex>(arity);
+		}
+
+		List<GdlRule> fetch(GdlSentence sentence)
+		{
+			if (rules.size() < MIN_INDEXED_RULES)
+			{
+				return rules;
+			}
+
+			List<GdlRule> best = null;
+			int bestPosition = -1;
+			for (int i = 0; i < sentence.arity(); i++)
+			{
+				Object key = getIndexKey(sentence.get(i));
+				if ((key != null) && (i < indexes.length()))
+				{
+					List<GdlRule> candidates = getIndex(i).get(key);
+					if ((best == null) || (candidates.size() < best.size()))
+					{
+						best = candidates;
+						bestPosition = i;
+					}
+				}
+			}
+			if (best == null)
+			{
+				return rules;
+			}
+
+			List<GdlRule> candidates = new ArrayList<GdlRule>(best.size());
+			for (GdlRule rule : best)
+			{
+				if (mightUnify(rule.getHead(), sentence, bestPosition))
+				{
+					candidates.add(rule);
+				}
+			}
+			return candidates;
+		}
+
+		/** Checks the bound arguments of the sentence other than the given one against the head. */
+		private static boolean mightUnify(GdlSentence head, GdlSentence sentence, int skippedPosition)
+		{
+			for (int i = 0; i < Math.min(head.arity(), sentence.arity()); i++)
+			{
+				if (i != skippedPosition)
+				{
+					Object key = getIndexKey(sentence.get(i));
+					Object headKey = getIndexKey(head.get(i));
+					if ((key != null) && (headKey != null) && !key.equals(headKey))
+					{
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		private ArgumentIndex getIndex(int position)
+		{
+			ArgumentIndex index = indexes.get(position);
+			if (index == null)
+			{
+				index = new ArgumentIndex(rules, position);
+				if (!indexes.compareAndSet(position, null, index))
+				{
+					index = indexes.get(position);
+				}
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * The rules of a relation grouped by one argument of their heads. Rules
+	 * with a variable there (or with too few arguments, which the unifier
+	 * lets through) are candidates for every key, so they are part of every
+	 * group.
+	 */
+	private static final class ArgumentIndex
+	{
+		private final Map<Object, List<GdlRule>> groups;
+		private final List<GdlRule> unkeyed;
+
+		ArgumentIndex(List<GdlRule> rules, int position)
+		{
+			Map<Object, List<GdlRule>> groups = new HashMap<Object, List<GdlRule>>();
+			List<GdlRule> unkeyed = new ArrayList<GdlRule>();
+			for (GdlRule rule : rules)
+			{
+				GdlSentence head = rule.getHead();
+				Object key = (head.arity() > position) ? getIndexKey(head.get(position)) : null;
+				if (key == null)
+				{
+					unkeyed.add(rule);
+					for (List<GdlRule> group : groups.values())
+					{
+						group.add(rule);
+					}
+				}
+				else
+				{
+					if (!groups.containsKey(key))
+					{
+						groups.put(key, new ArrayList<GdlRule>(unkeyed));
+					}
+					groups.get(key).add(rule);
+				}
+			}
+			for (Map.Entry<Object, List<GdlRule>> entry : groups.entrySet())
+			{
+				entry.setValue(Collections.unmodifiableList(entry.getValue()));
+			}
+			this.groups = groups;
+			this.unkeyed = Collections.unmodifiableList(unkeyed);
+		}
+
+		List<GdlRule> get(Object key)
+		{
+			List<GdlRule> group = groups.get(key);
+			return (group == null) ? unkeyed : group;
 		}
 	}
-}
\ No newline at end of file
+}
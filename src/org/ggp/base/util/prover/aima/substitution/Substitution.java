@@ -1,35 +1,76 @@
 package org.ggp.base.util.prover.aima.substitution;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
 
 
+/**
+ * A Substitution maps variables to the terms they are bound to.
+ *
+ * The bindings are kept in arrays rather than in a map: an open-addressing
+ * table of variables and their terms, probed by the identity of the
+ * variable (variables are interned by the GdlPool), plus the variables in
+ * the order they were bound. Every put() is also recorded on a trail, so a
+ * prover can extend a single substitution as it goes down a proof and undo
+ * the bindings when it backtracks, with mark() and undo(), instead of
+ * composing a new substitution at each step. copy() takes a snapshot with
+ * no trail.
+ */
 public final class Substitution
 {
 
-	private final Map<GdlVariable, GdlTerm> contents;
+	private static final int INITIAL_CAPACITY = 8;
+
+	/** The table of bound variables, indexed by probing from their hash. */
+	private GdlVariable[] keys;
+	/** The term each slot of the table is bound to. */
+	private GdlTerm[] values;
+	/** The bound variables, in the order they were first bound. */
+	private GdlVariable[] order;
+	private int size;
+	/** For each put(), the variable and the term it was bound to before, or null. */
+	private GdlVariable[] trailVariables;
+	private GdlTerm[] trailTerms;
+	private int trailSize;
 
 	public Substitution()
 	{
-		contents = new HashMap<GdlVariable, GdlTerm>();
+		this(INITIAL_CAPACITY);
 	}
 
-	public Substitution compose(Substitution thetaPrime)
+	private Substitution(int capacity)
 	{
-		Substitution result = new Substitution();
-
-		result.contents.putAll(contents);
-		result.contents.putAll(thetaPrime.contents);
+		keys = new GdlVariable[capacity * 2];
+		values = new GdlTerm[capacity * 2];
+		order = new GdlVariable[capacity];
+		size = 0;
+		trailVariables = new GdlVariable[0];
+		trailTerms = new GdlTerm[0];
+		trailSize = 0;
+	}
 
+	public Substitution compose(Substitution thetaPrime)
+	{
+		Substitution result = copy();
+		result.putAll(thetaPrime);
 		return result;
 	}
 
+	/** Binds the variables of the other substitution as it does, replacing any bindings of this one. */
+	public void putAll(Substitution thetaPrime)
+	{
+		for (int i = 0; i < thetaPrime.size; i++)
+		{
+			GdlVariable variable = thetaPrime.order[i];
+			put(variable, thetaPrime.get(variable));
+		}
+	}
+
 	public boolean contains(GdlVariable variable)
 	{
-		return contents.containsKey(variable);
+		return keys[slot(variable)] != null;
 	}
 
 	@Override
@@ -38,7 +79,18 @@ public final class Substitution
 		if ((o != null) && (o instanceof Substitution))
 		{
 			Substitution substitution = (Substitution) o;
-			return substitution.contents.equals(contents);
+			if (substitution.size != size)
+			{
+				return false;
+			}
+			for (int i = 0; i < size; i++)
+			{
+				if (!get(order[i]).equals(substitution.get(order[i])))
+				{
+					return false;
+				}
+			}
+			return true;
 		}
 
 		return false;
@@ -46,18 +98,85 @@ public final class Substitution
 
 	public GdlTerm get(GdlVariable variable)
 	{
-		return contents.get(variable);
+		return values[slot(variable)];
 	}
 
+	/** Returns the hash code of the same bindings in a java.util.Map. */
 	@Override
 	public int hashCode()
 	{
-		return contents.hashCode();
+		int hash = 0;
+		for (int i = 0; i < size; i++)
+		{
+			hash += order[i].hashCode() ^ get(order[i]).hashCode();
+		}
+		return hash;
 	}
 
 	public void put(GdlVariable variable, GdlTerm term)
 	{
-		contents.put(variable, term);
+		int slot = slot(variable);
+		GdlTerm previous = values[slot];
+		if (trailSize == trailVariables.length)
+		{
+			int capacity = Math.max(INITIAL_CAPACITY, trailSize * 2);
+			trailVariables = Arrays.copyOf(trailVariables, capacity);
+			trailTerms = Arrays.copyOf(trailTerms, capacity);
+		}
+		trailVariables[trailSize] = variable;
+		trailTerms[trailSize] = previous;
+		trailSize++;
+
+		if (previous != null)
+		{
+			values[slot] = term;
+			return;
+		}
+		if (size == order.length)
+		{
+			grow();
+			slot = slot(variable);
+		}
+		keys[slot] = variable;
+		values[slot] = term;
+		order[size++] = variable;
+	}
+
+	/** Returns a mark that undo() can return the substitution to. */
+	public int mark()
+	{
+		return trailSize;
+	}
+
+	/**
+	 * Undoes every put() since the mark was taken, most recent first, so
+	 * the substitution binds exactly what it did then.
+	 */
+	public void undo(int mark)
+	{
+		while (trailSize > mark)
+		{
+			trailSize--;
+			GdlVariable variable = trailVariables[trailSize];
+			GdlTerm previous = trailTerms[trailSize];
+			trailVariables[trailSize] = null;
+			trailTerms[trailSize] = null;
+
+			int slot = slot(variable);
+			if (previous != null)
+			{
+				values[slot] = previous;
+			}
+			else
+			{
+				// Bindings are undone in the reverse order they were made, so
+				// this is the most recently bound variable, and nothing bound
+				// after it probes past its slot.
+				keys[slot] = null;
+				values[slot] = null;
+				order[--size] = null;
+			}
+		}
 	}
 
 	/**
@@ -67,20 +186,61 @@ public final class Substitution
 	 */
 	public Substitution copy()
 	{
-		Substitution copy = new Substitution();
-		copy.contents.putAll(contents);
+		Substitution copy = new Substitution(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(size) * 2));
+		for (int i = 0; i < size; i++)
+		{
+			int slot = copy.slot(order[i]);
+			copy.keys[slot] = order[i];
+			copy.values[slot] = get(order[i]);
+			copy.order[i] = order[i];
+		}
+		copy.size = size;
 		return copy;
 	}
 
+	/** Returns the slot of the variable in the table: where it is, or where it would go. */
+	private int slot(GdlVariable variable)
+	{
+		int mask = keys.length - 1;
+		int slot = System.identityHashCode(variable) & mask;
+		while ((keys[slot] != null) && (keys[slot] != variable))
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/** Doubles the capacity, re-inserting the variables in the order they were bound. */
+	private void grow()
+	{
+		GdlVariable[] oldKeys = keys;
+		GdlTerm[] oldValues = values;
+		keys = new GdlVariable[oldKeys.length * 2];
+		values = new GdlTerm[oldValues.length * 2];
+		order = Arrays.copyOf(order, order.length * 2);
+		int oldMask = oldKeys.length - 1;
+		for (int i = 0; i < size; i++)
+		{
+			int oldSlot = System.identityHashCode(order[i]) & oldMask;
+			while (oldKeys[oldSlot] != order[i])
+			{
+				oldSlot = (oldSlot + 1) & oldMask;
+			}
+			int slot = slot(order[i]);
+			keys[slot] = order[i];
+			values[slot] = oldValues[oldSlot];
+		}
+	}
+
 	@Override
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder();
 
 		sb.append("{ ");
-		for (GdlVariable variable : contents.keySet())
+		for (int i = 0; i < size; i++)
 		{
-			sb.append(variable + "/" + contents.get(variable) + " ");
+			sb.append(order[i] + "/" + get(order[i]) + " ");
 		}
 		sb.append("}");
 
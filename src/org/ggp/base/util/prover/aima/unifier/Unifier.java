@@ -21,6 +21,20 @@ public final class Unifier
             return null;
     }
 
+    /**
+     * Unifies the sentences by extending theta, rather than building a new
+     * substitution. If they don't unify, theta is left as it was.
+     */
+    public static boolean unify(GdlSentence x, GdlSentence y, Substitution theta)
+    {
+        int mark = theta.mark();
+        boolean isGood = unifyTerm(x.toTerm(), y.toTerm(), theta);
+
+        if(!isGood)
+            theta.undo(mark);
+        return isGood;
+    }
+
     private static boolean unifyTerm(GdlTerm x, GdlTerm y, Substitution theta)
     {
     	if(x.equals(y))
@@ -0,0 +1,156 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * BaseSentenceIndex assigns a bit position to each of the base sentences
+ * of a game, so that states can be stored as bitsets (see BitSetMachineState).
+ * A state machine creates one index per game and shares it between all of
+ * the states it produces; states over the same index can then be compared
+ * word by word.
+ */
+public final class BaseSentenceIndex
+{
+	private final GdlSentence[] sentences;
+	private final int[] sentenceHashes;
+	private final Map<GdlSentence, Integer> positions;
+	private final int wordCount;
+
+	/**
+	 * Creates an index over the given base sentences. The position of each
+	 * sentence in the index is its position in the list.
+	 */
+	public BaseSentenceIndex(List<GdlSentence> sentences)
+	{
+		this.sentences = sentences.toArray(new GdlSentence[sentences.size()]);
+		this.sentenceHashes = new int[this.sentences.length];
+		this.positions = new HashMap<GdlSentence, Integer>();
+		for (int i = 0; i < this.sentences.length; i++) {
+			sentenceHashes[i] = this.sentences[i].hashCode();
+			if (positions.put(this.sentences[i], i) != null) {
+				throw new IllegalArgumentException("Duplicate base sentence " + this.sentences[i]);
+			}
+		}
+		this.wordCount = (this.sentences.length + 63) >>> 6;
+	}
+
+	/** Returns the number of base sentences in the index. */
+	public int size()
+	{
+		return sentences.length;
+	}
+
+	/** Returns the number of longs needed to hold a state over this index. */
+	public int getWordCount()
+	{
+		return wordCount;
+	}
+
+	/** Returns the base sentence at the given position. */
+	public GdlSentence getSentence(int position)
+	{
+		return sentences[position];
+	}
+
+	/**
+	 * Returns the position of the given sentence, or -1 if it is not one of
+	 * the base sentences of this index.
+	 */
+	public int getPosition(GdlSentence sentence)
+	{
+		Integer position = positions.get(sentence);
+		return (position == null) ? -1 : position;
+	}
+
+	/**
+	 * Computes the hash code of the set of sentences whose bits are set.
+	 * This is the same value that Set.hashCode() gives for those sentences,
+	 * so that bitset states hash consistently with ordinary MachineStates.
+	 */
+	public int hashCode(long[] words)
+	{
+		int hash = 0;
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				int bit = Long.numberOfTrailingZeros(word);
+				hash += sentenceHashes[(w << 6) + bit];
+				word &= word - 1;
+			}
+		}
+		return hash;
+	}
+
+	/** Returns the sentences whose bits are set. */
+	public Set<GdlSentence> toSentences(long[] words)
+	{
+		Set<GdlSentence> contents = new HashSet<GdlSentence>();
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				int bit = Long.numberOfTrailingZeros(word);
+				contents.add(sentences[(w << 6) + bit]);
+				word &= word - 1;
+			}
+		}
+		return contents;
+	}
+
+	/**
+	 * Returns the bits of the given sentences. Sentences that are not in
+	 * the index are ignored.
+	 */
+	public long[] toWords(Collection<GdlSentence> contents)
+	{
+		long[] words = new long[wordCount];
+		for (GdlSentence sentence : contents) {
+			Integer position = positions.get(sentence);
+			if (position != null) {
+				words[position >>> 6] |= 1L << position;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Returns the bits of the given state. For bitset states over this
+	 * index, this is the state's own array, which must not be modified.
+	 */
+	public long[] getWords(MachineState state)
+	{
+		if (state instanceof BitSetMachineState) {
+			BitSetMachineState bitSetState = (BitSetMachineState) state;
+			if (bitSetState.getIndex() == this) {
+				return bitSetState.getWords();
+			}
+		} else if (state instanceof JournaledMachineState) {
+			JournaledMachineState journaledState = (JournaledMachineState) state;
+			if (journaledState.getIndex() == this) {
+				return journaledState.getWords();
+			}
+		}
+		return toWords(state.getContents());
+	}
+
+	/**
+	 * Returns the given state as a BitSetMachineState over this index,
+	 * converting it only if it is not one already.
+	 */
+	public BitSetMachineState toMachineState(MachineState state)
+	{
+		if (state instanceof BitSetMachineState) {
+			BitSetMachineState bitSetState = (BitSetMachineState) state;
+			if (bitSetState.getIndex() == this) {
+				return bitSetState;
+			}
+		}
+		return new BitSetMachineState(this, toWords(state.getContents()));
+	}
+}
@@ -0,0 +1,114 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * BitSetMachineState is a MachineState stored as a bitset over the base
+ * sentences of a game, as numbered by a BaseSentenceIndex. Its hash code is
+ * computed once, and two states over the same index are compared word by
+ * word rather than sentence by sentence. The GDL view returned by
+ * getContents() is only built when somebody asks for it.
+ *
+ * BitSetMachineStates are equal to, and hash the same as, ordinary
+ * MachineStates with the same contents.
+ */
+public final class BitSetMachineState extends MachineState
+{
+	private final BaseSentenceIndex index;
+	private final long[] words;
+	private final int hash;
+	private volatile Set<GdlSentence> contents;
+
+	/**
+	 * Creates a state over the given index. The state takes ownership of
+	 * the words array, which must not be modified afterwards.
+	 */
+	public BitSetMachineState(BaseSentenceIndex index, long[] words)
+	{
+		this(index, words, index.hashCode(words));
+	}
+
+	private BitSetMachineState(BaseSentenceIndex index, long[] words, int hash)
+	{
+		super(null);
+		if (words.length != index.getWordCount()) {
+			throw new IllegalArgumentException("Expected " + index.getWordCount() + " words, got " + words.length);
+		}
+		this.index = index;
+		this.words = words;
+		this.hash = hash;
+	}
+
+	/** Returns the index that the bits of this state refer to. */
+	public BaseSentenceIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Returns the words of the bitset. The returned array must not be
+	 * modified by the caller.
+	 */
+	public long[] getWords()
+	{
+		return words;
+	}
+
+	/** Returns whether the base sentence at the given position is true. */
+	public boolean get(int position)
+	{
+		return (words[position >>> 6] & (1L << position)) != 0;
+	}
+
+	/**
+	 * Returns the sentences that are true in this state. The set is built
+	 * from the bits on first use and cannot be modified.
+	 */
+	@Override
+	public Set<GdlSentence> getContents()
+	{
+		Set<GdlSentence> result = contents;
+		if (result == null) {
+			result = Collections.unmodifiableSet(index.toSentences(words));
+			contents = result;
+		}
+		return result;
+	}
+
+	@Override
+	public MachineState clone()
+	{
+		return new BitSetMachineState(index, words.clone(), hash);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) {
+			return true;
+		}
+		if (o instanceof BitSetMachineState) {
+			BitSetMachineState state = (BitSetMachineState) o;
+			if (state.index == index) {
+				return state.hash == hash && Arrays.equals(state.words, words);
+			}
+		}
+		if (o instanceof JournaledMachineState) {
+			JournaledMachineState state = (JournaledMachineState) o;
+			if (state.getIndex() == index) {
+				return Arrays.equals(state.getWords(), words);
+			}
+		}
+		return super.equals(o);
+	}
+}
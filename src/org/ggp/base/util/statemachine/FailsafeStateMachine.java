@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine;
 
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -271,6 +272,30 @@ public class FailsafeStateMachine extends StateMachine
         return getNextStateDestructively(state, moves);
     }
 
+    @Override
+    public List<MachineState> getNextStates(List<MachineState> states, List<List<Move>> jointMoves) throws TransitionDefinitionException {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.getNextStates(states, jointMoves);
+        } catch(TransitionDefinitionException te) {
+            throw te;
+        } catch(IllegalArgumentException ie) {
+            throw ie;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getNextStates(states, jointMoves);
+    }
+
     @Override
     public Role getRoleFromConstant(GdlConstant constant) {
         if(theBackingMachine == null)
@@ -291,6 +316,14 @@ public class FailsafeStateMachine extends StateMachine
         return getRoleFromConstant(constant);
     }
 
+    @Override
+    public SymmetryGroup getSymmetries() {
+        if(theBackingMachine == null)
+            return SymmetryGroup.trivial();
+
+        return theBackingMachine.getSymmetries();
+    }
+
     @Override
     public List<Role> getRoles() {
         if(theBackingMachine == null)
@@ -331,6 +364,26 @@ public class FailsafeStateMachine extends StateMachine
         return isTerminal(state);
     }
 
+    @Override
+    public boolean[] isTerminal(MachineState[] states) {
+        if(theBackingMachine == null)
+            return new boolean[states.length];
+
+        try {
+            return theBackingMachine.isTerminal(states);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return isTerminal(states);
+    }
+
     @Override
     public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
         if(theBackingMachine == null)
@@ -355,6 +408,37 @@ public class FailsafeStateMachine extends StateMachine
         return performDepthCharge(state, theDepth);
     }
 
+    @Override
+    public int performDepthCharges(MachineState state, int count, Random random, int[] goalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        if(theBackingMachine == null)
+            return 0;
+
+        // Work on a copy, so a failure partway through does not count twice.
+        int[] theGoals = new int[goalsOut.length];
+        try {
+            int theDepth = theBackingMachine.performDepthCharges(state, count, random, theGoals);
+            for (int i = 0; i < goalsOut.length; i++)
+                goalsOut[i] += theGoals[i];
+            return theDepth;
+        } catch (TransitionDefinitionException te) {
+            throw te;
+        } catch (MoveDefinitionException me) {
+            throw me;
+        } catch (GoalDefinitionException ge) {
+            throw ge;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return performDepthCharges(state, count, random, goalsOut);
+    }
+
     @Override
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         if(theBackingMachine == null)
@@ -403,6 +487,34 @@ public class FailsafeStateMachine extends StateMachine
         updateRoot(theState);
     }
 
+    /**
+     * Forks the backing machine. If it cannot be forked, the fork falls back
+     * to a fresh prover for the same game, as it would after a failure.
+     */
+    @Override
+    public synchronized StateMachine fork() {
+        FailsafeStateMachine theFork = new FailsafeStateMachine(null);
+        theFork.gameDescription = gameDescription;
+        if(theBackingMachine == null)
+            return theFork;
+
+        try {
+            theFork.theBackingMachine = theBackingMachine.fork();
+            return theFork;
+        } catch(Exception e) {
+            GamerLogger.logError("StateMachine", "Failsafe Machine: could not fork " + theBackingMachine.getClass() + ". Forking with a standard prover.");
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            GamerLogger.logStackTrace("StateMachine", e);
+        }
+
+        theFork.attemptLoadingProverMachine();
+        return theFork;
+    }
+
     public StateMachine getBackingMachine() {
         return theBackingMachine;
     }
@@ -0,0 +1,206 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * JournaledMachineState is a mutable MachineState for walking a game tree
+ * without allocating a state per node. A state machine advances it in place
+ * with {@link StateMachine#applyMoves(JournaledMachineState, List)} and steps
+ * it back with {@link StateMachine#undoMoves(JournaledMachineState)}.
+ *
+ * It works in one of two modes, chosen by the state machine that creates it:
+ * <ul>
+ * <li>Over a BaseSentenceIndex, the state is a bitset that is changed in
+ *     place. Each step records the positions it flipped in a journal, and
+ *     undoing a step flips them back. The hash code is kept up to date as
+ *     bits flip.</li>
+ * <li>Otherwise, each step pushes the next state (computed by copying, as
+ *     getNextState does) onto a stack, and undoing a step pops it.</li>
+ * </ul>
+ *
+ * Since the state changes, it must not be used as a key in a map or cache;
+ * use {@link #snapshot()} to get an immutable copy of the current state.
+ */
+public final class JournaledMachineState extends MachineState
+{
+	// Bitset mode.
+	private final BaseSentenceIndex index;
+	private final long[] words;
+	private int hash;
+	private int[] journal;
+	private int journalSize;
+	private int[] stepStarts;
+
+	// Copying mode.
+	private final List<MachineState> history;
+
+	private int depth;
+
+	/** Creates a journaled state that is advanced by copying. */
+	public JournaledMachineState(MachineState initialState)
+	{
+		super(null);
+		this.index = null;
+		this.words = null;
+		this.history = new ArrayList<MachineState>();
+		this.history.add(initialState);
+	}
+
+	/** Creates a journaled state that is advanced in place over the given index. */
+	public JournaledMachineState(BaseSentenceIndex index, MachineState initialState)
+	{
+		super(null);
+		this.index = index;
+		this.words = index.getWords(initialState).clone();
+		this.hash = index.hashCode(words);
+		this.journal = new int[64];
+		this.stepStarts = new int[16];
+		this.history = null;
+	}
+
+	/**
+	 * Returns the index this state is a bitset over, or null if it is
+	 * advanced by copying.
+	 */
+	public BaseSentenceIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Returns the current words of the bitset. The array changes as the
+	 * state is advanced and must not be modified except through
+	 * {@link #set(int, boolean)}. Only valid in bitset mode.
+	 */
+	public long[] getWords()
+	{
+		return words;
+	}
+
+	/** Returns the number of steps that can currently be undone. */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/** Returns whether the base sentence at the given position is true. Only valid in bitset mode. */
+	public boolean get(int position)
+	{
+		return (words[position >>> 6] & (1L << position)) != 0;
+	}
+
+	/**
+	 * Starts a new step. Changes made with {@link #set(int, boolean)} until
+	 * the next call are undone together. Only valid in bitset mode.
+	 */
+	public void beginStep()
+	{
+		if (depth == stepStarts.length)
+		{
+			stepStarts = Arrays.copyOf(stepStarts, depth * 2);
+		}
+		stepStarts[depth++] = journalSize;
+	}
+
+	/**
+	 * Sets the base sentence at the given position to the given value as
+	 * part of the current step. Only valid in bitset mode.
+	 */
+	public void set(int position, boolean value)
+	{
+		if (get(position) != value)
+		{
+			flip(position);
+			if (journalSize == journal.length)
+			{
+				journal = Arrays.copyOf(journal, journalSize * 2);
+			}
+			journal[journalSize++] = position;
+		}
+	}
+
+	private void flip(int position)
+	{
+		words[position >>> 6] ^= 1L << position;
+		int sentenceHash = index.getSentence(position).hashCode();
+		hash += get(position) ? sentenceHash : -sentenceHash;
+	}
+
+	/** Pushes the next state as a new step. Only valid in copying mode. */
+	public void push(MachineState nextState)
+	{
+		history.add(nextState);
+		depth++;
+	}
+
+	/** Reverts the most recent step. */
+	public void undo()
+	{
+		if (depth == 0)
+		{
+			throw new IllegalStateException("There are no steps to undo");
+		}
+		depth--;
+		if (history != null)
+		{
+			history.remove(history.size() - 1);
+			return;
+		}
+		int start = stepStarts[depth];
+		while (journalSize > start)
+		{
+			flip(journal[--journalSize]);
+		}
+	}
+
+	/** Returns an immutable copy of the current state. */
+	public MachineState snapshot()
+	{
+		if (history != null)
+		{
+			return history.get(history.size() - 1);
+		}
+		return new BitSetMachineState(index, words.clone());
+	}
+
+	@Override
+	public Set<GdlSentence> getContents()
+	{
+		if (history != null)
+		{
+			return history.get(history.size() - 1).getContents();
+		}
+		return index.toSentences(words);
+	}
+
+	@Override
+	public MachineState clone()
+	{
+		return snapshot().clone();
+	}
+
+	@Override
+	public int hashCode()
+	{
+		if (history != null)
+		{
+			return history.get(history.size() - 1).hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (index != null && o instanceof BitSetMachineState && ((BitSetMachineState) o).getIndex() == index)
+		{
+			return Arrays.equals(words, ((BitSetMachineState) o).getWords());
+		}
+		return super.equals(o);
+	}
+}
@@ -115,6 +115,21 @@ public abstract class StateMachine
      */
     public void doPerMoveWork() {}
 
+    /** Override this to let several threads work on the same game at once.
+     * Returns a new, already-initialized state machine for the same game,
+     * which can be used from another thread concurrently with this one.
+     * Implementations should share whatever immutable structures they compiled
+     * from the rules and duplicate only their mutable evaluation state.
+     * <p>
+     * CONTRACT: Should be called from the thread that owns this state machine,
+     * after initialization. States produced by either machine are valid for both.
+     *
+     * @throws UnsupportedOperationException if this state machine cannot be forked.
+     */
+    public StateMachine fork() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be forked");
+    }
+
     /** Override this to provide memory-saving destructive-next-state functionality.
      * <p>
      * CONTRACT: After calling this method, "state" should not be accessed.
@@ -123,6 +138,50 @@ public abstract class StateMachine
         return getNextState(state, moves);
     }
 
+    /**
+     * Returns a mutable copy of the given state, to be advanced in place with
+     * {@link #applyMoves(JournaledMachineState, List)} and stepped back with
+     * {@link #undoMoves(JournaledMachineState)}. The journaled state can be
+     * passed to any other method of this state machine.
+     * <p>
+     * Override this, together with applyMoves, in state machines that can
+     * change a state in place. By default, the journaled state keeps a stack
+     * of states and each step is computed by copying, with getNextState.
+     */
+    public JournaledMachineState getJournaledState(MachineState state) {
+        return new JournaledMachineState(state);
+    }
+
+    /**
+     * Advances the given journaled state by one joint move, in place.
+     * <p>
+     * CONTRACT: The journaled state must have been created by this state machine.
+     */
+    public void applyMoves(JournaledMachineState state, List<Move> moves) throws TransitionDefinitionException {
+        state.push(getNextState(state.snapshot(), moves));
+    }
+
+    /**
+     * Reverts the most recent joint move applied to the given journaled state.
+     *
+     * @throws IllegalStateException if no move has been applied.
+     */
+    public void undoMoves(JournaledMachineState state) {
+        state.undo();
+    }
+
+    /**
+     * Returns the symmetries of the game, which map states to states that
+     * play the same way, like the rotations of a board. Searches can use
+     * them to merge symmetric states, as CachedStateMachine can.
+     * <p>
+     * Override this in state machines that can find symmetries. By default,
+     * no symmetries are known.
+     */
+    public SymmetryGroup getSymmetries() {
+        return SymmetryGroup.trivial();
+    }
+
     /** Override this to allow the state machine to be conditioned on a particular current state.
      * This means that the state machine will only handle portions of the game tree at and below
      * the given state; it no longer needs to properly handle earlier portions of the game tree.
@@ -208,6 +267,39 @@ public abstract class StateMachine
         return nextStates;
     }
 
+    /**
+     * Returns the next state for each of a batch of states, given one joint
+     * move per state: the i-th result is the next state of the i-th state
+     * under the i-th joint move. This is equivalent to calling
+     * {@link #getNextState(MachineState, List)} on each pair, but state
+     * machines can override it to share setup work across the batch; they
+     * do best when entries for the same state are next to each other.
+     */
+    public List<MachineState> getNextStates(List<MachineState> states, List<List<Move>> jointMoves) throws TransitionDefinitionException
+    {
+        if (states.size() != jointMoves.size()) {
+            throw new IllegalArgumentException("Got " + states.size() + " states but " + jointMoves.size() + " joint moves");
+        }
+        List<MachineState> nextStates = new ArrayList<MachineState>(states.size());
+        for (int i = 0; i < states.size(); i++) {
+            nextStates.add(getNextState(states.get(i), jointMoves.get(i)));
+        }
+        return nextStates;
+    }
+
+    /**
+     * Returns whether each of a batch of states is terminal. This is
+     * equivalent to calling {@link #isTerminal(MachineState)} on each state.
+     */
+    public boolean[] isTerminal(MachineState[] states)
+    {
+        boolean[] terminal = new boolean[states.length];
+        for (int i = 0; i < states.length; i++) {
+            terminal[i] = isTerminal(states[i]);
+        }
+        return terminal;
+    }
+
     /**
      * Returns a map from each move that is legal for the given role in
      * the given state to the list of possible resulting states if that
@@ -373,6 +465,46 @@ public abstract class StateMachine
         return state;
     }
 
+    /**
+     * Performs several depth charges from the given state and sums up the goal
+     * values of the terminal states they reach. Each joint move is chosen by
+     * picking a legal move uniformly at random for each role, using the given
+     * source of randomness.
+     * <p>
+     * This is the entry point for rollout-heavy players: only the goal values
+     * are returned, so implementations can override it with an inner loop that
+     * reuses its own buffers rather than building a MachineState and move lists
+     * at every step.
+     *
+     * @param count the number of depth charges to perform.
+     * @param random the source of randomness for choosing moves.
+     * @param goalsOut an array with one element per role, in the order of
+     * {@link #getRoles()}. The goal values of each terminal state reached are
+     * added to it, so callers should zero it first if they want plain sums.
+     * @return the total number of state changes made over all of the charges.
+     */
+    public int performDepthCharges(MachineState state, int count, Random random, int[] goalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        List<Role> roles = getRoles();
+        int totalDepth = 0;
+        for (int i = 0; i < count; i++) {
+            MachineState current = state;
+            while (!isTerminal(current)) {
+                // Not reused between steps: caching machines may keep it as a key.
+                List<Move> jointMove = new ArrayList<Move>(roles.size());
+                for (Role role : roles) {
+                    List<Move> legals = getLegalMoves(current, role);
+                    jointMove.add(legals.get(random.nextInt(legals.size())));
+                }
+                current = getNextState(current, jointMove);
+                totalDepth++;
+            }
+            for (int r = 0; r < roles.size(); r++) {
+                goalsOut[r] += getGoal(current, roles.get(r));
+            }
+        }
+        return totalDepth;
+    }
+
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(final MachineState state, final double[] avgScores, final double[] avgDepth, final double discountFactor, final int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
     	avgDepth[0] = 0;
     	for (int j = 0; j < avgScores.length; j++) {
@@ -0,0 +1,120 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Symmetry is a symmetry of a game, like a rotation of the board: a
+ * permutation of the base sentences together with a permutation of the
+ * moves of each role, such that applying it to a state and a joint move
+ * gives a state with the same goals and terminality, whose legal moves and
+ * next states are those of the original with the symmetry applied.
+ *
+ * Symmetries work on states as bitsets over a BaseSentenceIndex, and are
+ * made by state machines that can find them (see SymmetryGroup).
+ */
+public final class Symmetry
+{
+	private final BaseSentenceIndex index;
+	/** The position each position is mapped to. */
+	private final int[] positions;
+	/** The move each move is mapped to, indexed by role. */
+	private final List<Map<Move, Move>> moves;
+	private final Symmetry inverse;
+
+	/**
+	 * Creates the symmetry that maps base sentence i of the index to base
+	 * sentence positions[i], and the moves of role r as given by moves[r].
+	 */
+	public Symmetry(BaseSentenceIndex index, int[] positions, List<Map<Move, Move>> moves)
+	{
+		this.index = index;
+		this.positions = positions.clone();
+		this.moves = copy(moves);
+
+		int[] inversePositions = new int[positions.length];
+		for (int i = 0; i < positions.length; i++) {
+			inversePositions[positions[i]] = i;
+		}
+		List<Map<Move, Move>> inverseMoves = new ArrayList<Map<Move, Move>>(moves.size());
+		for (Map<Move, Move> roleMoves : moves) {
+			Map<Move, Move> inverseRoleMoves = new HashMap<Move, Move>();
+			for (Map.Entry<Move, Move> entry : roleMoves.entrySet()) {
+				inverseRoleMoves.put(entry.getValue(), entry.getKey());
+			}
+			inverseMoves.add(inverseRoleMoves);
+		}
+		this.inverse = new Symmetry(this, inversePositions, inverseMoves);
+	}
+
+	private Symmetry(Symmetry inverse, int[] positions, List<Map<Move, Move>> moves)
+	{
+		this.index = inverse.index;
+		this.positions = positions;
+		this.moves = copy(moves);
+		this.inverse = inverse;
+	}
+
+	private static List<Map<Move, Move>> copy(List<Map<Move, Move>> moves)
+	{
+		List<Map<Move, Move>> copy = new ArrayList<Map<Move, Move>>(moves.size());
+		for (Map<Move, Move> roleMoves : moves) {
+			copy.add(Collections.unmodifiableMap(new HashMap<Move, Move>(roleMoves)));
+		}
+		return Collections.unmodifiableList(copy);
+	}
+
+	/** Returns the index that this symmetry permutes. */
+	public BaseSentenceIndex getIndex()
+	{
+		return index;
+	}
+
+	/** Returns the symmetry that undoes this one. */
+	public Symmetry inverse()
+	{
+		return inverse;
+	}
+
+	/** Applies the symmetry to a state. */
+	public MachineState apply(MachineState state)
+	{
+		return new BitSetMachineState(index, apply(index.getWords(state)));
+	}
+
+	/** Applies the symmetry to the bits of a state, returning new bits. */
+	public long[] apply(long[] words)
+	{
+		long[] result = new long[words.length];
+		for (int word = 0; word < words.length; word++) {
+			long bits = words[word];
+			while (bits != 0) {
+				int position = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				int image = positions[position];
+				result[image >>> 6] |= 1L << image;
+			}
+		}
+		return result;
+	}
+
+	/** Applies the symmetry to a move of the role with the given index. Moves the symmetry doesn't know are kept. */
+	public Move apply(int roleIndex, Move move)
+	{
+		Move image = moves.get(roleIndex).get(move);
+		return (image == null) ? move : image;
+	}
+
+	/** Applies the symmetry to a joint move, with the moves in the order of the roles. */
+	public List<Move> apply(List<Move> jointMove)
+	{
+		List<Move> result = new ArrayList<Move>(jointMove.size());
+		for (int r = 0; r < jointMove.size(); r++) {
+			result.add(apply(r, jointMove.get(r)));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,100 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SymmetryGroup holds the symmetries that a state machine found in a game,
+ * and maps each state to a canonical representative of the states that
+ * are symmetric to it: the one whose bitset is smallest, read as an
+ * unsigned number. Symmetric states have the same canonical state, so
+ * keying a transposition table or a cache by canonical states (or by
+ * canonicalHashCode()) merges them.
+ *
+ * Canonicalizing a state applies every symmetry to it, so it costs time
+ * proportional to the size of the group.
+ */
+public final class SymmetryGroup
+{
+	private static final SymmetryGroup TRIVIAL = new SymmetryGroup(null, Collections.<Symmetry>emptyList());
+
+	private final BaseSentenceIndex index;
+	private final List<Symmetry> symmetries;
+
+	/** Creates the group with the given symmetries besides the identity, over the given index. */
+	public SymmetryGroup(BaseSentenceIndex index, List<Symmetry> symmetries)
+	{
+		this.index = index;
+		this.symmetries = Collections.unmodifiableList(new ArrayList<Symmetry>(symmetries));
+	}
+
+	/** Returns the group of a game that has no known symmetries. */
+	public static SymmetryGroup trivial()
+	{
+		return TRIVIAL;
+	}
+
+	/** Returns the symmetries besides the identity. */
+	public List<Symmetry> getSymmetries()
+	{
+		return symmetries;
+	}
+
+	/** Returns whether the group has any symmetries besides the identity. */
+	public boolean isTrivial()
+	{
+		return symmetries.isEmpty();
+	}
+
+	/** Returns the number of symmetries, including the identity. */
+	public int size()
+	{
+		return symmetries.size() + 1;
+	}
+
+	/**
+	 * Returns the symmetry that maps the given state to its canonical
+	 * state, or null if the state is canonical already.
+	 */
+	public Symmetry getCanonicalizingSymmetry(MachineState state)
+	{
+		if (symmetries.isEmpty()) {
+			return null;
+		}
+		long[] words = index.getWords(state);
+		long[] best = words;
+		Symmetry bestSymmetry = null;
+		for (Symmetry symmetry : symmetries) {
+			long[] image = symmetry.apply(words);
+			if (compare(image, best) < 0) {
+				best = image;
+				bestSymmetry = symmetry;
+			}
+		}
+		return bestSymmetry;
+	}
+
+	/** Returns the canonical state of the given state. */
+	public MachineState canonicalize(MachineState state)
+	{
+		Symmetry symmetry = getCanonicalizingSymmetry(state);
+		return (symmetry == null) ? state : symmetry.apply(state);
+	}
+
+	/** Returns a hash code that is the same for all states that are symmetric to each other. */
+	public int canonicalHashCode(MachineState state)
+	{
+		return canonicalize(state).hashCode();
+	}
+
+	private static int compare(long[] a, long[] b)
+	{
+		for (int i = a.length - 1; i >= 0; i--) {
+			if (a[i] != b[i]) {
+				return (a[i] + Long.MIN_VALUE < b[i] + Long.MIN_VALUE) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+}
@@ -1,14 +1,18 @@
 package org.ggp.base.util.statemachine.cache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.JournaledMachineState;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.Symmetry;
+import org.ggp.base.util.statemachine.SymmetryGroup;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
@@ -17,6 +21,11 @@ public final class CachedStateMachine extends StateMachine
 {
 	private final StateMachine backingStateMachine;
 	private final TtlCache<MachineState, Entry> ttlCache;
+	private final boolean mergeSymmetricStates;
+	private List<Role> roles;
+	private MachineState initialState;
+	/** The symmetries used to merge states, or null if states aren't merged. */
+	private SymmetryGroup symmetries;
 
 	private final class Entry
 	{
@@ -35,24 +44,94 @@ public final class CachedStateMachine extends StateMachine
 	}
 
 	public CachedStateMachine(StateMachine backingStateMachine)
+	{
+		this(backingStateMachine, 0);
+	}
+
+	/**
+	 * Creates a cache that holds at most maxEntries states at a time,
+	 * or an unbounded one (pruned only between moves) if maxEntries is zero.
+	 */
+	public CachedStateMachine(StateMachine backingStateMachine, int maxEntries)
+	{
+		this(backingStateMachine, maxEntries, false);
+	}
+
+	/**
+	 * Creates a cache as above that, if mergeSymmetricStates is set, keeps
+	 * a single entry for all of the states that are symmetric to each other
+	 * under the symmetries of the backing state machine. Results for the
+	 * other states are computed from that entry by applying the symmetries,
+	 * which is usually much cheaper than asking the backing state machine.
+	 */
+	public CachedStateMachine(StateMachine backingStateMachine, int maxEntries, boolean mergeSymmetricStates)
 	{
 		this.backingStateMachine = backingStateMachine;
-		ttlCache = new TtlCache<MachineState, Entry>(1);
+		this.mergeSymmetricStates = mergeSymmetricStates;
+		ttlCache = new TtlCache<MachineState, Entry>(1, maxEntries);
+	}
+
+	/**
+	 * Forks the backing state machine. The fork gets its own cache, with
+	 * the same bound as this one.
+	 */
+	@Override
+	public StateMachine fork()
+	{
+		CachedStateMachine fork = new CachedStateMachine(backingStateMachine.fork(), ttlCache.getMaxEntries(), mergeSymmetricStates);
+		fork.roles = roles;
+		fork.initialState = initialState;
+		fork.symmetries = symmetries;
+		return fork;
 	}
 
+	/**
+	 * Journaled states change in place, so the cache is keyed on a snapshot
+	 * of them; they can still be used to look entries up.
+	 */
 	private Entry getEntry(MachineState state)
 	{
-		if (!ttlCache.containsKey(state))
+		synchronized (ttlCache)
 		{
-			ttlCache.put(state, new Entry());
+			Entry entry = ttlCache.get(state);
+			if (entry == null)
+			{
+				entry = new Entry();
+				ttlCache.put(getKey(state), entry);
+			}
+			return entry;
 		}
+	}
+
+	/** Returns an immutable state equal to the given one, to use as a key. */
+	static MachineState getKey(MachineState state)
+	{
+		return (state instanceof JournaledMachineState) ? ((JournaledMachineState) state).snapshot() : state;
+	}
+
+	/** Returns the underlying cache, so that its counters can be inspected. */
+	public TtlCache<MachineState, ?> getCache()
+	{
+		return ttlCache;
+	}
 
-		return ttlCache.get(state);
+	/**
+	 * Returns the symmetry that maps the given state to the state whose entry
+	 * holds its results, or null if that is the state itself.
+	 */
+	private Symmetry getSymmetry(MachineState state)
+	{
+		return (symmetries == null) ? null : symmetries.getCanonicalizingSymmetry(state);
 	}
 
 	@Override
 	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
 	{
+		Symmetry symmetry = getSymmetry(state);
+		if (symmetry != null)
+		{
+			state = symmetry.apply(state);
+		}
 		Entry entry = getEntry(state);
 		synchronized (entry)
 		{
@@ -68,6 +147,19 @@ public final class CachedStateMachine extends StateMachine
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
 	{
+		Symmetry symmetry = getSymmetry(state);
+		if (symmetry != null)
+		{
+			List<Move> moves = getLegalMoves(symmetry.apply(state), role);
+			List<Move> result = new ArrayList<Move>(moves.size());
+			int roleIndex = getRoleIndices().get(role);
+			for (Move move : moves)
+			{
+				result.add(symmetry.inverse().apply(roleIndex, move));
+			}
+			return result;
+		}
+
 		Entry entry = getEntry(state);
 		synchronized (entry)
 		{
@@ -83,6 +175,13 @@ public final class CachedStateMachine extends StateMachine
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
 	{
+		Symmetry symmetry = getSymmetry(state);
+		if (symmetry != null)
+		{
+			MachineState next = getNextState(symmetry.apply(state), symmetry.apply(moves));
+			return symmetry.inverse().apply(next);
+		}
+
 		Entry entry = getEntry(state);
 		synchronized (entry)
 		{
@@ -98,6 +197,11 @@ public final class CachedStateMachine extends StateMachine
 	@Override
 	public boolean isTerminal(MachineState state)
 	{
+		Symmetry symmetry = getSymmetry(state);
+		if (symmetry != null)
+		{
+			state = symmetry.apply(state);
+		}
 		Entry entry = getEntry(state);
 		synchronized (entry)
 		{
@@ -123,18 +227,30 @@ public final class CachedStateMachine extends StateMachine
 
 	@Override
 	public void initialize(List<Gdl> description) {
+		ttlCache.clear();
 		backingStateMachine.initialize(description);
+		roles = backingStateMachine.getRoles();
+		initialState = backingStateMachine.getInitialState();
+		symmetries = null;
+		if (mergeSymmetricStates && !backingStateMachine.getSymmetries().isTrivial()) {
+			symmetries = backingStateMachine.getSymmetries();
+		}
+	}
+
+	@Override
+	public SymmetryGroup getSymmetries() {
+		return backingStateMachine.getSymmetries();
 	}
 
+	/** Delegates until initialize() is called, for machines that were initialized before being wrapped. */
 	@Override
 	public List<Role> getRoles() {
-		// TODO(schreib): Should this be cached as well?
-		return backingStateMachine.getRoles();
+		return (roles != null) ? roles : backingStateMachine.getRoles();
 	}
 
+	/** Delegates until initialize() is called, like getRoles(). */
 	@Override
 	public MachineState getInitialState() {
-		// TODO(schreib): Should this be cached as well?
-		return backingStateMachine.getInitialState();
+		return (initialState != null) ? initialState : backingStateMachine.getInitialState();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,303 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.SymmetryGroup;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * ConcurrentCachedStateMachine is a variant of CachedStateMachine meant to be
+ * shared by many searcher threads. The cache is split into segments, each
+ * holding a concurrent map from states to entries, bounded by a CLOCK ring
+ * like the one in TtlCache. Looking up a cached state takes no lock: a hit
+ * only marks the entry as referenced. Adding a state, and evicting one to
+ * make room, takes the lock of its segment, so threads adding different
+ * states rarely contend. The per-state entries are concurrent maps; calls
+ * into the backing state machine are made without holding any lock, so a
+ * value may occasionally be computed twice by racing threads, but no thread
+ * ever waits on another thread's query. Null results from the backing state
+ * machine are passed through without being cached.
+ *
+ * The backing state machine must itself be safe to call from several threads.
+ */
+public final class ConcurrentCachedStateMachine extends StateMachine
+{
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final StateMachine backingStateMachine;
+	private final Segment[] segments;
+	private final int segmentMask;
+
+	private volatile List<Role> roles;
+	private volatile MachineState initialState;
+
+	private static final class CacheEntry
+	{
+		public final MachineState state;
+		public final Map<Role, Integer> goals = new ConcurrentHashMap<Role, Integer>(4);
+		public final Map<Role, List<Move>> moves = new ConcurrentHashMap<Role, List<Move>>(4);
+		public final Map<List<Move>, MachineState> nexts = new ConcurrentHashMap<List<Move>, MachineState>(4);
+		public volatile Boolean terminal;
+		/** Whether the entry has been used since the CLOCK hand last passed it. */
+		public volatile boolean referenced;
+
+		public CacheEntry(MachineState state)
+		{
+			this.state = state;
+		}
+	}
+
+	private static final class Segment
+	{
+		private final ConcurrentHashMap<MachineState, CacheEntry> contents;
+		/** The CLOCK ring of entries; only changed while holding the segment's lock. */
+		private final CacheEntry[] ring;
+		private int used;
+		private int hand;
+
+		public Segment(int maxEntries)
+		{
+			this.contents = new ConcurrentHashMap<MachineState, CacheEntry>();
+			this.ring = new CacheEntry[maxEntries];
+		}
+
+		/** Returns the entry of the state, adding one if it has none. */
+		public CacheEntry get(MachineState state)
+		{
+			CacheEntry entry = contents.get(state);
+			if (entry != null)
+			{
+				if (!entry.referenced)
+				{
+					entry.referenced = true;
+				}
+				return entry;
+			}
+			synchronized (this)
+			{
+				entry = contents.get(state);
+				if (entry == null)
+				{
+					entry = new CacheEntry(CachedStateMachine.getKey(state));
+					ring[claimSlot()] = entry;
+					contents.put(entry.state, entry);
+				}
+				return entry;
+			}
+		}
+
+		/**
+		 * Finds a slot in the ring for a new entry, evicting an entry with
+		 * the CLOCK algorithm if the ring is full.
+		 */
+		private int claimSlot()
+		{
+			if (used < ring.length)
+			{
+				return used++;
+			}
+			while (true)
+			{
+				int slot = hand;
+				hand = (hand + 1 == ring.length) ? 0 : hand + 1;
+				CacheEntry entry = ring[slot];
+				if (entry.referenced)
+				{
+					entry.referenced = false;
+					continue;
+				}
+				contents.remove(entry.state);
+				return slot;
+			}
+		}
+
+		public int size()
+		{
+			return contents.size();
+		}
+
+		public synchronized void clear()
+		{
+			contents.clear();
+			Arrays.fill(ring, null);
+			used = 0;
+			hand = 0;
+		}
+	}
+
+	public ConcurrentCachedStateMachine(StateMachine backingStateMachine)
+	{
+		this(backingStateMachine, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Creates a cache holding at most roughly maxEntries states, split into
+	 * enough segments to keep contention low on this machine.
+	 */
+	public ConcurrentCachedStateMachine(StateMachine backingStateMachine, int maxEntries)
+	{
+		this(backingStateMachine, maxEntries, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	public ConcurrentCachedStateMachine(StateMachine backingStateMachine, int maxEntries, int concurrencyLevel)
+	{
+		if (maxEntries < 1 || concurrencyLevel < 1) {
+			throw new IllegalArgumentException("maxEntries and concurrencyLevel must be positive");
+		}
+		this.backingStateMachine = backingStateMachine;
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel) {
+			segmentCount <<= 1;
+		}
+		this.segments = new Segment[segmentCount];
+		int maxEntriesPerSegment = Math.max(1, maxEntries / segmentCount);
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(maxEntriesPerSegment);
+		}
+		this.segmentMask = segmentCount - 1;
+	}
+
+	private ConcurrentCachedStateMachine(ConcurrentCachedStateMachine original)
+	{
+		this.backingStateMachine = original.backingStateMachine.fork();
+		this.segments = original.segments;
+		this.segmentMask = original.segmentMask;
+		this.roles = original.roles;
+		this.initialState = original.initialState;
+	}
+
+	/**
+	 * Forks the backing state machine. The fork shares this machine's
+	 * cache, so results computed by one thread are visible to the others.
+	 */
+	@Override
+	public StateMachine fork()
+	{
+		return new ConcurrentCachedStateMachine(this);
+	}
+
+	/** Keys journaled states on a snapshot, like CachedStateMachine. */
+	private CacheEntry getEntry(MachineState state)
+	{
+		int h = state.hashCode();
+		// Spread the hash so that states differing only in high bits
+		// still land in different segments.
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return segments[h & segmentMask].get(state);
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		CacheEntry entry = getEntry(state);
+		Integer goal = entry.goals.get(role);
+		if (goal == null)
+		{
+			goal = backingStateMachine.getGoal(state, role);
+			entry.goals.put(role, goal);
+		}
+		return goal;
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		CacheEntry entry = getEntry(state);
+		List<Move> moves = entry.moves.get(role);
+		if (moves == null)
+		{
+			moves = backingStateMachine.getLegalMoves(state, role);
+			if (moves != null)
+			{
+				entry.moves.put(role, moves);
+			}
+		}
+		return moves;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		CacheEntry entry = getEntry(state);
+		MachineState next = entry.nexts.get(moves);
+		if (next == null)
+		{
+			next = backingStateMachine.getNextState(state, moves);
+			if (next != null)
+			{
+				entry.nexts.put(moves, next);
+			}
+		}
+		return next;
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		CacheEntry entry = getEntry(state);
+		Boolean terminal = entry.terminal;
+		if (terminal == null)
+		{
+			terminal = backingStateMachine.isTerminal(state);
+			entry.terminal = terminal;
+		}
+		return terminal;
+	}
+
+	/** Returns the number of states currently held by the cache. */
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+		{
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/** Removes every state from the cache. */
+	public void clear()
+	{
+		for (Segment segment : segments)
+		{
+			segment.clear();
+		}
+	}
+
+	@Override
+	public void initialize(List<Gdl> description) {
+		clear();
+		backingStateMachine.initialize(description);
+		roles = backingStateMachine.getRoles();
+		initialState = backingStateMachine.getInitialState();
+	}
+
+	@Override
+	public SymmetryGroup getSymmetries() {
+		return backingStateMachine.getSymmetries();
+	}
+
+	/** Delegates until initialize() is called, for machines that were initialized before being wrapped. */
+	@Override
+	public List<Role> getRoles() {
+		return (roles != null) ? roles : backingStateMachine.getRoles();
+	}
+
+	/** Delegates until initialize() is called, like getRoles(). */
+	@Override
+	public MachineState getInitialState() {
+		return (initialState != null) ? initialState : backingStateMachine.getInitialState();
+	}
+}
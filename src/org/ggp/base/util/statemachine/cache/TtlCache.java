@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine.cache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,6 +23,14 @@ import java.util.Set;
  * that it only decrements the TTL of an entry when that entry
  * is accessed directly.
  *
+ * A TtlCache can also be given a maximum number of entries. Once
+ * the cache is full, every insertion of a new key evicts an old
+ * one, chosen by the CLOCK algorithm: entries sit in a ring, and a
+ * hand sweeps the ring, sparing (and unmarking) entries that have
+ * been accessed since the hand last passed them, and evicting the
+ * first entry that has not. This keeps the cache bounded between
+ * calls to prune() at a constant amortized cost per insertion.
+ *
  * @param <K> Key type
  * @param <V> Value type
  */
@@ -31,11 +40,14 @@ public final class TtlCache<K, V> implements Map<K,V>
 	{
 		public int ttl;
 		public V value;
+		public int slot;
+		public boolean referenced;
 
 		public Entry(V value, int ttl)
 		{
 			this.value = value;
 			this.ttl = ttl;
+			this.slot = -1;
 		}
 
 		@Override
@@ -51,10 +63,104 @@ public final class TtlCache<K, V> implements Map<K,V>
 	private final Map<K, Entry> contents;
 	private final int ttl;
 
+	// The CLOCK ring, used only when the cache is bounded.
+	private final int maxEntries;
+	private final Object[] ring;
+	private final int[] freeSlots;
+	private int freeSlotCount;
+	private int hand;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
 	public TtlCache(int ttl)
 	{
+		this(ttl, 0);
+	}
+
+	/**
+	 * Creates a cache that holds at most maxEntries entries, or an
+	 * unbounded cache if maxEntries is zero.
+	 */
+	public TtlCache(int ttl, int maxEntries)
+	{
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("maxEntries must not be negative");
 		this.contents = new HashMap<K, Entry>();
 		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		this.ring = new Object[maxEntries];
+		this.freeSlots = new int[maxEntries];
+		resetRing();
+	}
+
+	private void resetRing()
+	{
+		Arrays.fill(ring, null);
+		for (int i = 0; i < maxEntries; i++)
+			freeSlots[i] = maxEntries - 1 - i;
+		freeSlotCount = maxEntries;
+		hand = 0;
+	}
+
+	/**
+	 * Finds a slot in the ring for a new entry, evicting an entry
+	 * with the CLOCK algorithm if the ring is full.
+	 */
+	private int claimSlot()
+	{
+		if (freeSlotCount > 0)
+			return freeSlots[--freeSlotCount];
+		while (true)
+		{
+			int slot = hand;
+			hand = (hand + 1 == maxEntries) ? 0 : hand + 1;
+			Entry entry = contents.get(ring[slot]);
+			if (entry.referenced)
+			{
+				entry.referenced = false;
+				continue;
+			}
+			contents.remove(ring[slot]);
+			ring[slot] = null;
+			evictions++;
+			return slot;
+		}
+	}
+
+	private void releaseSlot(Entry entry)
+	{
+		if (entry.slot >= 0)
+		{
+			ring[entry.slot] = null;
+			freeSlots[freeSlotCount++] = entry.slot;
+			entry.slot = -1;
+		}
+	}
+
+	/** Returns the number of calls to get() that found their key. */
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+
+	/** Returns the number of calls to get() that did not find their key. */
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+
+	/** Returns the number of entries evicted to keep the cache bounded. */
+	public synchronized long getEvictionCount()
+	{
+		return evictions;
+	}
+
+	/** Returns the maximum number of entries, or zero if unbounded. */
+	public int getMaxEntries()
+	{
+		return maxEntries;
 	}
 
 	@Override
@@ -68,10 +174,15 @@ public final class TtlCache<K, V> implements Map<K,V>
 	{
 		Entry entry = contents.get(key);
 		if (entry == null)
+		{
+		    misses++;
 		    return null;
+		}
+		hits++;
 
 		// Reset the TTL when a value is accessed directly.
 		entry.ttl = ttl;
+		entry.referenced = true;
 		return entry.value;
 	}
 
@@ -90,16 +201,31 @@ public final class TtlCache<K, V> implements Map<K,V>
 
 		for (K key : toPrune)
 		{
-			contents.remove(key);
+			releaseSlot(contents.remove(key));
 		}
 	}
 
 	@Override
 	public synchronized V put(K key, V value)
 	{
-		Entry x = contents.put(key, new Entry(value, ttl));
-		if(x == null) return null;
-		return x.value;
+		Entry x = contents.get(key);
+		if (x != null)
+		{
+			V oldValue = x.value;
+			x.value = value;
+			x.ttl = ttl;
+			x.referenced = true;
+			return oldValue;
+		}
+
+		Entry entry = new Entry(value, ttl);
+		if (maxEntries > 0)
+		{
+			entry.slot = claimSlot();
+			ring[entry.slot] = key;
+		}
+		contents.put(key, entry);
+		return null;
 	}
 
 	@Override
@@ -111,6 +237,7 @@ public final class TtlCache<K, V> implements Map<K,V>
     @Override
 	public synchronized void clear() {
         contents.clear();
+        resetRing();
     }
 
     @Override
@@ -137,7 +264,11 @@ public final class TtlCache<K, V> implements Map<K,V>
 
     @Override
 	public synchronized V remove(Object key) {
-        return contents.remove(key).value;
+        Entry entry = contents.remove(key);
+        if (entry == null)
+            return null;
+        releaseSlot(entry);
+        return entry.value;
     }
 
     @Override
@@ -0,0 +1,342 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.propnet.architecture.EvaluationPlan;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.statemachine.BaseSentenceIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+/**
+ * BatchEvaluator evaluates a propnet on up to 64 states at once. The value
+ * of each component is a long rather than a boolean, with one bit (a lane)
+ * per state, so each gate is evaluated for all of the states with a single
+ * bitwise operation. Monte Carlo players can use it to run depth charges,
+ * or to score leaves, 64 at a time.
+ *
+ * Each step of a rollout evaluates the rollout plan in two passes: first
+ * the components that only depend on the base propositions, which give the
+ * legal moves and terminality of every lane, and then, once a move has been
+ * picked for each lane, the components downstream of the inputs, which give
+ * the next states. Lanes that reach a terminal state keep it until every
+ * lane has finished.
+ *
+ * BatchEvaluators are made by SamplePropNetStateMachine.getBatchEvaluator().
+ * Each one has its own scratch space, so it is not thread-safe; get one
+ * per thread.
+ */
+public final class BatchEvaluator
+{
+	/** The number of states that are evaluated at once. */
+	public static final int LANES = 64;
+
+	private final List<Role> roles;
+	private final BaseSentenceIndex baseIndex;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputIndices;
+	private final int[] baseIds;
+	private final int[] nextIds;
+	private final int[] allInputIds;
+	private final int[][] legalIds;
+	private final int[][] legalInputIds;
+	private final int[][] goalIds;
+	private final int[][] goalValues;
+	private final int terminalId;
+	/** The rollout components that only depend on the base propositions, in topological order. */
+	private final int[] stateIds;
+	/** The rollout components downstream of the input propositions, in topological order. */
+	private final int[] moveIds;
+	/** The goal components that a rollout doesn't evaluate, in topological order. */
+	private final int[] lazyGoalIds;
+	/** All of the goal components, in topological order. */
+	private final int[] goalPlanIds;
+
+	/** The value of each component, with one bit per lane. */
+	private final long[] values;
+	/** Scratch space for picking moves: legal move counts, then picks, per lane. */
+	private final int[] counts;
+	private final long[] nextValues;
+
+	BatchEvaluator(EvaluationPlan rolloutPlan, EvaluationPlan goalPlan, BaseSentenceIndex baseIndex,
+			int[][] legalInputIds, int[][] goalValues)
+	{
+		FlatPropNet net = rolloutPlan.getNet();
+		this.roles = net.getRoles();
+		this.baseIndex = baseIndex;
+		this.types = net.getTypes();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputIndices = net.getInputIndices();
+		this.baseIds = net.getBaseIds();
+		this.nextIds = net.getBaseTransitionIds();
+		this.allInputIds = net.getInputIds();
+		this.legalIds = net.getLegalIds();
+		this.legalInputIds = legalInputIds;
+		this.goalIds = net.getGoalIds();
+		this.goalValues = goalValues;
+		this.terminalId = net.getTerminalId();
+
+		// Ids are in topological order, so one sweep finds everything
+		// downstream of the inputs.
+		boolean[] dependsOnMoves = new boolean[net.size()];
+		for (int id = 0; id < net.size(); id++) {
+			if (types[id] == FlatPropNet.INPUT) {
+				dependsOnMoves[id] = true;
+				continue;
+			}
+			for (int k = inputOffsets[id]; k < inputOffsets[id + 1] && !dependsOnMoves[id]; k++) {
+				dependsOnMoves[id] = dependsOnMoves[inputIndices[k]];
+			}
+		}
+		List<Integer> state = new ArrayList<Integer>();
+		List<Integer> move = new ArrayList<Integer>();
+		for (int id : rolloutPlan.getComponentIds()) {
+			if (dependsOnMoves[id]) {
+				move.add(id);
+			} else {
+				state.add(id);
+			}
+		}
+		List<Integer> lazy = new ArrayList<Integer>();
+		for (int id : goalPlan.getComponentIds()) {
+			if (!rolloutPlan.contains(id) || dependsOnMoves[id]) {
+				lazy.add(id);
+			}
+		}
+		this.stateIds = toArray(state);
+		this.moveIds = toArray(move);
+		this.lazyGoalIds = toArray(lazy);
+		this.goalPlanIds = goalPlan.getComponentIds();
+
+		this.values = new long[net.size()];
+		for (int id = 0; id < values.length; id++) {
+			values[id] = (types[id] == FlatPropNet.TRUE) ? -1L : 0L;
+		}
+		this.counts = new int[LANES];
+		this.nextValues = new long[nextIds.length];
+	}
+
+	private static int[] toArray(List<Integer> values)
+	{
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Runs one depth charge from each of the given states, which may be the
+	 * same state repeated, and stores the goals that the charge from
+	 * states.get(i) reached in goalsOut[i], in the order of the roles.
+	 * Returns the total depth of the charges.
+	 */
+	public int performDepthCharges(List<MachineState> states, Random random, int[][] goalsOut)
+	throws MoveDefinitionException, GoalDefinitionException
+	{
+		long lanes = load(states);
+		long active = lanes;
+		int totalDepth = 0;
+		while (true) {
+			evaluate(stateIds);
+			if (terminalId >= 0) {
+				active &= ~values[terminalId];
+			}
+			if (active == 0) {
+				break;
+			}
+			for (int r = 0; r < roles.size(); r++) {
+				chooseRandomInputs(r, active, random);
+			}
+			evaluate(moveIds);
+			for (int i = 0; i < baseIds.length; i++) {
+				nextValues[i] = values[nextIds[i]];
+			}
+			for (int i = 0; i < baseIds.length; i++) {
+				int id = baseIds[i];
+				values[id] = (nextValues[i] & active) | (values[id] & ~active);
+			}
+			for (int id : allInputIds) {
+				values[id] = 0L;
+			}
+			totalDepth += Long.bitCount(active);
+		}
+		evaluate(lazyGoalIds);
+		readGoals(lanes, goalsOut);
+		return totalDepth;
+	}
+
+	/**
+	 * Runs the given number of depth charges from the given state, 64 at a
+	 * time, and adds the goals they reach to goalsOut, like
+	 * StateMachine.performDepthCharges(). Returns their total depth.
+	 */
+	public int performDepthCharges(MachineState state, int count, Random random, int[] goalsOut)
+	throws MoveDefinitionException, GoalDefinitionException
+	{
+		List<MachineState> states = new ArrayList<MachineState>(LANES);
+		int[][] goals = new int[LANES][roles.size()];
+		int totalDepth = 0;
+		for (int done = 0; done < count; done += LANES) {
+			states.clear();
+			for (int i = 0; i < Math.min(LANES, count - done); i++) {
+				states.add(state);
+			}
+			totalDepth += performDepthCharges(states, random, goals);
+			for (int i = 0; i < states.size(); i++) {
+				for (int r = 0; r < roles.size(); r++) {
+					goalsOut[r] += goals[i][r];
+				}
+			}
+		}
+		return totalDepth;
+	}
+
+	/**
+	 * Stores the goals of states.get(i) in goalsOut[i], in the order of the
+	 * roles.
+	 */
+	public void getGoals(List<MachineState> states, int[][] goalsOut) throws GoalDefinitionException
+	{
+		long lanes = load(states);
+		evaluate(goalPlanIds);
+		readGoals(lanes, goalsOut);
+	}
+
+	/** Loads the given states into the lanes, and returns the mask of the lanes in use. */
+	private long load(List<MachineState> states)
+	{
+		if (states.size() > LANES) {
+			throw new IllegalArgumentException("At most " + LANES + " states can be evaluated at once, not " + states.size());
+		}
+		for (int id : baseIds) {
+			values[id] = 0L;
+		}
+		for (int id : allInputIds) {
+			values[id] = 0L;
+		}
+		Arrays.fill(counts, 0);
+		for (int lane = 0; lane < states.size(); lane++) {
+			long[] words = baseIndex.getWords(states.get(lane));
+			for (int word = 0; word < words.length; word++) {
+				long bits = words[word];
+				while (bits != 0) {
+					int position = (word << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					values[baseIds[position]] |= 1L << lane;
+				}
+			}
+		}
+		return (states.size() == LANES) ? -1L : (1L << states.size()) - 1;
+	}
+
+	private void evaluate(int[] ids)
+	{
+		final long[] values = this.values;
+		for (int id : ids) {
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			long value;
+			switch (types[id]) {
+			case FlatPropNet.AND:
+				value = -1L;
+				for (int k = start; k < end; k++) {
+					value &= values[inputIndices[k]];
+				}
+				break;
+			case FlatPropNet.NOT:
+				value = ~values[inputIndices[start]];
+				break;
+			default:
+				value = 0L;
+				for (int k = start; k < end; k++) {
+					value |= values[inputIndices[k]];
+				}
+			}
+			values[id] = value;
+		}
+	}
+
+	/**
+	 * Picks one of the legal moves of the role uniformly at random in each
+	 * of the active lanes, and sets its input proposition in that lane.
+	 */
+	private void chooseRandomInputs(int roleIndex, long active, Random random)
+	throws MoveDefinitionException
+	{
+		int[] ids = legalIds[roleIndex];
+		for (int i = 0; i < ids.length; i++) {
+			long bits = values[ids[i]] & active;
+			while (bits != 0) {
+				counts[Long.numberOfTrailingZeros(bits)]++;
+				bits &= bits - 1;
+			}
+		}
+		long lanes = active;
+		while (lanes != 0) {
+			int lane = Long.numberOfTrailingZeros(lanes);
+			lanes &= lanes - 1;
+			if (counts[lane] == 0) {
+				throw new MoveDefinitionException(readState(lane), roles.get(roleIndex));
+			}
+			counts[lane] = random.nextInt(counts[lane]) + 1;
+		}
+		for (int i = 0; i < ids.length; i++) {
+			long bits = values[ids[i]] & active;
+			while (bits != 0) {
+				int lane = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (--counts[lane] == 0 && legalInputIds[roleIndex][i] >= 0) {
+					values[legalInputIds[roleIndex][i]] |= 1L << lane;
+				}
+			}
+		}
+		lanes = active;
+		while (lanes != 0) {
+			counts[Long.numberOfTrailingZeros(lanes)] = 0;
+			lanes &= lanes - 1;
+		}
+	}
+
+	/** Reads the goals of the given lanes, which must have exactly one goal per role. */
+	private void readGoals(long lanes, int[][] goalsOut) throws GoalDefinitionException
+	{
+		for (int r = 0; r < roles.size(); r++) {
+			long seen = 0L;
+			long ambiguous = 0L;
+			for (int i = 0; i < goalIds[r].length; i++) {
+				long bits = values[goalIds[r][i]] & lanes;
+				ambiguous |= seen & bits;
+				seen |= bits;
+				while (bits != 0) {
+					int lane = Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					goalsOut[lane][r] = goalValues[r][i];
+				}
+			}
+			long undefined = ambiguous | (lanes & ~seen);
+			if (undefined != 0) {
+				throw new GoalDefinitionException(readState(Long.numberOfTrailingZeros(undefined)), roles.get(r));
+			}
+		}
+	}
+
+	/** Returns the state currently held in the given lane. */
+	private MachineState readState(int lane)
+	{
+		long[] words = new long[baseIndex.getWordCount()];
+		for (int i = 0; i < baseIds.length; i++) {
+			if ((values[baseIds[i]] >>> lane & 1L) != 0) {
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+		return new BitSetMachineState(baseIndex, words);
+	}
+}
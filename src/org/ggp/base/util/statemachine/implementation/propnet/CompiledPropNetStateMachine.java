@@ -0,0 +1,324 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.compiler.CompiledPropNet;
+import org.ggp.base.util.propnet.compiler.PropNetCompiler;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+import org.ggp.base.util.statemachine.BaseSentenceIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+
+/**
+ * A state machine backed by a propnet that has been compiled into a Java
+ * class by the PropNetCompiler. Where the SamplePropNetStateMachine
+ * interprets the network gate by gate, this machine runs generated
+ * straight-line code, which the JIT can compile as a whole.
+ *
+ * States are the same bitsets over the base propositions as those of the
+ * SamplePropNetStateMachine. Compiling the propnet takes a while and needs
+ * a JDK at runtime, so this machine is meant for games that are played
+ * long enough to pay for it.
+ *
+ * This machine is not thread-safe. Use fork() to get a machine for another
+ * thread; forks share the compiled class.
+ */
+public final class CompiledPropNetStateMachine extends StateMachine
+{
+	private CompiledPropNet compiled;
+	private List<Role> roles;
+	/** The names of the base propositions, in the order used by state bitsets. */
+	private BaseSentenceIndex baseIndex;
+	/** The input bit of each move, indexed by role; moves without an input proposition are left out. */
+	private List<Map<Move, Integer>> inputBits;
+	/** The first legal and goal bit of each role; the last entry is the total. */
+	private int[] legalOffsets;
+	private int[] goalOffsets;
+	/** The move of each legal bit. */
+	private Move[] legalMoves;
+	/** The input bit of each legal bit, or -1 if the move has no effect. */
+	private int[] legalInputBits;
+	/** The goal value of each goal bit. */
+	private int[] goalValues;
+	private MachineState initialState;
+
+	/** Scratch buffers for queries. */
+	private long[] inputs;
+	private long[] legals;
+	private long[] goals;
+
+	public CompiledPropNetStateMachine()
+	{
+	}
+
+	private CompiledPropNetStateMachine(CompiledPropNetStateMachine original)
+	{
+		compiled = original.compiled.newInstance();
+		roles = original.roles;
+		baseIndex = original.baseIndex;
+		inputBits = original.inputBits;
+		legalOffsets = original.legalOffsets;
+		goalOffsets = original.goalOffsets;
+		legalMoves = original.legalMoves;
+		legalInputBits = original.legalInputBits;
+		goalValues = original.goalValues;
+		initialState = original.initialState;
+		inputs = new long[original.inputs.length];
+		legals = new long[original.legals.length];
+		goals = new long[original.goals.length];
+	}
+
+	@Override
+	public void initialize(List<Gdl> description)
+	{
+		try {
+			initialize(OptimizingPropNetFactory.create(description));
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Initializes the machine from a propnet that has already been built. It is optimized in place first. */
+	public void initialize(PropNet propNet) throws InterruptedException
+	{
+		PropNetOptimizer.createDefault().optimize(propNet);
+		FlatPropNet net = new FlatPropNet(propNet);
+		compiled = PropNetCompiler.compile(net);
+		roles = net.getRoles();
+		GdlSentence[] names = net.getNames();
+
+		List<GdlSentence> baseSentences = new ArrayList<GdlSentence>();
+		for (int id : net.getBaseIds()) {
+			baseSentences.add(names[id]);
+		}
+		baseIndex = new BaseSentenceIndex(baseSentences);
+
+		int[] inputIds = net.getInputIds();
+		Map<GdlSentence, Integer> inputBitsByName = new HashMap<GdlSentence, Integer>();
+		for (int i = 0; i < inputIds.length; i++) {
+			inputBitsByName.put(names[inputIds[i]], i);
+		}
+
+		int[][] legalIds = net.getLegalIds();
+		int[][] goalIds = net.getGoalIds();
+		legalOffsets = new int[roles.size() + 1];
+		goalOffsets = new int[roles.size() + 1];
+		for (int r = 0; r < roles.size(); r++) {
+			legalOffsets[r + 1] = legalOffsets[r] + legalIds[r].length;
+			goalOffsets[r + 1] = goalOffsets[r] + goalIds[r].length;
+		}
+		legalMoves = new Move[legalOffsets[roles.size()]];
+		legalInputBits = new int[legalMoves.length];
+		goalValues = new int[goalOffsets[roles.size()]];
+		inputBits = new ArrayList<Map<Move, Integer>>(roles.size());
+		for (int r = 0; r < roles.size(); r++) {
+			Map<Move, Integer> roleInputBits = new HashMap<Move, Integer>();
+			for (int i = 0; i < legalIds[r].length; i++) {
+				Move move = new Move(names[legalIds[r][i]].get(1));
+				Integer bit = inputBitsByName.get(ProverQueryBuilder.toDoes(roles.get(r), move));
+				legalMoves[legalOffsets[r] + i] = move;
+				legalInputBits[legalOffsets[r] + i] = (bit == null) ? -1 : bit;
+				if (bit != null) {
+					roleInputBits.put(move, bit);
+				}
+			}
+			inputBits.add(roleInputBits);
+			for (int i = 0; i < goalIds[r].length; i++) {
+				GdlConstant value = (GdlConstant) ((GdlRelation) names[goalIds[r][i]]).get(1);
+				goalValues[goalOffsets[r] + i] = Integer.parseInt(value.toString());
+			}
+		}
+
+		inputs = new long[wordCount(inputIds.length)];
+		legals = new long[wordCount(legalMoves.length)];
+		goals = new long[wordCount(goalValues.length)];
+		long[] words = new long[baseIndex.getWordCount()];
+		compiled.computeInitialState(words);
+		initialState = new BitSetMachineState(baseIndex, words);
+	}
+
+	private static int wordCount(int bits)
+	{
+		return Math.max(1, (bits + 63) >>> 6);
+	}
+
+	private static boolean isSet(long[] words, int bit)
+	{
+		return (words[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		return compiled.isTerminal(baseIndex.getWords(state));
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		compiled.computeGoals(baseIndex.getWords(state), goals);
+		int goal = readGoal(getRoleIndices().get(role));
+		if (goal == -1) {
+			throw new GoalDefinitionException(state, role);
+		}
+		return goal;
+	}
+
+	/**
+	 * Returns the value of the one goal bit that is set for the given role,
+	 * or -1 if there is not exactly one.
+	 */
+	private int readGoal(int roleIndex)
+	{
+		int goal = -1;
+		for (int i = goalOffsets[roleIndex]; i < goalOffsets[roleIndex + 1]; i++) {
+			if (isSet(goals, i)) {
+				if (goal != -1) {
+					return -1;
+				}
+				goal = goalValues[i];
+			}
+		}
+		return goal;
+	}
+
+	@Override
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	@Override
+	public MachineState getInitialState()
+	{
+		return initialState;
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		compiled.computeLegals(baseIndex.getWords(state), legals);
+		int roleIndex = getRoleIndices().get(role);
+		List<Move> moves = new ArrayList<Move>();
+		for (int i = legalOffsets[roleIndex]; i < legalOffsets[roleIndex + 1]; i++) {
+			if (isSet(legals, i)) {
+				moves.add(legalMoves[i]);
+			}
+		}
+		if (moves.isEmpty()) {
+			throw new MoveDefinitionException(state, role);
+		}
+		return moves;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		for (int r = 0; r < roles.size(); r++) {
+			Integer bit = inputBits.get(r).get(moves.get(r));
+			if (bit != null) {
+				inputs[bit >>> 6] |= 1L << bit;
+			}
+		}
+		long[] next = new long[baseIndex.getWordCount()];
+		compiled.computeNextState(baseIndex.getWords(state), inputs, next);
+		Arrays.fill(inputs, 0L);
+		return new BitSetMachineState(baseIndex, next);
+	}
+
+	/**
+	 * Runs the depth charges directly on the compiled propnet, swapping two
+	 * state buffers, so no states or move lists are built along the way.
+	 */
+	@Override
+	public int performDepthCharges(MachineState state, int count, Random random, int[] goalsOut)
+	throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		long[] start = baseIndex.getWords(state);
+		long[] current = new long[start.length];
+		long[] next = new long[start.length];
+		int totalDepth = 0;
+		for (int charge = 0; charge < count; charge++) {
+			System.arraycopy(start, 0, current, 0, start.length);
+			while (!compiled.isTerminal(current)) {
+				compiled.computeLegals(current, legals);
+				for (int r = 0; r < roles.size(); r++) {
+					int bit = chooseRandomInput(current, r, random);
+					if (bit >= 0) {
+						inputs[bit >>> 6] |= 1L << bit;
+					}
+				}
+				compiled.computeNextState(current, inputs, next);
+				Arrays.fill(inputs, 0L);
+				long[] swap = current;
+				current = next;
+				next = swap;
+				totalDepth++;
+			}
+			compiled.computeGoals(current, goals);
+			for (int r = 0; r < roles.size(); r++) {
+				int goal = readGoal(r);
+				if (goal == -1) {
+					throw new GoalDefinitionException(new BitSetMachineState(baseIndex, current.clone()), roles.get(r));
+				}
+				goalsOut[r] += goal;
+			}
+		}
+		return totalDepth;
+	}
+
+	/**
+	 * Picks one of the legal moves of the role that are set in the legal
+	 * bits uniformly at random, and returns its input bit (or -1).
+	 */
+	private int chooseRandomInput(long[] state, int roleIndex, Random random) throws MoveDefinitionException
+	{
+		int legalCount = 0;
+		for (int i = legalOffsets[roleIndex]; i < legalOffsets[roleIndex + 1]; i++) {
+			if (isSet(legals, i)) {
+				legalCount++;
+			}
+		}
+		if (legalCount == 0) {
+			throw new MoveDefinitionException(new BitSetMachineState(baseIndex, state.clone()), roles.get(roleIndex));
+		}
+		int pick = random.nextInt(legalCount);
+		for (int i = legalOffsets[roleIndex]; ; i++) {
+			if (isSet(legals, i) && pick-- == 0) {
+				return legalInputBits[i];
+			}
+		}
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+	{
+		return new BitSetMachineState(baseIndex, baseIndex.toWords(sentenceList));
+	}
+
+	@Override
+	public StateMachine fork()
+	{
+		return new CompiledPropNetStateMachine(this);
+	}
+}
@@ -0,0 +1,140 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.FactorAnalysis.Factor;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * FactorStateMachine plays one factor of a game, as found by FactorAnalysis.
+ * Its states only contain the base propositions of the factor, and its legal
+ * moves are the moves that affect the factor, along with the moves that
+ * don't affect any factor, like a noop. Searching the factors of a game
+ * separately costs the sum of their sizes rather than the product.
+ *
+ * The next states and legal moves of a factor only depend on the factor, so
+ * they are exact. Goals and terminality are evaluated on the factor's state
+ * with every other base proposition false, which is only meaningful if the
+ * game's goals and terminal condition combine per-factor conditions, as
+ * they do in games like nine-board tic-tac-toe.
+ *
+ * FactorStateMachines are made by SamplePropNetStateMachine.getFactorStateMachines().
+ */
+public final class FactorStateMachine extends StateMachine
+{
+	private final SamplePropNetStateMachine machine;
+	private final Factor factor;
+	private final long[] mask;
+	private final List<Set<Move>> moves;
+	private final MachineState initialState;
+
+	FactorStateMachine(SamplePropNetStateMachine machine, Factor factor)
+	{
+		this.machine = machine;
+		this.factor = factor;
+		this.mask = machine.getFactorMask(factor);
+		this.moves = new ArrayList<Set<Move>>();
+		for (Role role : machine.getRoles()) {
+			moves.add(machine.getFactorMoves(role, factor));
+		}
+		this.initialState = project(machine.getInitialState());
+	}
+
+	private FactorStateMachine(FactorStateMachine original)
+	{
+		machine = (SamplePropNetStateMachine) original.machine.fork();
+		factor = original.factor;
+		mask = original.mask;
+		moves = original.moves;
+		initialState = original.initialState;
+	}
+
+	/** Returns the factor this machine plays. */
+	public Factor getFactor()
+	{
+		return factor;
+	}
+
+	/** Restricts a state of the whole game to the base propositions of this factor. */
+	public MachineState project(MachineState state)
+	{
+		return machine.project(state, mask);
+	}
+
+	/**
+	 * Does nothing: factor machines are built already initialized, from the
+	 * game of the machine that made them, so the description is ignored.
+	 */
+	@Override
+	public void initialize(List<Gdl> description)
+	{
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		return machine.getGoal(project(state), role);
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		return machine.isTerminal(project(state));
+	}
+
+	@Override
+	public List<Role> getRoles()
+	{
+		return machine.getRoles();
+	}
+
+	@Override
+	public MachineState getInitialState()
+	{
+		return initialState;
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		MachineState projected = project(state);
+		Set<Move> factorMoves = moves.get(getRoleIndices().get(role));
+		List<Move> legalMoves = new ArrayList<Move>();
+		for (Move move : machine.getLegalMoves(projected, role)) {
+			if (factorMoves.contains(move)) {
+				legalMoves.add(move);
+			}
+		}
+		if (legalMoves.isEmpty()) {
+			throw new MoveDefinitionException(state, role);
+		}
+		return legalMoves;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		return project(machine.getNextState(project(state), moves));
+	}
+
+	@Override
+	public StateMachine fork()
+	{
+		return new FactorStateMachine(this);
+	}
+
+	@Override
+	public String getName()
+	{
+		return machine.getName() + " (" + factor + ")";
+	}
+}
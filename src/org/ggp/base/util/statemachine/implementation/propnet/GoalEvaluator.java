@@ -0,0 +1,131 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.propnet.architecture.EvaluationPlan;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.statemachine.BaseSentenceIndex;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+
+/**
+ * GoalEvaluator is a goal-only view of a propnet: it evaluates the goals
+ * of a state from the components upstream of the goal propositions, and
+ * drops the rest of the network. Heuristics that score many non-terminal
+ * states by their goal values can use it instead of a full state machine.
+ *
+ * GoalEvaluators are made by SamplePropNetStateMachine.getGoalEvaluator().
+ * Each one has its own scratch space, so it is not thread-safe; get one
+ * per thread.
+ */
+public final class GoalEvaluator
+{
+	private final List<Role> roles;
+	private final BaseSentenceIndex baseIndex;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputIndices;
+	private final int[] baseIds;
+	private final int[] componentIds;
+	private final int[][] goalIds;
+	private final int[][] goalValues;
+	private final boolean[] values;
+
+	GoalEvaluator(EvaluationPlan plan, BaseSentenceIndex baseIndex, int[][] goalValues)
+	{
+		FlatPropNet net = plan.getNet();
+		this.roles = net.getRoles();
+		this.baseIndex = baseIndex;
+		this.types = net.getTypes();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputIndices = net.getInputIndices();
+		this.baseIds = net.getBaseIds();
+		this.componentIds = plan.getComponentIds();
+		this.goalIds = net.getGoalIds();
+		this.goalValues = goalValues;
+		this.values = new boolean[net.size()];
+		for (int id = 0; id < values.length; id++) {
+			values[id] = (types[id] == FlatPropNet.TRUE);
+		}
+	}
+
+	/** Returns the goal value of the given role in the given state. */
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		int roleIndex = roles.indexOf(role);
+		if (roleIndex < 0) {
+			throw new GoalDefinitionException(state, role);
+		}
+		evaluate(state);
+		int goal = readGoal(roleIndex);
+		if (goal == -1) {
+			throw new GoalDefinitionException(state, role);
+		}
+		return goal;
+	}
+
+	/** Returns the goal values of all the roles in the given state, in the order of the roles. */
+	public List<Integer> getGoals(MachineState state) throws GoalDefinitionException
+	{
+		evaluate(state);
+		List<Integer> goals = new ArrayList<Integer>(roles.size());
+		for (int r = 0; r < roles.size(); r++) {
+			int goal = readGoal(r);
+			if (goal == -1) {
+				throw new GoalDefinitionException(state, roles.get(r));
+			}
+			goals.add(goal);
+		}
+		return goals;
+	}
+
+	private void evaluate(MachineState state)
+	{
+		long[] words = baseIndex.getWords(state);
+		for (int i = 0; i < baseIds.length; i++) {
+			values[baseIds[i]] = (words[i >>> 6] & (1L << i)) != 0;
+		}
+		for (int id : componentIds) {
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			boolean value;
+			switch (types[id]) {
+			case FlatPropNet.AND:
+				value = true;
+				for (int k = start; k < end && value; k++) {
+					value = values[inputIndices[k]];
+				}
+				break;
+			case FlatPropNet.NOT:
+				value = !values[inputIndices[start]];
+				break;
+			default:
+				value = false;
+				for (int k = start; k < end && !value; k++) {
+					value = values[inputIndices[k]];
+				}
+			}
+			values[id] = value;
+		}
+	}
+
+	/**
+	 * Returns the value of the one goal proposition that is true for the
+	 * role with the given index, or -1 if there is not exactly one.
+	 */
+	private int readGoal(int roleIndex)
+	{
+		int goal = -1;
+		for (int i = 0; i < goalIds[roleIndex].length; i++) {
+			if (values[goalIds[roleIndex][i]]) {
+				if (goal != -1) {
+					return -1;
+				}
+				goal = goalValues[roleIndex][i];
+			}
+		}
+		return goal;
+	}
+}
@@ -0,0 +1,132 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.observer.Event;
+import org.ggp.base.util.observer.Observer;
+import org.ggp.base.util.observer.Subject;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.event.PropNetFailedEvent;
+import org.ggp.base.util.statemachine.implementation.propnet.event.PropNetReadyEvent;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * PropNetBuilderThread builds a SamplePropNetStateMachine for a game in the
+ * background, so that a player doesn't have to bet its start clock on the
+ * propnet being done in time.
+ *
+ * Observers get a PropNetProgressEvent as each sentence form is added, and
+ * then either a PropNetReadyEvent with the finished state machine or a
+ * PropNetFailedEvent. The events are sent from the builder thread.
+ *
+ * A typical player starts the builder during metagaming and asks for a
+ * state machine with getStateMachine(deadline). If the propnet isn't done by
+ * then, it gets a prover to start with, and when the PropNetReadyEvent comes
+ * in, it hands the propnet machine to StateMachineGamer.switchStateMachineLater
+ * to swap it in mid-match.
+ */
+public final class PropNetBuilderThread extends Thread implements Subject
+{
+	private final List<Gdl> description;
+	private final int numThreads;
+	private final List<Observer> observers;
+	private final CountDownLatch done;
+	private volatile StateMachine stateMachine;
+
+	public PropNetBuilderThread(List<Gdl> description, int numThreads)
+	{
+		super("PropNetBuilderThread");
+		setDaemon(true);
+		this.description = description;
+		this.numThreads = numThreads;
+		this.observers = new CopyOnWriteArrayList<Observer>();
+		this.done = new CountDownLatch(1);
+	}
+
+	@Override
+	public void addObserver(Observer observer)
+	{
+		observers.add(observer);
+	}
+
+	@Override
+	public void notifyObservers(Event event)
+	{
+		for (Observer observer : observers)
+		{
+			observer.observe(event);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		Event result;
+		try {
+			PropNet propNet = OptimizingPropNetFactory.create(description, false, numThreads, new Observer() {
+				@Override
+				public void observe(Event event) {
+					notifyObservers(event);
+				}
+			});
+			SamplePropNetStateMachine theMachine = new SamplePropNetStateMachine();
+			theMachine.initialize(propNet);
+			stateMachine = theMachine;
+			result = new PropNetReadyEvent(theMachine);
+		} catch (ThreadDeath d) {
+			throw d;
+		} catch (Throwable t) {
+			GamerLogger.logError("StateMachine", "PropNetBuilderThread: could not build the propnet: " + t);
+			result = new PropNetFailedEvent(t);
+		} finally {
+			done.countDown();
+		}
+		notifyObservers(result);
+	}
+
+	/** Returns the propnet state machine, or null if it isn't built (yet). */
+	public StateMachine getPropNetStateMachine()
+	{
+		return stateMachine;
+	}
+
+	/** Returns whether the builder has finished, whether or not it succeeded. */
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the propnet is built or the deadline (in milliseconds since
+	 * the epoch) has passed. Returns the propnet state machine if it is built,
+	 * or otherwise an initialized ProverStateMachine for the same game. The
+	 * builder keeps going in the background either way.
+	 */
+	public StateMachine getStateMachine(long deadline) throws InterruptedException
+	{
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining > 0) {
+			done.await(remaining, TimeUnit.MILLISECONDS);
+		}
+		StateMachine theMachine = stateMachine;
+		if (theMachine != null) {
+			return theMachine;
+		}
+		ProverStateMachine prover = new ProverStateMachine();
+		prover.initialize(description);
+		return prover;
+	}
+
+	/** Stops the build, if it is still going. Observers get a PropNetFailedEvent. */
+	public void stopBuilding()
+	{
+		interrupt();
+	}
+}
@@ -1,10 +1,12 @@
 package org.ggp.base.util.statemachine.implementation.propnet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -12,39 +14,372 @@ import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.EvaluationPlan;
+import org.ggp.base.util.propnet.architecture.FactorAnalysis;
+import org.ggp.base.util.propnet.architecture.FlatPropNet;
+import org.ggp.base.util.propnet.architecture.FlatPropNetCache;
+import org.ggp.base.util.propnet.architecture.LatchAnalysis;
 import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.SymmetryAnalysis;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
-import org.ggp.base.util.propnet.factory.PropNetFactory;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+import org.ggp.base.util.statemachine.BaseSentenceIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.JournaledMachineState;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.Symmetry;
+import org.ggp.base.util.statemachine.SymmetryGroup;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
 
 
-@SuppressWarnings("unused")
+/**
+ * A state machine backed by a propositional network built with the
+ * OptimizingPropNetFactory.
+ *
+ * When the machine is initialized, the propnet is flattened into a
+ * FlatPropNet: every component is given an integer id according to a
+ * topological ordering of the network, and the connections between
+ * components are kept in arrays indexed by those ids. The values of the
+ * components are then kept in a single boolean array rather than in the
+ * component objects, and a state is represented as a bitset over the base
+ * propositions of the propnet.
+ *
+ * The values are kept up to date by differential propagation: each gate
+ * also keeps a count of its inputs that are true, and when a base or input
+ * proposition changes, only the components whose value actually flips are
+ * visited, and each of them only adjusts the counts of its outputs. Loading
+ * a state or applying a move therefore costs time proportional to the part
+ * of the network that changes, rather than to the whole network.
+ *
+ * This machine is not thread-safe: every query writes to the same array of
+ * component values. Use fork() to get a machine for another thread.
+ */
 public class SamplePropNetStateMachine extends StateMachine {
-    /** The underlying proposition network  */
-    private PropNet propNet;
-    /** The topological ordering of the propositions */
-    private List<Proposition> ordering;
-    /** The player roles */
-    private List<Role> roles;
-
-    /**
-     * Initializes the PropNetStateMachine. You should compute the topological
-     * ordering here. Additionally you may compute the initial state here, at
-     * your discretion.
-     */
-    @Override
-    public void initialize(List<Gdl> description) {
-        propNet = PropNetFactory.create(description);
-        roles = propNet.getRoles();
-        ordering = getOrdering();
-    }
+	/** The underlying proposition network  */
+	private PropNet propNet;
+	/** The player roles */
+	private List<Role> roles;
+
+	/** The flattened propnet, which all evaluation works from. */
+	private FlatPropNet net;
+	/** The type tag of each component, from the flattened propnet. */
+	private byte[] types;
+	/** The inputs and outputs of each component, in compressed sparse row form. */
+	private int[] inputOffsets;
+	private int[] inputIndices;
+	private int[] outputOffsets;
+	private int[] outputIndices;
+	/**
+	 * The outputs that set() propagates changes to: those of the whole
+	 * propnet, or only those within the rollout plan during depth charges.
+	 */
+	private int[] activeOutputOffsets;
+	private int[] activeOutputIndices;
+	/** The part of the propnet that the steps of a depth charge need. */
+	private EvaluationPlan rolloutPlan;
+	/** The part of the propnet that the goals need. */
+	private EvaluationPlan goalPlan;
+	/** The components outside the rollout plan that the goals need, in topological order. */
+	private int[] lazyGoalIds;
+	/** The components outside the rollout plan, in topological order. */
+	private int[] offPlanIds;
+	/** The current value of each component. */
+	private boolean[] values;
+	/** The number of inputs of each component that are currently true. */
+	private int[] trueInputs;
+	/** The stack of components whose value flipped and whose outputs need updating. */
+	private int[] changed;
+
+	/** The names of the base propositions, in the order used by state bitsets. */
+	private BaseSentenceIndex baseIndex;
+	/** The component id of each base proposition, in bit order. */
+	private int[] baseIds;
+	/** The component id of the transition into each base proposition. */
+	private int[] nextIds;
+	/** The component id of the (init ?x) proposition of each base proposition, or -1. */
+	private int[] initIds;
+	/** The component ids of the input propositions, indexed by (does ?role ?move). */
+	private Map<GdlSentence, Integer> inputIds;
+	/** The component ids of every input proposition, so they can be cleared. */
+	private int[] allInputIds;
+	/** The component ids of the legal propositions, indexed by role. */
+	private int[][] legalIds;
+	/** The moves corresponding to the legal propositions, indexed by role. */
+	private Move[][] legalMoves;
+	/** The input proposition matching each legal proposition, or -1 if the move has no effect. */
+	private int[][] legalInputIds;
+	/** The same, indexed by role and then by move. */
+	private List<Map<Move, Integer>> moveInputIds;
+	/** The component ids of the goal propositions, indexed by role. */
+	private int[][] goalIds;
+	/** The values of the goal propositions, indexed by role. */
+	private int[][] goalValues;
+	private int initId;
+	private int terminalId;
+	private MachineState initialState;
+	/** The latches and constant base propositions of the propnet. */
+	private LatchAnalysis latches;
+	/** The independent subgames of the propnet. */
+	private FactorAnalysis factors;
+	/** The symmetries of the game, found when they are first asked for. */
+	private LazySymmetries symmetries;
+
+	/** Scratch buffers for depth charges. */
+	private boolean[] nextValues;
+	private int[] chosenInputIds;
+
+	/** Where flattened propnets are stored between matches, or null. */
+	private final FlatPropNetCache cache;
+
+	public SamplePropNetStateMachine() {
+		this((FlatPropNetCache) null);
+	}
+
+	/**
+	 * Creates a machine that looks for the game's propnet in the given cache
+	 * before building it, and stores it there after building it.
+	 */
+	public SamplePropNetStateMachine(FlatPropNetCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Creates a fork of the given machine. The propnet and everything
+	 * compiled from it are shared; only the component values are copied.
+	 */
+	private SamplePropNetStateMachine(SamplePropNetStateMachine original) {
+		cache = original.cache;
+		propNet = original.propNet;
+		roles = original.roles;
+		net = original.net;
+		types = original.types;
+		inputOffsets = original.inputOffsets;
+		inputIndices = original.inputIndices;
+		outputOffsets = original.outputOffsets;
+		outputIndices = original.outputIndices;
+		activeOutputOffsets = outputOffsets;
+		activeOutputIndices = outputIndices;
+		rolloutPlan = original.rolloutPlan;
+		goalPlan = original.goalPlan;
+		lazyGoalIds = original.lazyGoalIds;
+		offPlanIds = original.offPlanIds;
+		values = original.values.clone();
+		trueInputs = original.trueInputs.clone();
+		changed = new int[original.changed.length];
+		baseIndex = original.baseIndex;
+		baseIds = original.baseIds;
+		nextIds = original.nextIds;
+		initIds = original.initIds;
+		inputIds = original.inputIds;
+		allInputIds = original.allInputIds;
+		legalIds = original.legalIds;
+		legalMoves = original.legalMoves;
+		legalInputIds = original.legalInputIds;
+		moveInputIds = original.moveInputIds;
+		goalIds = original.goalIds;
+		goalValues = original.goalValues;
+		initId = original.initId;
+		terminalId = original.terminalId;
+		initialState = original.initialState;
+		latches = original.latches;
+		factors = original.factors;
+		symmetries = original.symmetries;
+		nextValues = new boolean[nextIds.length];
+		chosenInputIds = new int[roles.size()];
+	}
+
+	/**
+	 * Initializes the PropNetStateMachine. You should compute the topological
+	 * ordering here. Additionally you may compute the initial state here, at
+	 * your discretion.
+	 */
+	@Override
+	public void initialize(List<Gdl> description) {
+		PropNetOptimizer optimizer = PropNetOptimizer.createDefault();
+		String pipeline = "OptimizingPropNetFactory v" + OptimizingPropNetFactory.VERSION + ", PropNetOptimizer " + optimizer.getVersion();
+		FlatPropNet flat = (cache == null) ? null : cache.load(description, pipeline);
+		if (flat == null) {
+			try {
+				propNet = OptimizingPropNetFactory.create(description);
+				optimizer.optimize(propNet);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			flat = new FlatPropNet(propNet);
+			if (cache != null) {
+				cache.store(description, pipeline, flat);
+			}
+		} else {
+			propNet = null;
+		}
+		initialize(flat);
+	}
+
+	/**
+	 * Initializes the machine from a propnet that has already been built,
+	 * for instance by a PropNetBuilderThread. The propnet is optimized in
+	 * place first.
+	 */
+	public void initialize(PropNet propNet) {
+		try {
+			PropNetOptimizer.createDefault().optimize(propNet);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		this.propNet = propNet;
+		initialize(new FlatPropNet(propNet));
+	}
+
+	private void initialize(FlatPropNet flat) {
+		roles = flat.getRoles();
+		compile(flat);
+		initialState = computeInitialState();
+		latches = new LatchAnalysis(flat);
+		factors = new FactorAnalysis(flat);
+		symmetries = new LazySymmetries(flat, baseIndex, legalMoves);
+	}
+
+	/**
+	 * Finds the symmetries of the game the first time they are asked for,
+	 * rather than during initialize(), since the search can take a good part
+	 * of a second on large boards and not every gamer uses them. A machine
+	 * and its forks share one.
+	 */
+	private static final class LazySymmetries {
+		private final FlatPropNet flat;
+		private final BaseSentenceIndex baseIndex;
+		private final Move[][] legalMoves;
+		private SymmetryGroup symmetries;
+
+		LazySymmetries(FlatPropNet flat, BaseSentenceIndex baseIndex, Move[][] legalMoves) {
+			this.flat = flat;
+			this.baseIndex = baseIndex;
+			this.legalMoves = legalMoves;
+		}
+
+		synchronized SymmetryGroup get() {
+			if (symmetries == null) {
+				symmetries = computeSymmetries(new SymmetryAnalysis(flat), baseIndex, legalMoves);
+			}
+			return symmetries;
+		}
+	}
+
+	/** Turns the symmetries of the propnet into symmetries of states and moves. */
+	private static SymmetryGroup computeSymmetries(SymmetryAnalysis analysis, BaseSentenceIndex baseIndex, Move[][] legalMoves) {
+		List<Symmetry> symmetryList = new ArrayList<Symmetry>();
+		for (int[] symmetry : analysis.getSymmetries()) {
+			List<Map<Move, Move>> moves = new ArrayList<Map<Move, Move>>();
+			for (int r = 0; r < legalMoves.length; r++) {
+				int[] permutation = analysis.getLegalPermutation(symmetry, r);
+				Map<Move, Move> roleMoves = new HashMap<Move, Move>();
+				for (int i = 0; i < permutation.length; i++) {
+					roleMoves.put(legalMoves[r][i], legalMoves[r][permutation[i]]);
+				}
+				moves.add(roleMoves);
+			}
+			symmetryList.add(new Symmetry(baseIndex, analysis.getBasePermutation(symmetry), moves));
+		}
+		return new SymmetryGroup(baseIndex, symmetryList);
+	}
+
+	/**
+	 * Returns the symmetries of the game, found as automorphisms of the
+	 * propnet by a SymmetryAnalysis. The first call runs the analysis, so
+	 * gamers that want symmetries should ask for them during metagaming.
+	 */
+	@Override
+	public SymmetryGroup getSymmetries() {
+		return (symmetries == null) ? null : symmetries.get();
+	}
+
+	/**
+	 * Returns the latches and constant base propositions of the game, which
+	 * gamers can use to prune their search: for instance, a state in which
+	 * a positive latch that rules out a goal is already true can't lead to
+	 * that goal.
+	 */
+	public LatchAnalysis getLatchAnalysis() {
+		return latches;
+	}
+
+	/**
+	 * Returns a goal-only view of the propnet, which evaluates goals without
+	 * touching the rest of the network. Each call returns a new evaluator,
+	 * for use by a single thread.
+	 */
+	public GoalEvaluator getGoalEvaluator() {
+		return new GoalEvaluator(goalPlan, baseIndex, goalValues);
+	}
+
+	/**
+	 * Returns an evaluator that runs depth charges and evaluates goals on
+	 * 64 states at once. Each call returns a new evaluator, for use by a
+	 * single thread.
+	 */
+	public BatchEvaluator getBatchEvaluator() {
+		return new BatchEvaluator(rolloutPlan, goalPlan, baseIndex, legalInputIds, goalValues);
+	}
+
+	/** Returns the independent subgames of the game. */
+	public FactorAnalysis getFactorAnalysis() {
+		return factors;
+	}
+
+	/**
+	 * Returns a state machine for each factor of the game, so that the
+	 * factors can be searched separately. Each of them works on its own
+	 * fork of this machine.
+	 */
+	public List<FactorStateMachine> getFactorStateMachines() {
+		List<FactorStateMachine> machines = new ArrayList<FactorStateMachine>();
+		for (FactorAnalysis.Factor factor : factors.getFactors()) {
+			machines.add(new FactorStateMachine((SamplePropNetStateMachine) fork(), factor));
+		}
+		return machines;
+	}
+
+	/** Returns the state bits of the base propositions of the given factor. */
+	long[] getFactorMask(FactorAnalysis.Factor factor) {
+		long[] mask = new long[baseIndex.getWordCount()];
+		for (int bit : factor.getBaseBits()) {
+			mask[bit >>> 6] |= 1L << bit;
+		}
+		return mask;
+	}
+
+	/** Restricts the given state to the given state bits. */
+	MachineState project(MachineState state, long[] mask) {
+		long[] words = baseIndex.getWords(state);
+		long[] projected = new long[words.length];
+		for (int i = 0; i < words.length; i++) {
+			projected[i] = words[i] & mask[i];
+		}
+		return new BitSetMachineState(baseIndex, projected);
+	}
+
+	/**
+	 * Returns the moves of the given role that a machine for the given factor
+	 * allows: those that affect the factor, and those that affect no factor.
+	 */
+	Set<Move> getFactorMoves(Role role, FactorAnalysis.Factor factor) {
+		Set<Move> moves = new HashSet<Move>();
+		for (Map.Entry<Move, Integer> entry : moveInputIds.get(getRoleIndices().get(role)).entrySet()) {
+			int inputId = entry.getValue();
+			FactorAnalysis.Factor moveFactor = (inputId < 0) ? null : factors.getFactor(inputId);
+			if (moveFactor == null || moveFactor == factor) {
+				moves.add(entry.getKey());
+			}
+		}
+		return moves;
+	}
 
 	/**
 	 * Computes if the state is terminal. Should return the value
@@ -52,8 +387,32 @@ public class SamplePropNetStateMachine extends StateMachine {
 	 */
 	@Override
 	public boolean isTerminal(MachineState state) {
-		// TODO: Compute whether the MachineState is terminal.
-		return false;
+		if (terminalId < 0) {
+			return false;
+		}
+		loadState(state);
+		return values[terminalId];
+	}
+
+	/**
+	 * Only loads a state when it differs from the one before it in the
+	 * batch; runs of equal states share one answer.
+	 */
+	@Override
+	public boolean[] isTerminal(MachineState[] states) {
+		boolean[] terminal = new boolean[states.length];
+		if (terminalId < 0) {
+			return terminal;
+		}
+		for (int i = 0; i < states.length; i++) {
+			if (i > 0 && states[i].equals(states[i - 1])) {
+				terminal[i] = terminal[i - 1];
+			} else {
+				loadState(states[i]);
+				terminal[i] = values[terminalId];
+			}
+		}
+		return terminal;
 	}
 
 	/**
@@ -66,19 +425,59 @@ public class SamplePropNetStateMachine extends StateMachine {
 	@Override
 	public int getGoal(MachineState state, Role role)
 	throws GoalDefinitionException {
-		// TODO: Compute the goal for role in state.
-		return -1;
+		loadState(state);
+		int goal = readGoal(getRoleIndices().get(role));
+		if (goal == -1) {
+			throw new GoalDefinitionException(state, role);
+		}
+		return goal;
+	}
+
+	/**
+	 * Returns the value of the one goal proposition that is true for
+	 * the given role, or -1 if there is not exactly one.
+	 */
+	private int readGoal(int roleIndex) {
+		int[] ids = goalIds[roleIndex];
+		int goal = -1;
+		for (int i = 0; i < ids.length; i++) {
+			if (values[ids[i]]) {
+				if (goal != -1) {
+					return -1;
+				}
+				goal = goalValues[roleIndex][i];
+			}
+		}
+		return goal;
 	}
 
 	/**
-	 * Returns the initial state. The initial state can be computed
-	 * by only setting the truth value of the INIT proposition to true,
-	 * and then computing the resulting state.
+	 * Returns the initial state. The initial state is computed by setting
+	 * the truth value of the INIT proposition to true and reading off the
+	 * (init ?x) propositions. Reading the transitions instead would also
+	 * pick up bases whose next rules hold when no base is true.
 	 */
 	@Override
 	public MachineState getInitialState() {
-		// TODO: Compute the initial state.
-		return null;
+		return initialState;
+	}
+
+	private MachineState computeInitialState() {
+		clearSources();
+		if (initId >= 0) {
+			set(initId, true);
+		}
+		long[] words = new long[baseIndex.getWordCount()];
+		for (int i = 0; i < initIds.length; i++) {
+			if (initIds[i] >= 0 && values[initIds[i]]) {
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+		MachineState state = new BitSetMachineState(baseIndex, words);
+		if (initId >= 0) {
+			set(initId, false);
+		}
+		return state;
 	}
 
 	/**
@@ -87,8 +486,19 @@ public class SamplePropNetStateMachine extends StateMachine {
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role)
 	throws MoveDefinitionException {
-		// TODO: Compute legal moves.
-		return null;
+		loadState(state);
+		int roleIndex = getRoleIndices().get(role);
+		int[] ids = legalIds[roleIndex];
+		List<Move> moves = new ArrayList<Move>();
+		for (int i = 0; i < ids.length; i++) {
+			if (values[ids[i]]) {
+				moves.add(legalMoves[roleIndex][i]);
+			}
+		}
+		if (moves.isEmpty()) {
+			throw new MoveDefinitionException(state, role);
+		}
+		return moves;
 	}
 
 	/**
@@ -97,8 +507,205 @@ public class SamplePropNetStateMachine extends StateMachine {
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves)
 	throws TransitionDefinitionException {
-		// TODO: Compute the next state.
-		return null;
+		loadState(state);
+		return computeNextState(moves);
+	}
+
+	/**
+	 * Loads the base propositions once for each run of entries with the
+	 * same state, and only sets the inputs between joint moves.
+	 */
+	@Override
+	public List<MachineState> getNextStates(List<MachineState> states, List<List<Move>> jointMoves)
+	throws TransitionDefinitionException {
+		if (states.size() != jointMoves.size()) {
+			throw new IllegalArgumentException("Got " + states.size() + " states but " + jointMoves.size() + " joint moves");
+		}
+		List<MachineState> nextStates = new ArrayList<MachineState>(states.size());
+		MachineState previous = null;
+		for (int i = 0; i < states.size(); i++) {
+			MachineState state = states.get(i);
+			if (state != previous) {
+				loadState(state);
+				previous = state;
+			}
+			nextStates.add(computeNextState(jointMoves.get(i)));
+		}
+		return nextStates;
+	}
+
+	/**
+	 * Computes the next state from the base propositions that are currently
+	 * set, and clears the inputs again afterwards.
+	 */
+	private MachineState computeNextState(List<Move> moves) {
+		List<GdlSentence> doeses = toDoes(moves);
+		for (GdlSentence does : doeses) {
+			Integer id = inputIds.get(does);
+			if (id != null) {
+				set(id, true);
+			}
+		}
+		MachineState next = readNextState();
+		for (GdlSentence does : doeses) {
+			Integer id = inputIds.get(does);
+			if (id != null) {
+				set(id, false);
+			}
+		}
+		return next;
+	}
+
+	@Override
+	public JournaledMachineState getJournaledState(MachineState state) {
+		return new JournaledMachineState(baseIndex, state);
+	}
+
+	/**
+	 * Advances journaled states made by this machine in place, journaling
+	 * only the base propositions whose values change.
+	 */
+	@Override
+	public void applyMoves(JournaledMachineState state, List<Move> moves)
+	throws TransitionDefinitionException {
+		if (state.getIndex() != baseIndex) {
+			super.applyMoves(state, moves);
+			return;
+		}
+		loadBits(state.getWords());
+		for (int r = 0; r < roles.size(); r++) {
+			chosenInputIds[r] = getInputId(r, moves.get(r));
+			if (chosenInputIds[r] >= 0) {
+				set(chosenInputIds[r], true);
+			}
+		}
+		state.beginStep();
+		for (int i = 0; i < nextIds.length; i++) {
+			state.set(i, values[nextIds[i]]);
+		}
+		for (int r = 0; r < roles.size(); r++) {
+			if (chosenInputIds[r] >= 0) {
+				set(chosenInputIds[r], false);
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of the input proposition for the given role making the
+	 * given move, or -1 if the propnet has none.
+	 */
+	private int getInputId(int roleIndex, Move move) {
+		Integer id = moveInputIds.get(roleIndex).get(move);
+		if (id == null) {
+			id = inputIds.get(ProverQueryBuilder.toDoes(roles.get(roleIndex), move));
+		}
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * Runs the depth charges directly on the component values. The base
+	 * propositions are advanced in place, so no states or move lists are
+	 * built along the way.
+	 *
+	 * Changes are only propagated within the rollout plan while the charges
+	 * run, and the components that only the goals need are evaluated once
+	 * at the end of each charge. The rest of the propnet is brought up to
+	 * date again afterwards.
+	 */
+	@Override
+	public int performDepthCharges(MachineState state, int count, Random random, int[] goalsOut)
+	throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		activeOutputOffsets = rolloutPlan.getOutputOffsets();
+		activeOutputIndices = rolloutPlan.getOutputIndices();
+		try {
+			return performPlannedDepthCharges(state, count, random, goalsOut);
+		} finally {
+			activeOutputOffsets = outputOffsets;
+			activeOutputIndices = outputIndices;
+			recompute(offPlanIds);
+		}
+	}
+
+	private int performPlannedDepthCharges(MachineState state, int count, Random random, int[] goalsOut)
+	throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		long[] startWords = baseIndex.getWords(state);
+		final boolean[] values = this.values;
+		final int roleCount = roles.size();
+		int totalDepth = 0;
+		for (int charge = 0; charge < count; charge++) {
+			loadBits(startWords);
+			while (terminalId >= 0 && !values[terminalId]) {
+				for (int r = 0; r < roleCount; r++) {
+					chosenInputIds[r] = chooseRandomInput(r, random);
+				}
+				for (int r = 0; r < roleCount; r++) {
+					if (chosenInputIds[r] >= 0) {
+						set(chosenInputIds[r], true);
+					}
+				}
+				for (int i = 0; i < nextIds.length; i++) {
+					nextValues[i] = values[nextIds[i]];
+				}
+				for (int r = 0; r < roleCount; r++) {
+					if (chosenInputIds[r] >= 0) {
+						set(chosenInputIds[r], false);
+					}
+				}
+				for (int i = 0; i < baseIds.length; i++) {
+					set(baseIds[i], nextValues[i]);
+				}
+				totalDepth++;
+			}
+			recompute(lazyGoalIds);
+			for (int r = 0; r < roleCount; r++) {
+				int goal = readGoal(r);
+				if (goal == -1) {
+					throw new GoalDefinitionException(readCurrentState(), roles.get(r));
+				}
+				goalsOut[r] += goal;
+			}
+		}
+		return totalDepth;
+	}
+
+	/**
+	 * Picks one of the currently legal moves of the role uniformly at
+	 * random, and returns the id of its input proposition (or -1).
+	 */
+	private int chooseRandomInput(int roleIndex, Random random)
+	throws MoveDefinitionException {
+		int[] ids = legalIds[roleIndex];
+		int legalCount = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (values[ids[i]]) {
+				legalCount++;
+			}
+		}
+		if (legalCount == 0) {
+			throw new MoveDefinitionException(readCurrentState(), roles.get(roleIndex));
+		}
+		int pick = random.nextInt(legalCount);
+		for (int i = 0; ; i++) {
+			if (values[ids[i]] && pick-- == 0) {
+				return legalInputIds[roleIndex][i];
+			}
+		}
+	}
+
+	/** Returns the state whose base values are currently set. */
+	private MachineState readCurrentState() {
+		long[] words = new long[baseIndex.getWordCount()];
+		for (int i = 0; i < baseIds.length; i++) {
+			if (values[baseIds[i]]) {
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+		return new BitSetMachineState(baseIndex, words);
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		return new BitSetMachineState(baseIndex, baseIndex.toWords(sentenceList));
 	}
 
 	/**
@@ -113,24 +720,35 @@ public class SamplePropNetStateMachine extends StateMachine {
 	 * operations are performed on and the input propositions are set from
 	 * the Moves that operations are performed on as well (if any).
 	 *
-	 * @return The order in which the truth values of propositions need to be set.
+	 * The propnet is evaluated from its flattened form, whose component ids
+	 * already follow a topological ordering of all the components (not just
+	 * propositions), so this just reads the propositions off in id order.
+	 *
+	 * @return The order in which the truth values of propositions need to be set,
+	 * or an empty list if the propnet was loaded from the cache, in which case
+	 * there are no Proposition objects.
 	 */
 	public List<Proposition> getOrdering()
 	{
-	    // List to contain the topological ordering.
-	    List<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the components in the PropNet
-		List<Component> components = new ArrayList<Component>(propNet.getComponents());
-
-		// All of the propositions in the PropNet.
-		List<Proposition> propositions = new ArrayList<Proposition>(propNet.getPropositions());
-
-	    // TODO: Compute the topological ordering.
-
+		// List to contain the topological ordering.
+		List<Proposition> order = new ArrayList<Proposition>();
+		Component[] components = net.getComponents();
+		if (components == null) {
+			return order;
+		}
+		for (int i = 0; i < components.length; i++) {
+			if (!net.isSource(i) && components[i] instanceof Proposition) {
+				order.add((Proposition) components[i]);
+			}
+		}
 		return order;
 	}
 
+	@Override
+	public StateMachine fork() {
+		return new SamplePropNetStateMachine(this);
+	}
+
 	/* Already implemented for you */
 	@Override
 	public List<Role> getRoles() {
@@ -139,6 +757,209 @@ public class SamplePropNetStateMachine extends StateMachine {
 
 	/* Helper methods */
 
+	/**
+	 * Builds the tables used to evaluate the given flattened propnet, and
+	 * brings the component values in line with its sources.
+	 */
+	private void compile(FlatPropNet net) {
+		this.net = net;
+		int n = net.size();
+		types = net.getTypes();
+		inputOffsets = net.getInputOffsets();
+		inputIndices = net.getInputIndices();
+		outputOffsets = net.getOutputOffsets();
+		outputIndices = net.getOutputIndices();
+		activeOutputOffsets = outputOffsets;
+		activeOutputIndices = outputIndices;
+		rolloutPlan = EvaluationPlan.forRollouts(net);
+		goalPlan = EvaluationPlan.forGoals(net);
+		lazyGoalIds = goalPlan.getComponentIdsNotIn(rolloutPlan);
+		List<Integer> offPlan = new ArrayList<Integer>();
+		for (int id = 0; id < n; id++) {
+			if (!net.isSource(id) && !rolloutPlan.contains(id)) {
+				offPlan.add(id);
+			}
+		}
+		offPlanIds = new int[offPlan.size()];
+		for (int i = 0; i < offPlanIds.length; i++) {
+			offPlanIds[i] = offPlan.get(i);
+		}
+		GdlSentence[] names = net.getNames();
+
+		baseIds = net.getBaseIds();
+		nextIds = net.getBaseTransitionIds();
+		initIds = net.getBaseInitIds();
+		List<GdlSentence> baseSentences = new ArrayList<GdlSentence>(baseIds.length);
+		for (int id : baseIds) {
+			baseSentences.add(names[id]);
+		}
+		baseIndex = new BaseSentenceIndex(baseSentences);
+
+		allInputIds = net.getInputIds();
+		inputIds = new HashMap<GdlSentence, Integer>();
+		for (int id : allInputIds) {
+			inputIds.put(names[id], id);
+		}
+
+		legalIds = net.getLegalIds();
+		goalIds = net.getGoalIds();
+		legalMoves = new Move[roles.size()][];
+		legalInputIds = new int[roles.size()][];
+		moveInputIds = new ArrayList<Map<Move, Integer>>(roles.size());
+		goalValues = new int[roles.size()][];
+		for (int r = 0; r < roles.size(); r++) {
+			Role role = roles.get(r);
+			legalMoves[r] = new Move[legalIds[r].length];
+			legalInputIds[r] = new int[legalIds[r].length];
+			Map<Move, Integer> roleMoveInputIds = new HashMap<Move, Integer>();
+			for (int i = 0; i < legalIds[r].length; i++) {
+				legalMoves[r][i] = getMoveFromSentence(names[legalIds[r][i]]);
+				Integer inputId = inputIds.get(ProverQueryBuilder.toDoes(role, legalMoves[r][i]));
+				legalInputIds[r][i] = (inputId == null) ? -1 : inputId;
+				roleMoveInputIds.put(legalMoves[r][i], legalInputIds[r][i]);
+			}
+			moveInputIds.add(roleMoveInputIds);
+			goalValues[r] = new int[goalIds[r].length];
+			for (int i = 0; i < goalIds[r].length; i++) {
+				goalValues[r][i] = getGoalValue(names[goalIds[r][i]]);
+			}
+		}
+
+		initId = net.getInitId();
+		terminalId = net.getTerminalId();
+		nextValues = new boolean[nextIds.length];
+		chosenInputIds = new int[roles.size()];
+
+		values = new boolean[n];
+		trueInputs = new int[n];
+		changed = new int[Math.max(n, 16)];
+		propagate();
+	}
+
+	/**
+	 * Recomputes the value of every non-source component, in topological order,
+	 * along with the counts of true inputs. This is only needed once, to bring
+	 * the counts in line with the values of the sources; afterwards, set()
+	 * keeps them up to date.
+	 */
+	private void propagate() {
+		final boolean[] values = this.values;
+		for (int i = 0; i < values.length; i++) {
+			if (types[i] <= FlatPropNet.FREE) {
+				values[i] = (types[i] == FlatPropNet.TRUE);
+				continue;
+			}
+			int count = 0;
+			for (int k = inputOffsets[i]; k < inputOffsets[i + 1]; k++) {
+				if (values[inputIndices[k]]) {
+					count++;
+				}
+			}
+			trueInputs[i] = count;
+			values[i] = evaluate(i, count);
+		}
+	}
+
+	/**
+	 * Recomputes the values and counts of true inputs of the given
+	 * non-source components, which must be in topological order, from the
+	 * values of their inputs.
+	 */
+	private void recompute(int[] ids) {
+		final boolean[] values = this.values;
+		for (int id : ids) {
+			int count = 0;
+			for (int k = inputOffsets[id]; k < inputOffsets[id + 1]; k++) {
+				if (values[inputIndices[k]]) {
+					count++;
+				}
+			}
+			trueInputs[id] = count;
+			values[id] = evaluate(id, count);
+		}
+	}
+
+	/** Returns the value of a non-source component, given how many of its inputs are true. */
+	private boolean evaluate(int id, int count) {
+		switch (types[id]) {
+		case FlatPropNet.AND:
+			return count == inputOffsets[id + 1] - inputOffsets[id];
+		case FlatPropNet.NOT:
+			return count == 0;
+		default:
+			return count > 0;
+		}
+	}
+
+	/**
+	 * Sets the value of a source component and pushes the change through
+	 * the network, visiting only the components whose value flips.
+	 */
+	private void set(int id, boolean value) {
+		final boolean[] values = this.values;
+		if (values[id] == value) {
+			return;
+		}
+		values[id] = value;
+		final int[] outputOffsets = activeOutputOffsets;
+		final int[] outputIndices = activeOutputIndices;
+		int[] changed = this.changed;
+		int top = 0;
+		changed[top++] = id;
+		while (top > 0) {
+			int c = changed[--top];
+			int delta = values[c] ? 1 : -1;
+			for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+				int output = outputIndices[k];
+				int count = trueInputs[output] + delta;
+				trueInputs[output] = count;
+				boolean newValue = evaluate(output, count);
+				if (newValue != values[output]) {
+					values[output] = newValue;
+					if (top == changed.length) {
+						changed = Arrays.copyOf(changed, 2 * top);
+						this.changed = changed;
+					}
+					changed[top++] = output;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the base propositions from the given state. The inputs are
+	 * always clear between queries.
+	 */
+	private void loadState(MachineState state) {
+		loadBits(baseIndex.getWords(state));
+	}
+
+	private void loadBits(long[] words) {
+		for (int i = 0; i < baseIds.length; i++) {
+			set(baseIds[i], (words[i >>> 6] & (1L << i)) != 0);
+		}
+	}
+
+	/** Sets every base and input proposition to false. */
+	private void clearSources() {
+		for (int id : baseIds) {
+			set(id, false);
+		}
+		for (int id : allInputIds) {
+			set(id, false);
+		}
+	}
+
+	private MachineState readNextState() {
+		long[] words = new long[baseIndex.getWordCount()];
+		for (int i = 0; i < nextIds.length; i++) {
+			if (values[nextIds[i]]) {
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+		return new BitSetMachineState(baseIndex, words);
+	}
+
 	/**
 	 * The Input propositions are indexed by (does ?player ?action).
 	 *
@@ -170,39 +991,23 @@ public class SamplePropNetStateMachine extends StateMachine {
 	 */
 	public static Move getMoveFromProposition(Proposition p)
 	{
-		return new Move(p.getName().get(1));
+		return getMoveFromSentence(p.getName());
+	}
+
+	private static Move getMoveFromSentence(GdlSentence legalSentence)
+	{
+		return new Move(legalSentence.get(1));
 	}
 
 	/**
 	 * Helper method for parsing the value of a goal proposition
-	 * @param goalProposition
+	 * @param goalSentence
 	 * @return the integer value of the goal proposition
 	 */
-    private int getGoalValue(Proposition goalProposition)
+	private int getGoalValue(GdlSentence goalSentence)
 	{
-		GdlRelation relation = (GdlRelation) goalProposition.getName();
+		GdlRelation relation = (GdlRelation) goalSentence;
 		GdlConstant constant = (GdlConstant) relation.get(1);
 		return Integer.parseInt(constant.toString());
 	}
-
-	/**
-	 * A Naive implementation that computes a PropNetMachineState
-	 * from the true BasePropositions.  This is correct but slower than more advanced implementations
-	 * You need not use this method!
-	 * @return PropNetMachineState
-	 */
-	public MachineState getStateFromBase()
-	{
-		Set<GdlSentence> contents = new HashSet<GdlSentence>();
-		for (Proposition p : propNet.getBasePropositions().values())
-		{
-			p.setValue(p.getSingleInput().getValue());
-			if (p.getValue())
-			{
-				contents.add(p.getName());
-			}
-
-		}
-		return new MachineState(contents);
-	}
-}
\ No newline at end of file
+}
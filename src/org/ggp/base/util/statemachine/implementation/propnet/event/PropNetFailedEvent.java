@@ -0,0 +1,24 @@
+package org.ggp.base.util.statemachine.implementation.propnet.event;
+
+import org.ggp.base.util.observer.Event;
+
+/**
+ * Sent by a PropNetBuilderThread if its propnet can't be built, or if it
+ * was stopped before the propnet was done.
+ */
+public final class PropNetFailedEvent extends Event
+{
+
+	private final Throwable cause;
+
+	public PropNetFailedEvent(Throwable cause)
+	{
+		this.cause = cause;
+	}
+
+	public Throwable getCause()
+	{
+		return cause;
+	}
+
+}
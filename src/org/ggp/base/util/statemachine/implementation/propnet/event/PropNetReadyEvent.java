@@ -0,0 +1,25 @@
+package org.ggp.base.util.statemachine.implementation.propnet.event;
+
+import org.ggp.base.util.observer.Event;
+import org.ggp.base.util.statemachine.StateMachine;
+
+/**
+ * Sent by a PropNetBuilderThread once its propnet state machine is built
+ * and initialized.
+ */
+public final class PropNetReadyEvent extends Event
+{
+
+	private final StateMachine stateMachine;
+
+	public PropNetReadyEvent(StateMachine stateMachine)
+	{
+		this.stateMachine = stateMachine;
+	}
+
+	public StateMachine getStateMachine()
+	{
+		return stateMachine;
+	}
+
+}
@@ -1,7 +1,10 @@
 package org.ggp.base.util.statemachine.implementation.prover;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -27,19 +30,38 @@ public class ProverStateMachine extends StateMachine
 	private MachineState initialState;
 	private Prover prover;
 	private List<Role> roles;
+	private final boolean tabled;
 
 	/**
 	 * Initialize must be called before using the StateMachine
 	 */
 	public ProverStateMachine()
 	{
+		this(false);
+	}
 
+	/**
+	 * Creates a machine whose prover uses tabled resolution if asked to,
+	 * which finds every answer of recursive rules (see AimaProver).
+	 * Initialize must be called before using the StateMachine.
+	 */
+	public ProverStateMachine(boolean tabled)
+	{
+		this.tabled = tabled;
+	}
+
+	private ProverStateMachine(ProverStateMachine original)
+	{
+		this.tabled = original.tabled;
+		this.initialState = original.initialState;
+		this.prover = original.prover;
+		this.roles = original.roles;
 	}
 
 	@Override
 	public void initialize(List<Gdl> description)
 	{
-		prover = new AimaProver(description);
+		prover = new AimaProver(description, tabled);
 		roles = Role.computeRoles(description);
 		initialState = computeInitialState();
 	}
@@ -109,15 +131,99 @@ public class ProverStateMachine extends StateMachine
 		return new ProverResultParser().toState(results);
 	}
 
+	/**
+	 * Builds the query context once for each run of entries with the same
+	 * state, and only swaps the does sentences between joint moves.
+	 */
+	@Override
+	public List<MachineState> getNextStates(List<MachineState> states, List<List<Move>> jointMoves) throws TransitionDefinitionException
+	{
+		if (states.size() != jointMoves.size())
+		{
+			throw new IllegalArgumentException("Got " + states.size() + " states but " + jointMoves.size() + " joint moves");
+		}
+
+		List<MachineState> nextStates = new ArrayList<MachineState>(states.size());
+		Set<GdlSentence> context = new HashSet<GdlSentence>();
+		List<GdlSentence> doeses = new ArrayList<GdlSentence>(roles.size());
+		MachineState contextState = null;
+		for (int i = 0; i < states.size(); i++)
+		{
+			MachineState state = states.get(i);
+			List<Move> moves = jointMoves.get(i);
+			if (state != contextState)
+			{
+				context.clear();
+				context.addAll(state.getContents());
+				contextState = state;
+			}
+
+			doeses.clear();
+			for (int j = 0; j < roles.size(); j++)
+			{
+				GdlSentence does = ProverQueryBuilder.toDoes(roles.get(j), moves.get(j));
+				if (context.add(does))
+				{
+					doeses.add(does);
+				}
+			}
+			Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getNextQuery(), context);
+			context.removeAll(doeses);
+
+			for (GdlSentence sentence : results)
+			{
+				if (!sentence.isGround())
+				{
+					throw new TransitionDefinitionException(state, moves);
+				}
+			}
+			nextStates.add(new ProverResultParser().toState(results));
+		}
+
+		return nextStates;
+	}
+
 	@Override
 	public List<Role> getRoles()
 	{
 		return roles;
 	}
 
+	/**
+	 * The prover keeps its working state per query and per thread, so the
+	 * fork shares it (and the knowledge base it holds) with this machine.
+	 */
+	@Override
+	public StateMachine fork()
+	{
+		return new ProverStateMachine(this);
+	}
+
 	@Override
 	public boolean isTerminal(MachineState state)
 	{
 		return prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(state));
 	}
+
+	/**
+	 * Builds the query context and proves terminality once for each
+	 * distinct state in the batch, however many times it appears.
+	 */
+	@Override
+	public boolean[] isTerminal(MachineState[] states)
+	{
+		boolean[] terminal = new boolean[states.length];
+		Map<MachineState, Boolean> proven = new HashMap<MachineState, Boolean>();
+		for (int i = 0; i < states.length; i++)
+		{
+			Boolean result = proven.get(states[i]);
+			if (result == null)
+			{
+				result = prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(states[i]));
+				proven.put(states[i], result);
+			}
+			terminal[i] = result;
+		}
+		return terminal;
+	}
 }
\ No newline at end of file